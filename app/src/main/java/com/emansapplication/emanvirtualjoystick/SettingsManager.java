@@ -15,6 +15,10 @@ import androidx.datastore.rxjava3.RxDataStore;
 import com.emansapplication.emanvirtualjoystick.callbacks.ServerInfoCallback;
 import com.emansapplication.emanvirtualjoystick.callbacks.ServerInfoUpdateListener;
 
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
 import io.reactivex.rxjava3.core.Single;
 import io.reactivex.rxjava3.disposables.Disposable;
 
@@ -22,6 +26,12 @@ public class SettingsManager implements Disposable {
 
     private static final Preferences.Key<String> SERVER_ADDRESS = PreferencesKeys.stringKey("server_address");
     private static final Preferences.Key<Integer> SERVER_PORT = PreferencesKeys.intKey("server_port");
+    /// Servers also receiving the state of the gamepad, as "host:port" separated by commas.
+    private static final Preferences.Key<String> MIRROR_SERVERS = PreferencesKeys.stringKey("mirror_servers");
+    /// Servers taking over when the main one fails, in order, in the same format.
+    private static final Preferences.Key<String> STANDBY_SERVERS = PreferencesKeys.stringKey("standby_servers");
+    /// Rate of the snapshots, in Hz. Absent to send each change as soon as it happens.
+    private static final Preferences.Key<Integer> SNAPSHOT_RATE = PreferencesKeys.intKey("snapshot_rate_hz");
 
     private final RxDataStore<Preferences> dataStore;
 
@@ -34,23 +44,69 @@ public class SettingsManager implements Disposable {
         Disposable task = dataStore.data().map(prefs -> {
             String address = prefs.get(SERVER_ADDRESS);
             Integer port = prefs.get(SERVER_PORT);
-            return new Object[]{address, port};
-        }).subscribe(arr -> callback.onInfoAvailable((String) arr[0], (Integer) arr[1]), callback::onFailedToRetrieveInfo);
+            String mirrors = prefs.get(MIRROR_SERVERS);
+            String standbys = prefs.get(STANDBY_SERVERS);
+            Integer snapshotRate = prefs.get(SNAPSHOT_RATE);
+            return new Object[]{address, port, mirrors, standbys, snapshotRate};
+        }).subscribe(arr -> callback.onInfoAvailable((String) arr[0], (Integer) arr[1], (String) arr[2], (String) arr[3], (Integer) arr[4]), callback::onFailedToRetrieveInfo);
 
         callback.registerTask(task);
     }
 
-    public void setServerConnectionInfo(@NonNull ServerInfoUpdateListener listener, @Nullable String serverAddress, @Nullable Integer port) {
+    public void setServerConnectionInfo(@NonNull ServerInfoUpdateListener listener, @Nullable String serverAddress, @Nullable Integer port, @Nullable String mirrorServers, @Nullable String standbyServers, @Nullable Integer snapshotRateHz) {
         Disposable task = dataStore.updateDataAsync(prefsIn -> {
             MutablePreferences mutablePreferences = prefsIn.toMutablePreferences();
             mutablePreferences.set(SERVER_ADDRESS, serverAddress);
             mutablePreferences.set(SERVER_PORT, port);
+            mutablePreferences.set(MIRROR_SERVERS, mirrorServers);
+            mutablePreferences.set(STANDBY_SERVERS, standbyServers);
+            mutablePreferences.set(SNAPSHOT_RATE, snapshotRateHz);
             return Single.just(mutablePreferences);
         }).subscribe(_pref -> listener.onInfoUpdated(), listener::onFailedToUpdateInfo);
 
         listener.registerTask(task);
     }
 
+    /// Only updates the main server: the other settings are kept, even if they were not loaded.
+    public void setServerEndpoint(@NonNull ServerInfoUpdateListener listener, @NonNull String serverAddress, int port) {
+        Disposable task = dataStore.updateDataAsync(prefsIn -> {
+            MutablePreferences mutablePreferences = prefsIn.toMutablePreferences();
+            mutablePreferences.set(SERVER_ADDRESS, serverAddress);
+            mutablePreferences.set(SERVER_PORT, port);
+            return Single.just(mutablePreferences);
+        }).subscribe(_pref -> listener.onInfoUpdated(), listener::onFailedToUpdateInfo);
+
+        listener.registerTask(task);
+    }
+
+    /**
+     * Parse a list of servers, as "host:port" separated by commas. Invalid entries are skipped.
+     *
+     * @return Unresolved addresses: they are resolved when connecting.
+     */
+    @NonNull
+    public static List<InetSocketAddress> parseServerList(@Nullable String servers) {
+        final List<InetSocketAddress> addresses = new ArrayList<>();
+        if (servers == null) {
+            return addresses;
+        }
+        for (String server : servers.split(",")) {
+            server = server.trim();
+            // The last colon, so that IPv6 addresses keep theirs
+            int separator = server.lastIndexOf(':');
+            if (separator <= 0) {
+                continue;
+            }
+            try {
+                int port = Integer.parseInt(server.substring(separator + 1));
+                addresses.add(InetSocketAddress.createUnresolved(server.substring(0, separator), port));
+            } catch (IllegalArgumentException ex) {
+                // Includes NumberFormatException, and ports out of range
+            }
+        }
+        return addresses;
+    }
+
     @Override
     public void dispose() {
         dataStore.dispose();
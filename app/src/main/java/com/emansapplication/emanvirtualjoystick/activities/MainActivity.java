@@ -3,9 +3,12 @@ package com.emansapplication.emanvirtualjoystick.activities;
 import static com.emansapplication.emanvirtualjoystick.ApplicationEvents.LOG_TAG;
 
 import android.annotation.SuppressLint;
+import android.content.ComponentName;
 import android.content.Intent;
+import android.content.ServiceConnection;
 import android.graphics.drawable.AnimationDrawable;
 import android.os.Bundle;
+import android.os.IBinder;
 import android.util.Log;
 import android.view.KeyEvent;
 import android.view.Menu;
@@ -14,6 +17,7 @@ import android.view.MenuItem;
 import android.view.View;
 import android.widget.ImageView;
 import android.widget.ProgressBar;
+import android.widget.TextView;
 import android.widget.Toast;
 
 import androidx.activity.result.ActivityResult;
@@ -22,15 +26,24 @@ import androidx.activity.result.contract.ActivityResultContracts;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.appcompat.app.ActionBar;
+import androidx.core.content.ContextCompat;
 
 import com.emansapplication.emanvirtualjoystick.BuildConfig;
 import com.emansapplication.emanvirtualjoystick.R;
+import com.emansapplication.emanvirtualjoystick.SettingsManager;
 import com.emansapplication.emanvirtualjoystick.SocketDispatcher;
 import com.emansapplication.emanvirtualjoystick.callbacks.ServerInfoCallback;
+import com.emansapplication.emanvirtualjoystick.dispatch.ConnectionStateListener;
+import com.emansapplication.emanvirtualjoystick.dispatch.ControllerState;
+import com.emansapplication.emanvirtualjoystick.dispatch.LatencyHistogram;
+import com.emansapplication.emanvirtualjoystick.services.DispatcherService;
 import com.emansapplication.emanvirtualjoystick.views.JoystickView;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
 
 public class MainActivity extends BaseActivity implements ServerInfoCallback {
 
@@ -39,22 +52,70 @@ public class MainActivity extends BaseActivity implements ServerInfoCallback {
     private static final int STATE_DISPATCH_UNAVAILABLE = 2;
 
     private static final int MAX_CONNECTION_ATTEMPTS = 3;
-    private int connectionAttempts;
+
+    private static final long OVERLAY_REFRESH_INTERVAL_MS = 500;
 
     private boolean settingsShown;
 
     private final ActivityResultLauncher<Intent> launchSettings = registerForActivityResult(new ActivityResultContracts.StartActivityForResult(), this::settingsChanged);
 
+    /// Set while the activity is attached to the service.
+    private DispatcherService service;
     private SocketDispatcher socket;
     private Timer timer;
 
+    private final ConnectionStateListener connectionStateListener = new ConnectionStateListener() {
+        @Override
+        public void onConnectionStateChanged(int state, int failedAttempts) {
+            connectionStateChanged(state, failedAttempts);
+        }
+
+        @Override
+        public void onConnectionStalled(String host, int port, long silenceMillis) {
+            Toast.makeText(MainActivity.this, getString(R.string.connection_stalled, silenceMillis), Toast.LENGTH_SHORT).show();
+        }
+    };
+
+    private final ServiceConnection serviceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            service = ((DispatcherService.LocalBinder) binder).getService();
+            socket = service.getDispatcher();
+            applyEndpoint();
+            service.setConnectionStateListener(connectionStateListener);
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            service = null;
+            socket = null;
+            setLayoutState(STATE_DISPATCH_UNAVAILABLE);
+        }
+    };
+
+    private boolean settingsLoaded;
     @Nullable
     private String cached_server_address;
     @Nullable
     private Integer cached_server_port;
+    @Nullable
+    private String cached_mirror_servers;
+    @Nullable
+    private String cached_standby_servers;
+    @Nullable
+    private Integer cached_snapshot_rate;
+
+    /// Joysticks of each pad, by pad. The layouts of large screens hold a second pair, for a second player.
+    private static final int[][] PAD_JOYSTICK_IDS = {
+            {R.id.joystickLeft, R.id.joystickRight},
+            {R.id.joystickLeft2, R.id.joystickRight2},
+    };
+
+    private JoystickView[] leftJoysticks;
+    private JoystickView[] rightJoysticks;
 
-    private JoystickView leftJoystick;
-    private JoystickView rightJoystick;
+    private TextView latencyOverlay;
+    private boolean latencyOverlayShown;
 
     @SuppressLint("ClickableViewAccessibility")
     @Override
@@ -68,17 +129,30 @@ public class MainActivity extends BaseActivity implements ServerInfoCallback {
 
         settingsShown = false;
 
-        leftJoystick = findViewById(R.id.joystickLeft);
-        leftJoystick.setOnStickMoveListener(v -> {
-            if (socket != null && socket.isConnected())
-                dispatchLeftJoystick();
-        });
+        int padCount = 0;
+        while (padCount < PAD_JOYSTICK_IDS.length && findViewById(PAD_JOYSTICK_IDS[padCount][0]) != null)
+            padCount++;
+        leftJoysticks = new JoystickView[padCount];
+        rightJoysticks = new JoystickView[padCount];
+        for (int i = 0; i < padCount; i++) {
+            final int pad = i;
+
+            leftJoysticks[pad] = findViewById(PAD_JOYSTICK_IDS[pad][0]);
+            leftJoysticks[pad].setListenerMinInterval(0);
+            leftJoysticks[pad].setOnStickMoveListener(v -> {
+                if (socket != null && socket.isConnected())
+                    dispatchLeftJoystick(pad);
+            });
+
+            rightJoysticks[pad] = findViewById(PAD_JOYSTICK_IDS[pad][1]);
+            rightJoysticks[pad].setListenerMinInterval(0);
+            rightJoysticks[pad].setOnStickMoveListener(v -> {
+                if (socket != null && socket.isConnected())
+                    dispatchRightJoystick(pad);
+            });
+        }
 
-        rightJoystick = findViewById(R.id.joystickRight);
-        rightJoystick.setOnStickMoveListener(v -> {
-            if (socket != null && socket.isConnected())
-                dispatchRightJoystick();
-        });
+        latencyOverlay = findViewById(R.id.latencyOverlay);
 
     }
 
@@ -86,6 +160,16 @@ public class MainActivity extends BaseActivity implements ServerInfoCallback {
     protected void onStart() {
         super.onStart();
         timer = new Timer();
+        // Started, so that it survives the activity, and bound, to reach the dispatcher
+        final Intent intent = new Intent(this, DispatcherService.class);
+        ContextCompat.startForegroundService(this, intent);
+        bindService(intent, serviceConnection, BIND_AUTO_CREATE);
+        timer.scheduleAtFixedRate(new TimerTask() {
+            @Override
+            public void run() {
+                runOnUiThread(() -> updateLatencyOverlay());
+            }
+        }, 0, OVERLAY_REFRESH_INTERVAL_MS);
         loadSettings();
     }
 
@@ -95,9 +179,13 @@ public class MainActivity extends BaseActivity implements ServerInfoCallback {
             timer.cancel();
             timer = null;
         }
-        if (socket != null) {
-            socket.close();
+        // Detach only: the service keeps the connection open
+        if (service != null) {
+            service.setConnectionStateListener(null);
+            service = null;
+            socket = null;
         }
+        unbindService(serviceConnection);
         super.onStop();
     }
 
@@ -105,11 +193,11 @@ public class MainActivity extends BaseActivity implements ServerInfoCallback {
     public boolean onKeyDown(int keyCode, KeyEvent event) {
         if (keyCode == KeyEvent.KEYCODE_VOLUME_UP) {
             if (socket != null && socket.isConnected())
-                socket.dispatchSelectButtonPressed();
+                dispatchButton(ControllerState.BUTTON_SELECT, true, event);
             return true;
         } else if (keyCode == KeyEvent.KEYCODE_VOLUME_DOWN) {
             if (socket != null && socket.isConnected())
-                socket.dispatchStartButtonPressed();
+                dispatchButton(ControllerState.BUTTON_START, true, event);
             return true;
         }
         return super.onKeyDown(keyCode, event);
@@ -119,67 +207,100 @@ public class MainActivity extends BaseActivity implements ServerInfoCallback {
     public boolean onKeyUp(int keyCode, KeyEvent event) {
         if (keyCode == KeyEvent.KEYCODE_VOLUME_UP) {
             if (socket != null && socket.isConnected())
-                socket.dispatchSelectButtonReleased();
+                dispatchButton(ControllerState.BUTTON_SELECT, false, event);
             return true;
         } else if (keyCode == KeyEvent.KEYCODE_VOLUME_DOWN) {
             if (socket != null && socket.isConnected())
-                socket.dispatchStartButtonReleased();
+                dispatchButton(ControllerState.BUTTON_START, false, event);
             return true;
         }
         return super.onKeyDown(keyCode, event);
     }
 
 
-    private void startRoutine() {
+    /// Called on the UI thread. The dispatcher reconnects by itself, so this only reflects its state.
+    private void connectionStateChanged(int state, int failedAttempts) {
         if (BuildConfig.DEBUG)
-            Log.d(LOG_TAG, "Starting a new routine cycle...");
-        connectionAttempts = 0;
-        routine();
+            Log.d(LOG_TAG, String.format("Connection state: %d, failed attempts: %d", state, failedAttempts));
+        switch (state) {
+            case SocketDispatcher.STATE_CONNECTED:
+                setLayoutState(STATE_READY);
+                for (int pad = 0; pad < leftJoysticks.length; pad++) {
+                    dispatchLeftJoystick(pad);
+                    dispatchRightJoystick(pad);
+                }
+                break;
+            case SocketDispatcher.STATE_CONNECTING:
+            case SocketDispatcher.STATE_WAITING:
+                if (failedAttempts < MAX_CONNECTION_ATTEMPTS) {
+                    setLayoutState(STATE_CONNECTING);
+                } else {
+                    // Keep retrying in the background, but tell the user once
+                    if (failedAttempts == MAX_CONNECTION_ATTEMPTS && state == SocketDispatcher.STATE_WAITING)
+                        Toast.makeText(this, R.string.cannot_connect_to_server, Toast.LENGTH_LONG).show();
+                    setLayoutState(STATE_DISPATCH_UNAVAILABLE);
+                }
+                break;
+            default:
+                setLayoutState(STATE_DISPATCH_UNAVAILABLE);
+                break;
+        }
     }
 
-    private void routine() {
-        if (cached_server_address == null || cached_server_port == null) {
-            setLayoutState(STATE_DISPATCH_UNAVAILABLE);
-            return;
-        }
-        if (socket == null || (!socket.isConnected() && !socket.isConnecting())) {
-            connectionAttempts++;
-            if (connectionAttempts > MAX_CONNECTION_ATTEMPTS) {
-                Toast.makeText(this, R.string.cannot_connect_to_server, Toast.LENGTH_LONG).show();
-                setLayoutState(STATE_DISPATCH_UNAVAILABLE);
-                return;
-            }
-            socket = new SocketDispatcher(cached_server_address, cached_server_port);
-        }
-        if (socket.isConnecting()) {
-            setLayoutState(STATE_CONNECTING);
-        } else if (socket.isConnected()) {
-            setLayoutState(STATE_READY);
-            connectionAttempts = 0;
-            dispatchLeftJoystick();
-            dispatchRightJoystick();
-        }
-        if (timer == null) {
-            Log.e(LOG_TAG, "Illegal state: the timer is null, but it should not. Re-creating the activity...");
-            recreate();
+    /// The settings and the service are loaded concurrently: applied once both are available.
+    private void applyEndpoint() {
+        if (socket == null || !settingsLoaded)
             return;
+        socket.setMirrorEndpoints(SettingsManager.parseServerList(cached_mirror_servers));
+        socket.setStandbyEndpoints(SettingsManager.parseServerList(cached_standby_servers));
+        service.setSnapshotRate(cached_snapshot_rate != null ? cached_snapshot_rate : 0);
+        if (cached_server_address == null || cached_server_port == null) {
+            socket.setEndpoint(null, 0);
+        } else {
+            socket.setEndpoint(cached_server_address, cached_server_port);
+            // An unchanged endpoint keeps its connection, and reports no new state
+            if (socket.isConnected())
+                setLayoutState(STATE_READY);
         }
-        timer.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                runOnUiThread(() -> {
-                    routine();
-                });
-            }
-        }, 500);
     }
 
-    private void dispatchLeftJoystick() {
-        socket.dispatchLeftJoystickPosition(leftJoystick.getStickX(), leftJoystick.getStickY());
+    /// The event times of the views and of the keys are on the clock of {@link System#nanoTime()} once converted.
+    private void dispatchLeftJoystick(int pad) {
+        final JoystickView view = leftJoysticks[pad];
+        socket.dispatchLeftJoystickPosition(pad, view.getFilteredStickX(), view.getFilteredStickY(),
+                TimeUnit.MILLISECONDS.toNanos(view.getEventTime()));
     }
 
-    private void dispatchRightJoystick() {
-        socket.dispatchRightJoystickPosition(rightJoystick.getStickX(), rightJoystick.getStickY());
+    private void dispatchRightJoystick(int pad) {
+        final JoystickView view = rightJoysticks[pad];
+        socket.dispatchRightJoystickPosition(pad, view.getFilteredStickX(), view.getFilteredStickY(),
+                TimeUnit.MILLISECONDS.toNanos(view.getEventTime()));
+    }
+
+    private void dispatchButton(int button, boolean pressed, KeyEvent event) {
+        socket.dispatchButton(0, button, pressed, TimeUnit.MILLISECONDS.toNanos(event.getEventTime()));
+    }
+
+    /// Probes are only sent while the overlay is shown, so the server receives nothing
+    /// more than the gamepad state otherwise.
+    private void updateLatencyOverlay() {
+        latencyOverlay.setVisibility(latencyOverlayShown ? View.VISIBLE : View.GONE);
+        if (!latencyOverlayShown || socket == null) {
+            return;
+        }
+        LatencyHistogram histogram = socket.getLatencyHistogram();
+        if (histogram.getCount() == 0) {
+            latencyOverlay.setText(R.string.latency_no_answer);
+        } else {
+            latencyOverlay.setText(getString(R.string.latency_summary,
+                    histogram.getPercentileNanos(50) / 1e6,
+                    histogram.getPercentileNanos(99) / 1e6,
+                    histogram.getMaxNanos() / 1e6,
+                    histogram.getCount()));
+        }
+        if (socket.isConnected()) {
+            socket.probeLatency();
+        }
     }
 
     private void setLayoutState(int state) {
@@ -216,24 +337,61 @@ public class MainActivity extends BaseActivity implements ServerInfoCallback {
         if (item.getItemId() == R.id.settings) {
             showSettings();
             return true;
+        } else if (item.getItemId() == R.id.latency_overlay) {
+            latencyOverlayShown = !latencyOverlayShown;
+            item.setChecked(latencyOverlayShown);
+            updateLatencyOverlay();
+            return true;
+        } else if (item.getItemId() == R.id.record_input) {
+            toggleRecording(item);
+            return true;
         }
         return super.onOptionsItemSelected(item);
     }
 
+    private void toggleRecording(MenuItem item) {
+        if (service == null) {
+            return;
+        }
+        if (service.isRecording()) {
+            final File file = service.stopRecording();
+            if (file != null) {
+                Toast.makeText(this, getString(R.string.recording_saved, file.getPath()), Toast.LENGTH_LONG).show();
+            }
+        } else {
+            try {
+                service.startRecording();
+            } catch (IOException ex) {
+                Log.e(LOG_TAG, "Cannot start recording", ex);
+                Toast.makeText(this, R.string.cannot_record, Toast.LENGTH_LONG).show();
+            }
+        }
+        item.setChecked(service.isRecording());
+    }
+
+    @Override
+    public boolean onPrepareOptionsMenu(Menu menu) {
+        menu.findItem(R.id.record_input).setChecked(service != null && service.isRecording());
+        return super.onPrepareOptionsMenu(menu);
+    }
+
     @Override
-    public void onInfoAvailable(@Nullable String serverAddress, @Nullable Integer port) {
+    public void onInfoAvailable(@Nullable String serverAddress, @Nullable Integer port, @Nullable String mirrorServers, @Nullable String standbyServers, @Nullable Integer snapshotRateHz) {
         if (BuildConfig.DEBUG)
             Log.d(LOG_TAG, String.format("Server info loaded: address %s, port %s", serverAddress, port));
         runOnUiThread(() -> {
+            this.settingsLoaded = true;
             this.cached_server_address = serverAddress;
             this.cached_server_port = port;
+            this.cached_mirror_servers = mirrorServers;
+            this.cached_standby_servers = standbyServers;
+            this.cached_snapshot_rate = snapshotRateHz;
             if (serverAddress == null || port == null) {
                 setLayoutState(STATE_DISPATCH_UNAVAILABLE);
                 if (!settingsShown)
                     showSettings();
-            } else {
-                startRoutine();
             }
+            applyEndpoint();
         });
     }
 
@@ -1,11 +1,17 @@
 package com.emansapplication.emanvirtualjoystick.activities;
 
+import android.content.ComponentName;
+import android.content.Intent;
+import android.content.ServiceConnection;
 import android.os.Bundle;
+import android.os.IBinder;
 import android.view.View;
 import android.widget.Button;
 import android.widget.EditText;
+import android.widget.LinearLayout;
 import android.widget.ProgressBar;
 import android.widget.ScrollView;
+import android.widget.TextView;
 import android.widget.Toast;
 
 import androidx.annotation.AnyThread;
@@ -15,12 +21,49 @@ import androidx.appcompat.app.AlertDialog;
 import com.emansapplication.emanvirtualjoystick.R;
 import com.emansapplication.emanvirtualjoystick.callbacks.ServerInfoCallback;
 import com.emansapplication.emanvirtualjoystick.callbacks.ServerInfoUpdateListener;
+import com.emansapplication.emanvirtualjoystick.dispatch.ServerDiscovery;
+import com.emansapplication.emanvirtualjoystick.dispatch.TransportOptions;
+import com.emansapplication.emanvirtualjoystick.services.DispatcherService;
 import com.emansapplication.emanvirtualjoystick.views.ServerAddressEditText;
 
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
 public class SettingsActivity extends BaseActivity implements ServerInfoCallback, ServerInfoUpdateListener {
 
     private ServerAddressEditText addressInput;
     private EditText portInput;
+    private EditText mirrorsInput;
+    private EditText standbysInput;
+    private EditText snapshotRateInput;
+
+    private LinearLayout discoveredList;
+    private TextView discoveryStatus;
+    private Button btn_discover;
+    /// Search in progress, if any. Only used on the UI thread.
+    @Nullable
+    private ServerDiscovery discovery;
+    /// Incremented when a search starts or stops, so that the callbacks of the previous ones are ignored.
+    private int searchCount;
+    /// Row of each server found, by key, updated when it answers faster.
+    private final Map<String, TextView> discoveredRows = new HashMap<>();
+
+    /// Set while the activity is attached to the service.
+    @Nullable
+    private DispatcherService service;
+
+    private final ServiceConnection serviceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            service = ((DispatcherService.LocalBinder) binder).getService();
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            service = null;
+        }
+    };
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -29,27 +72,145 @@ public class SettingsActivity extends BaseActivity implements ServerInfoCallback
 
         addressInput = findViewById(R.id.input_address);
         portInput = findViewById(R.id.input_port);
+        mirrorsInput = findViewById(R.id.input_mirrors);
+        standbysInput = findViewById(R.id.input_standbys);
+        snapshotRateInput = findViewById(R.id.input_snapshot_rate);
 
         Button btn_save = findViewById(R.id.btn_save);
-        btn_save.setOnClickListener(v -> {
-            setLayoutEnabled(false);
+        btn_save.setOnClickListener(v -> save());
 
-            String address = addressInput.length() > 0 ? addressInput.getText().toString() : null;
+        discoveredList = findViewById(R.id.list_discovered);
+        discoveryStatus = findViewById(R.id.text_discovery_status);
+        btn_discover = findViewById(R.id.btn_discover);
+        btn_discover.setOnClickListener(v -> startDiscovery());
 
-            Integer port = null;
-            if (portInput.length() > 0) {
-                try {
-                    port = Integer.parseInt(portInput.getText().toString());
-                } catch (NumberFormatException ex) {
-                    ex.printStackTrace();
-                }
+        getApplicationContext().getSettingsManager().getServerConnectionInfo(this);
+    }
+
+    @Override
+    protected void onStart() {
+        super.onStart();
+        // The main activity started the service: only attach to it
+        bindService(new Intent(this, DispatcherService.class), serviceConnection, 0);
+        startDiscovery();
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+        stopDiscovery();
+        service = null;
+        unbindService(serviceConnection);
+    }
+
+    private void save() {
+        setLayoutEnabled(false);
+
+        String address = addressInput.length() > 0 ? addressInput.getText().toString() : null;
+
+        Integer port = null;
+        if (portInput.length() > 0) {
+            try {
+                port = Integer.parseInt(portInput.getText().toString());
+            } catch (NumberFormatException ex) {
+                ex.printStackTrace();
             }
+        }
 
-            getApplicationContext().getSettingsManager().setServerConnectionInfo(this, address, port);
-        });
+        String mirrors = mirrorsInput.length() > 0 ? mirrorsInput.getText().toString() : null;
 
+        String standbys = standbysInput.length() > 0 ? standbysInput.getText().toString() : null;
 
-        getApplicationContext().getSettingsManager().getServerConnectionInfo(this);
+        Integer snapshotRate = null;
+        if (snapshotRateInput.length() > 0) {
+            try {
+                snapshotRate = Integer.parseInt(snapshotRateInput.getText().toString());
+            } catch (NumberFormatException ex) {
+                ex.printStackTrace();
+            }
+        }
+
+        getApplicationContext().getSettingsManager().setServerConnectionInfo(this, address, port, mirrors, standbys, snapshotRate);
+    }
+
+    private void startDiscovery() {
+        stopDiscovery();
+        final int search = searchCount;
+        discoveredList.removeAllViews();
+        discoveredRows.clear();
+        discoveryStatus.setText(R.string.searching_servers);
+        discoveryStatus.setVisibility(View.VISIBLE);
+        btn_discover.setEnabled(false);
+        try {
+            discovery = new ServerDiscovery(new ServerDiscovery.Listener() {
+                @AnyThread
+                @Override
+                public void onServerFound(ServerDiscovery.Server server) {
+                    runOnUiThread(() -> {
+                        // Only the servers the dispatcher can connect to
+                        if (search == searchCount && server.supports(TransportOptions.TRANSPORT_TCP)) {
+                            showDiscoveredServer(server);
+                        }
+                    });
+                }
+
+                @AnyThread
+                @Override
+                public void onDiscoveryFinished() {
+                    runOnUiThread(() -> {
+                        if (search == searchCount) {
+                            discovery = null;
+                            if (discoveredRows.isEmpty()) {
+                                discoveryStatus.setText(R.string.no_server_found);
+                            } else {
+                                discoveryStatus.setVisibility(View.GONE);
+                            }
+                            btn_discover.setEnabled(true);
+                        }
+                    });
+                }
+            });
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            discoveryStatus.setText(R.string.cannot_discover);
+            btn_discover.setEnabled(true);
+        }
+    }
+
+    /// Stops the search in progress; its pending callbacks are ignored.
+    private void stopDiscovery() {
+        searchCount++;
+        if (discovery != null) {
+            discovery.close();
+            discovery = null;
+        }
+        btn_discover.setEnabled(true);
+    }
+
+    private void showDiscoveredServer(ServerDiscovery.Server server) {
+        TextView row = discoveredRows.get(server.getKey());
+        if (row == null) {
+            row = (TextView) getLayoutInflater().inflate(R.layout.item_discovered_server, discoveredList, false);
+            row.setOnClickListener(v -> pickServer(server));
+            discoveredList.addView(row);
+            discoveredRows.put(server.getKey(), row);
+        }
+        row.setText(getString(R.string.discovered_server, server.getName(), server.getHost(), server.getPort(), server.getRttNanos() / 1e6));
+    }
+
+    /**
+     * Connect to the server right away, then save it. The activity closes once it is saved, so that the
+     * main activity reloads the new settings, which keep the connection since the endpoint is unchanged.
+     * Only the server is saved: the other fields may not be loaded yet, nor be meant to be saved.
+     */
+    private void pickServer(ServerDiscovery.Server server) {
+        if (service != null) {
+            service.getDispatcher().setEndpoint(server.getHost(), server.getPort());
+        }
+        addressInput.setText(server.getHost());
+        portInput.setText(String.valueOf(server.getPort()));
+        setLayoutEnabled(false);
+        getApplicationContext().getSettingsManager().setServerEndpoint(this, server.getHost(), server.getPort());
     }
 
     private void setLayoutEnabled(boolean enabled) {
@@ -72,7 +233,7 @@ public class SettingsActivity extends BaseActivity implements ServerInfoCallback
 
     @AnyThread
     @Override
-    public void onInfoAvailable(@Nullable String serverAddress, @Nullable Integer port) {
+    public void onInfoAvailable(@Nullable String serverAddress, @Nullable Integer port, @Nullable String mirrorServers, @Nullable String standbyServers, @Nullable Integer snapshotRateHz) {
         runOnUiThread(() -> {
             if (serverAddress != null) {
                 addressInput.setText(serverAddress);
@@ -80,6 +241,15 @@ public class SettingsActivity extends BaseActivity implements ServerInfoCallback
             if (port != null) {
                 portInput.setText(String.valueOf(port));
             }
+            if (mirrorServers != null) {
+                mirrorsInput.setText(mirrorServers);
+            }
+            if (standbyServers != null) {
+                standbysInput.setText(standbyServers);
+            }
+            if (snapshotRateHz != null) {
+                snapshotRateInput.setText(String.valueOf(snapshotRateHz));
+            }
             setLayoutEnabled(true);
         });
 
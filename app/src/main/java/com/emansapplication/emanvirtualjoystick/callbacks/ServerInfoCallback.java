@@ -5,7 +5,7 @@ import androidx.annotation.Nullable;
 
 public interface ServerInfoCallback extends BaseCallback {
     @AnyThread
-    void onInfoAvailable(@Nullable String serverAddress, @Nullable Integer port);
+    void onInfoAvailable(@Nullable String serverAddress, @Nullable Integer port, @Nullable String mirrorServers, @Nullable String standbyServers, @Nullable Integer snapshotRateHz);
 
     @AnyThread
     void onFailedToRetrieveInfo(Throwable ex);
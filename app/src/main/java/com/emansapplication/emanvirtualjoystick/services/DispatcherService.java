@@ -0,0 +1,289 @@
+package com.emansapplication.emanvirtualjoystick.services;
+
+import static com.emansapplication.emanvirtualjoystick.ApplicationEvents.LOG_TAG;
+
+import android.annotation.SuppressLint;
+import android.app.Notification;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Intent;
+import android.os.Binder;
+import android.os.Build;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.VibrationEffect;
+import android.os.Vibrator;
+import android.util.Log;
+
+import androidx.annotation.MainThread;
+import androidx.annotation.Nullable;
+import androidx.core.app.NotificationChannelCompat;
+import androidx.core.app.NotificationCompat;
+import androidx.core.app.NotificationManagerCompat;
+
+import com.emansapplication.emanvirtualjoystick.BuildConfig;
+import com.emansapplication.emanvirtualjoystick.R;
+import com.emansapplication.emanvirtualjoystick.SocketDispatcher;
+import com.emansapplication.emanvirtualjoystick.activities.MainActivity;
+import com.emansapplication.emanvirtualjoystick.dispatch.ConnectionStateListener;
+import com.emansapplication.emanvirtualjoystick.dispatch.ControllerState;
+import com.emansapplication.emanvirtualjoystick.dispatch.InputRecorder;
+import com.emansapplication.emanvirtualjoystick.dispatch.MessageParser;
+import com.emansapplication.emanvirtualjoystick.dispatch.SnapshotScheduler;
+import com.emansapplication.emanvirtualjoystick.dispatch.TransportOptions;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Hosts the {@link SocketDispatcher}, so that the connection outlives the activities.
+ * <p>
+ * Activities start the service, then bind to it while they are visible. Rotating the screen or
+ * opening the settings only detaches them: the connection stays open. The service runs in the
+ * foreground, and stops itself when no activity has been attached for {@link #LINGER_MS}.
+ */
+public class DispatcherService extends Service {
+
+    private static final String NOTIFICATION_CHANNEL = "dispatcher";
+    private static final int NOTIFICATION_ID = 1;
+
+    /// Long enough to switch to another application and back without losing the connection.
+    private static final long LINGER_MS = 60_000;
+
+    /// The stick positions are rounded to 1/256 of a half axis, and changes smaller than two
+    /// steps are ignored, so that the jitter of a finger holding the stick sends nothing.
+    private static final int STICK_QUANTIZATION_STEP = 128;
+    private static final int STICK_CHANGE_THRESHOLD = 2 * STICK_QUANTIZATION_STEP;
+
+    /// Interval of the keyframes, when the state is sent as snapshots (see {@link #setSnapshotRate(int)}).
+    private static final long KEYFRAME_INTERVAL_MS = 500;
+
+    /// Longer rumbles are cut, so that a faulty server cannot keep the device vibrating.
+    private static final long MAX_RUMBLE_MS = 5_000;
+
+    public class LocalBinder extends Binder {
+        public DispatcherService getService() {
+            return DispatcherService.this;
+        }
+    }
+
+    private final IBinder binder = new LocalBinder();
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable stopTask = this::stopSelf;
+
+    private SocketDispatcher dispatcher;
+    private Vibrator vibrator;
+
+    /// Only accessed on the main thread.
+    private InputRecorder recorder;
+    private File recordingFile;
+
+    /// Rate set by {@link #setSnapshotRate(int)}, 0 if the changes are sent as soon as they happen. Only accessed on the main thread.
+    private int snapshotRateHz;
+
+    /// Only accessed on the main thread.
+    private ConnectionStateListener attachedListener;
+    private int lastState = SocketDispatcher.STATE_DISCONNECTED;
+    private int lastFailedAttempts;
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        dispatcher = new SocketDispatcher(new TransportOptions());
+        for (int axis = 0; axis < ControllerState.AXIS_COUNT; axis++) {
+            dispatcher.setAxisQuantization(axis, STICK_QUANTIZATION_STEP, STICK_CHANGE_THRESHOLD);
+        }
+        dispatcher.setConnectionStateListener(new ConnectionStateListener() {
+            @Override
+            public void onConnectionStateChanged(int state, int failedAttempts) {
+                handler.post(() -> connectionStateChanged(state, failedAttempts));
+            }
+
+            @Override
+            public void onConnectionStalled(String host, int port, long silenceMillis) {
+                handler.post(() -> connectionStalled(host, port, silenceMillis));
+            }
+        });
+        vibrator = getSystemService(Vibrator.class);
+        if (vibrator != null && vibrator.hasVibrator()) {
+            dispatcher.setMessageHandler(MessageParser.MESSAGE_RUMBLE, (message, args, argCount) ->
+                    rumble((int) args[1], args[2]));
+        }
+
+        NotificationManagerCompat.from(this).createNotificationChannel(
+                new NotificationChannelCompat.Builder(NOTIFICATION_CHANNEL, NotificationManagerCompat.IMPORTANCE_LOW)
+                        .setName(getString(R.string.notification_channel_dispatcher))
+                        .build());
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        startForeground(NOTIFICATION_ID, buildNotification());
+        // Without an activity, there is no endpoint to restore: let the system forget the service
+        return START_NOT_STICKY;
+    }
+
+    @Nullable
+    @Override
+    public IBinder onBind(Intent intent) {
+        handler.removeCallbacks(stopTask);
+        return binder;
+    }
+
+    @Override
+    public void onRebind(Intent intent) {
+        handler.removeCallbacks(stopTask);
+    }
+
+    @Override
+    public boolean onUnbind(Intent intent) {
+        if (BuildConfig.DEBUG)
+            Log.d(LOG_TAG, "No activity attached, the dispatcher service lingers");
+        handler.postDelayed(stopTask, LINGER_MS);
+        // Call onRebind when an activity attaches again
+        return true;
+    }
+
+    @Override
+    public void onDestroy() {
+        handler.removeCallbacks(stopTask);
+        stopRecording();
+        dispatcher.close();
+        super.onDestroy();
+    }
+
+    public SocketDispatcher getDispatcher() {
+        return dispatcher;
+    }
+
+    /**
+     * Send the state of the gamepad as snapshots at a fixed rate, or each change as soon as it happens, the default.
+     * Only applied if the rate changed, so that the rate a server asked for is kept when the settings are reloaded.
+     *
+     * @param rateHz The rate, clamped to the range of {@link SnapshotScheduler}, or 0 to send each change.
+     */
+    @MainThread
+    public void setSnapshotRate(int rateHz) {
+        if (rateHz > 0) {
+            rateHz = Math.max(SnapshotScheduler.MIN_RATE_HZ, Math.min(SnapshotScheduler.MAX_RATE_HZ, rateHz));
+        } else {
+            rateHz = 0;
+        }
+        if (rateHz == snapshotRateHz) {
+            return;
+        }
+        snapshotRateHz = rateHz;
+        if (rateHz == 0) {
+            dispatcher.stopSnapshots();
+        } else {
+            dispatcher.startSnapshots(rateHz, KEYFRAME_INTERVAL_MS);
+        }
+    }
+
+    /// Record the updates sent to the servers into a new file, in the files of the application on the external storage.
+    @MainThread
+    public void startRecording() throws IOException {
+        if (recorder != null) {
+            return;
+        }
+        final File directory = getExternalFilesDir(null);
+        if (directory == null) {
+            throw new IOException("External storage unavailable");
+        }
+        final String name = new SimpleDateFormat("'input-'yyyyMMdd-HHmmss'.emjr'", Locale.ROOT).format(new Date());
+        recordingFile = new File(directory, name);
+        recorder = new InputRecorder(recordingFile);
+        dispatcher.setRecorder(recorder);
+    }
+
+    /// @return The file of the recording, or null if nothing was recorded.
+    @MainThread
+    @Nullable
+    public File stopRecording() {
+        if (recorder == null) {
+            return null;
+        }
+        dispatcher.setRecorder(null);
+        try {
+            recorder.close();
+        } catch (IOException ex) {
+            Log.e(LOG_TAG, "Cannot write the end of the recording", ex);
+        }
+        recorder = null;
+        return recordingFile;
+    }
+
+    @MainThread
+    public boolean isRecording() {
+        return recorder != null;
+    }
+
+    /**
+     * Receive the changes of state of the connection, and the stalls of the servers, on the main thread,
+     * starting with the current state.
+     *
+     * @param listener The listener, or null to detach the previous one.
+     */
+    @MainThread
+    public void setConnectionStateListener(@Nullable ConnectionStateListener listener) {
+        attachedListener = listener;
+        if (listener != null) {
+            listener.onConnectionStateChanged(lastState, lastFailedAttempts);
+        }
+    }
+
+    /// Called on the reader thread. Every pad rumbles the device, since they share it.
+    @SuppressWarnings("deprecation")
+    private void rumble(int strength, long durationMillis) {
+        durationMillis = Math.min(durationMillis, MAX_RUMBLE_MS);
+        if (strength <= 0 || durationMillis <= 0) {
+            vibrator.cancel();
+        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            vibrator.vibrate(VibrationEffect.createOneShot(durationMillis,
+                    vibrator.hasAmplitudeControl() ? Math.min(strength, 255) : VibrationEffect.DEFAULT_AMPLITUDE));
+        } else {
+            vibrator.vibrate(durationMillis);
+        }
+    }
+
+    /// Without the notification permission, the updates are dropped and the first notification stays.
+    @SuppressLint("MissingPermission")
+    @MainThread
+    private void connectionStateChanged(int state, int failedAttempts) {
+        lastState = state;
+        lastFailedAttempts = failedAttempts;
+        if (state != SocketDispatcher.STATE_CLOSED) {
+            NotificationManagerCompat.from(this).notify(NOTIFICATION_ID, buildNotification());
+        }
+        if (attachedListener != null) {
+            attachedListener.onConnectionStateChanged(state, failedAttempts);
+        }
+    }
+
+    @MainThread
+    private void connectionStalled(String host, int port, long silenceMillis) {
+        if (attachedListener != null) {
+            attachedListener.onConnectionStalled(host, port, silenceMillis);
+        }
+    }
+
+    private Notification buildNotification() {
+        final PendingIntent openApp = PendingIntent.getActivity(this, 0,
+                new Intent(this, MainActivity.class).setFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP),
+                PendingIntent.FLAG_IMMUTABLE);
+        return new NotificationCompat.Builder(this, NOTIFICATION_CHANNEL)
+                .setSmallIcon(R.drawable.baseline_settings_remote)
+                .setContentTitle(getString(R.string.app_name))
+                .setContentText(getString(lastState == SocketDispatcher.STATE_CONNECTED
+                        ? R.string.notification_connected : R.string.notification_not_connected))
+                .setContentIntent(openApp)
+                .setOngoing(true)
+                .setOnlyAlertOnce(true)
+                .build();
+    }
+
+}
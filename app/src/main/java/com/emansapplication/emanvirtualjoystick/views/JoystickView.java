@@ -12,6 +12,7 @@ import android.graphics.PorterDuffXfermode;
 import android.graphics.Rect;
 import android.graphics.drawable.ColorDrawable;
 import android.graphics.drawable.Drawable;
+import android.os.SystemClock;
 import android.util.AttributeSet;
 import android.util.TypedValue;
 import android.view.MotionEvent;
@@ -27,6 +28,11 @@ import androidx.annotation.UiThread;
 import androidx.appcompat.content.res.AppCompatResources;
 
 import com.emansapplication.emanvirtualjoystick.R;
+import com.emansapplication.emanvirtualjoystick.dispatch.ExponentialFilter;
+import com.emansapplication.emanvirtualjoystick.dispatch.OneEuroFilter;
+import com.emansapplication.emanvirtualjoystick.dispatch.StickFilter;
+
+import java.util.concurrent.TimeUnit;
 
 /**
  * Joystick view. Inspired by <a href="https://github.com/controlwear/virtual-joystick-android">this repo</a>.
@@ -45,6 +51,13 @@ public class JoystickView extends View {
     public static final int DEFAULT_BASE_COLOR = Color.GRAY;
     @ColorInt
     public static final int DEFAULT_STICK_COLOR = Color.BLACK;
+
+    // Values of the "stickFilter" attribute
+    public static final int FILTER_NONE = 0;
+    public static final int FILTER_EXPONENTIAL = 1;
+    public static final int FILTER_ONE_EURO = 2;
+    /// Once the finger has stopped for this long, the filtered position snaps to the stick.
+    private static final long FILTER_SETTLE_MILLIS = 50;
     private final TintInfo baseTint = new TintInfo();
     private final TintInfo stickTint = new TintInfo();
 
@@ -72,6 +85,9 @@ public class JoystickView extends View {
     private OnStickMoveListener onStickMoveListener;
     private int listenerMinInterval = 50;
 
+    @Nullable
+    private StickFilter filter;
+
     // endregion
 
     // region Dynamic variables
@@ -88,7 +104,12 @@ public class JoystickView extends View {
     private int mBorderRadius;
     private int mStickRadius;
 
+    /// Time of the event that last moved the stick, and of the last call of the listener,
+    /// on the monotonic clock of {@link SystemClock#uptimeMillis()}.
+    private long mEventTime = SystemClock.uptimeMillis();
     private long mLastListenerCall;
+    /// Posted after each move: no touch event comes while the finger rests.
+    private final Runnable mSettle = this::settle;
 
     private boolean mCreatingBaseBmp;
     private boolean mCreatingStickBmp;
@@ -135,6 +156,10 @@ public class JoystickView extends View {
         this.recenterStick = styledAttributes.getBoolean(R.styleable.JoystickView_recenterStick, recenterStick);
         this.fixedCenter = styledAttributes.getBoolean(R.styleable.JoystickView_fixedCenter, fixedCenter);
 
+        this.filter = createFilter(styledAttributes.getInt(R.styleable.JoystickView_stickFilter, FILTER_NONE),
+                styledAttributes.getFloat(R.styleable.JoystickView_filterCutoff, 0),
+                styledAttributes.getFloat(R.styleable.JoystickView_filterBeta, -1));
+
         styledAttributes.recycle();
 
         mBorderPaint.setStyle(Paint.Style.STROKE);
@@ -155,6 +180,7 @@ public class JoystickView extends View {
         if (this.enabled != enabled) {
             this.enabled = enabled;
             if (!enabled) {
+                mEventTime = SystemClock.uptimeMillis();
                 touchStopped();
             }
         }
@@ -366,6 +392,26 @@ public class JoystickView extends View {
         }
     }
 
+    /// The filter set by the "stickFilter" attribute, if any. The view steps it with every sample of the touch
+    /// events, batched ones included, but draws the stick unfiltered: the filtered position is only meant
+    /// for the server (see {@link #getFilteredStickX()}).
+    @Nullable
+    public final StickFilter getFilter() {
+        return filter;
+    }
+
+    public void setFilter(@Nullable StickFilter filter) {
+        this.filter = filter;
+        if (filter != null) {
+            filter.reset();
+        }
+    }
+
+    /// True while the user holds the stick.
+    public final boolean isTouched() {
+        return isTouched;
+    }
+
     public final boolean getRecenterStick() {
         return recenterStick;
     }
@@ -396,6 +442,26 @@ public class JoystickView extends View {
         this.onStickMoveListener = listener;
     }
 
+    /**
+     * Time of the event that last moved the stick, in milliseconds on the clock of
+     * {@link SystemClock#uptimeMillis()}: the event time of the touch event, or the time of the call
+     * that moved the stick. Unlike the time the listener is called, it does not depend on when
+     * the event was handled.
+     */
+    public final long getEventTime() {
+        return mEventTime;
+    }
+
+    public final int getListenerMinInterval() {
+        return listenerMinInterval;
+    }
+
+    /// Minimum interval, in milliseconds, between two calls of the listener while the stick
+    /// is being moved. 0 calls the listener for every touch event.
+    public void setListenerMinInterval(int interval) {
+        this.listenerMinInterval = Math.max(0, interval);
+    }
+
     // endregion
 
     // region Stick position
@@ -427,6 +493,17 @@ public class JoystickView extends View {
         return (double) mStickY / mBorderRadius;
     }
 
+    /// Horizontal position of the stick smoothed by the filter, if any. A released stick is not filtered,
+    /// so that it goes back to rest without delay.
+    public double getFilteredStickX() {
+        return filter != null && isTouched ? filter.getX() : getStickX();
+    }
+
+    /// Vertical position of the stick smoothed by the filter, if any.
+    public double getFilteredStickY() {
+        return filter != null && isTouched ? filter.getY() : getStickY();
+    }
+
     /**
      * Get the distance of the stick from the center of the joystick, as a
      * number between 0 and 1.
@@ -460,6 +537,7 @@ public class JoystickView extends View {
      *            shall be clipped.
      */
     public void setStickPositionXY(double x, double y) {
+        mEventTime = SystemClock.uptimeMillis();
         int stick_x = (int) (x * mBorderRadius);
         int stick_y = (int) (y * mBorderRadius);
         if (stick_x != mStickX || stick_y != mStickY) {
@@ -488,6 +566,7 @@ public class JoystickView extends View {
 
     @UiThread
     public void centerStick() {
+        mEventTime = SystemClock.uptimeMillis();
         if (internalCenterStick()) {
             onStickMoved(true);
         }
@@ -639,6 +718,7 @@ public class JoystickView extends View {
             return true;
         }
 
+        mEventTime = event.getEventTime();
         int x = (int) (event.getX() - mCenterX);
         int y = (int) (event.getY() - mCenterY);
 
@@ -649,16 +729,24 @@ public class JoystickView extends View {
                     mOffsetX = x;
                     mOffsetY = y;
                 }
+                if (filter != null) {
+                    filter.reset();
+                }
                 // NO break is intended
             case MotionEvent.ACTION_MOVE:
                 isTouched = true;
-                x -= mOffsetX;
-                y -= mOffsetY;
-
-                mStickX = x;
-                mStickY = y;
-                checkStickPos();
+                if (filter != null) {
+                    // Samples batched since the previous event, oldest first, so that the filter sees the whole path
+                    for (int i = 0; i < event.getHistorySize(); i++) {
+                        moveStick((int) (event.getHistoricalX(i) - mCenterX), (int) (event.getHistoricalY(i) - mCenterY));
+                        stepFilter(event.getHistoricalEventTime(i));
+                    }
+                }
+                moveStick(x, y);
+                stepFilter(mEventTime);
                 onStickMoved(false);
+                removeCallbacks(mSettle);
+                postDelayed(mSettle, FILTER_SETTLE_MILLIS);
                 return true;
 
             case MotionEvent.ACTION_UP:
@@ -668,11 +756,45 @@ public class JoystickView extends View {
         return super.onTouchEvent(event);
     }
 
+    private void moveStick(int x, int y) {
+        mStickX = x - mOffsetX;
+        mStickY = y - mOffsetY;
+        checkStickPos();
+    }
+
+    private void stepFilter(long eventTime) {
+        if (filter != null) {
+            filter.filter(TimeUnit.MILLISECONDS.toNanos(eventTime), getStickX(), getStickY());
+        }
+    }
+
+    /**
+     * The finger rests on the stick. The filter, which is only stepped by touch events, stays short of
+     * the stick, and the listener may have skipped the latest position: both would be left stale
+     * until the next move. Snap the filter to the stick, and report the position.
+     */
+    private void settle() {
+        if (!isTouched) {
+            return;
+        }
+        boolean stale = mLastListenerCall != mEventTime;
+        if (filter != null && (filter.getX() != getStickX() || filter.getY() != getStickY())) {
+            filter.reset();
+            stepFilter(mEventTime);
+            stale = true;
+        }
+        if (stale) {
+            onStickMoved(true);
+        }
+    }
+
     protected void touchStopped() {
+        removeCallbacks(mSettle);
         isTouched = false;
         mOffsetX = mOffsetY = 0;
-        if (recenterStick) {
-            centerStick(); // will invalidate view if needed
+        if (recenterStick && internalCenterStick()) {
+            // Keeps the time of the event that released the stick
+            onStickMoved(true);
         }
     }
 
@@ -703,9 +825,8 @@ public class JoystickView extends View {
 
     protected void onStickMoved(boolean forceCallListener) {
         if (onStickMoveListener != null) {
-            long time = System.currentTimeMillis();
-            if (forceCallListener || time - mLastListenerCall > listenerMinInterval) {
-                mLastListenerCall = time;
+            if (forceCallListener || mEventTime - mLastListenerCall > listenerMinInterval) {
+                mLastListenerCall = mEventTime;
                 onStickMoveListener.onStickMove(this);
             }
         }
@@ -716,6 +837,20 @@ public class JoystickView extends View {
 
     // region Private utils
 
+    /// Filter of the "stickFilter" attribute. The cutoff is ignored if not positive, and beta if negative.
+    @Nullable
+    private static StickFilter createFilter(int type, float cutoff, float beta) {
+        switch (type) {
+            case FILTER_EXPONENTIAL:
+                return new ExponentialFilter(cutoff > 0 ? cutoff : ExponentialFilter.DEFAULT_CUTOFF_HZ);
+            case FILTER_ONE_EURO:
+                return new OneEuroFilter(cutoff > 0 ? cutoff : OneEuroFilter.DEFAULT_MIN_CUTOFF_HZ,
+                        beta >= 0 ? beta : OneEuroFilter.DEFAULT_BETA, OneEuroFilter.DEFAULT_DERIVATIVE_CUTOFF_HZ);
+            default:
+                return null;
+        }
+    }
+
     @Nullable
     private <T> T coalesce(T... values) {
         for (T value : values) {
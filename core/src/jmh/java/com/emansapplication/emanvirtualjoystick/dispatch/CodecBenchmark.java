@@ -0,0 +1,83 @@
+package com.emansapplication.emanvirtualjoystick.dispatch;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of encoding one update, for each wire format. The datagram format encodes the full state
+ * of the pad for each update. With the gc profiler, gc.alloc.rate.norm must stay at 0 bytes/op.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CodecBenchmark {
+
+    @Param({"text", "binary", "datagram"})
+    public String codec;
+
+    /// Null for datagrams.
+    private WireCodec wireCodec;
+    private final ByteBuffer out = ByteBuffer.allocateDirect(4096);
+    private final int[] axes = new int[ControllerState.AXIS_COUNT];
+    private int value;
+
+    @Setup
+    public void setUp() {
+        switch (codec) {
+            case "text":
+                wireCodec = new TextCodec();
+                break;
+            case "binary":
+                wireCodec = new BinaryCodec();
+                break;
+            default:
+                wireCodec = null;
+                break;
+        }
+    }
+
+    /// A new value at each call, so that the number of digits varies like for a moving stick.
+    private int nextValue() {
+        value = (value + 4099) % ControllerState.AXIS_MAX;
+        return value - ControllerState.AXIS_MAX / 2;
+    }
+
+    private int encode(int pad, int control, int value) {
+        out.clear();
+        if (wireCodec != null) {
+            wireCodec.encode(out, ControllerState.controlId(pad, control), value);
+        } else {
+            if (ControllerState.isAxis(control)) {
+                axes[control] = value;
+            }
+            StatePacket.encodePad(out, pad, value, axes, value & 1);
+        }
+        return out.position();
+    }
+
+    @Benchmark
+    public int encodeAxis() {
+        return encode(0, ControllerState.AXIS_X, nextValue());
+    }
+
+    @Benchmark
+    public int encodeButton() {
+        return encode(0, ControllerState.BUTTON_START, value++ & 1);
+    }
+
+    /// Updates of the other pads carry the pad: a prefix in text, a byte in datagrams.
+    @Benchmark
+    public int encodeSecondPadAxis() {
+        return encode(1, ControllerState.AXIS_RX, nextValue());
+    }
+
+}
@@ -0,0 +1,61 @@
+package com.emansapplication.emanvirtualjoystick.dispatch;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of a drain cycle of the dispatcher, from the state to the buffers of the writers:
+ * drain, encode once into a pooled {@link SharedFrame}, and copy it for each endpoint.
+ * Must not allocate once the pool is warm.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FrameBenchmark {
+
+    private static final int FRAME_SIZE = 32 * WireCodec.MAX_MESSAGE_SIZE;
+
+    /// Number of servers receiving the frame.
+    @Param({"1", "3"})
+    public int endpoints;
+
+    private final ControllerState state = new ControllerState();
+    private final SharedFrame.Pool pool = new SharedFrame.Pool(FRAME_SIZE, 4);
+    private final WireCodec codec = new BinaryCodec();
+    private final ByteBuffer output = ByteBuffer.allocateDirect(FRAME_SIZE);
+    private final int[] controls = new int[32];
+    private final int[] values = new int[32];
+    private int value;
+
+    @Benchmark
+    public int stickCycle() {
+        value = (value + 1) & 0x7FFF;
+        state.setAxes(0, ControllerState.AXIS_X, value, ControllerState.AXIS_Y, -value);
+        final int count = state.drain(controls, values);
+
+        final SharedFrame frame = pool.acquire();
+        for (int i = 0; i < count; i++) {
+            codec.encode(frame.getBuffer(), controls[i], values[i]);
+        }
+        frame.seal(count);
+        int written = 0;
+        for (int i = 0; i < endpoints; i++) {
+            frame.retain();
+            output.clear();
+            frame.copyTo(output);
+            written += output.position();
+            frame.release();
+        }
+        frame.release();
+        return written;
+    }
+
+}
@@ -0,0 +1,128 @@
+package com.emansapplication.emanvirtualjoystick.dispatch;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Control;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of handing one event over to the writer, for each queue strategy:
+ * <ul>
+ *   <li>axis: a stick update, conflated in the {@link ControllerState};</li>
+ *   <li>edge-*: a button edge, in the edge buffer of the state, for each overflow policy;</li>
+ *   <li>legacy-queue: a text command in an unbounded {@link ConcurrentLinkedQueue}, as the dispatcher
+ *       did before the state existed. Kept as a baseline: it allocates for each event.</li>
+ * </ul>
+ * {@link #enqueueAndDrain()} measures the cost on a single thread, the "handoff" group measures it with
+ * the writer on another thread, draining without waiting. There, the producer pushes bursts of {@link #BURST}
+ * events, and waits for the writer to empty the buffer before the next one: every policy overflows on each
+ * burst, but no buffer holds more than a burst, whatever the run time.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class QueueBenchmark {
+
+    /// Twice the capacity of the edge buffer.
+    private static final int BURST = 2 * ControllerState.DEFAULT_EDGE_CAPACITY;
+
+    @Param({"axis", "edge-drop-oldest", "edge-grow", "edge-block", "legacy-queue"})
+    public String strategy;
+
+    private final ControllerState state = new ControllerState();
+    private final Queue<String> legacyQueue = new ConcurrentLinkedQueue<>();
+
+    // Only used by the writer
+    private final int[] controls = new int[32];
+    private final int[] values = new int[32];
+
+    private int value;
+
+    @Setup
+    public void setUp() {
+        switch (strategy) {
+            case "edge-drop-oldest":
+                state.setEdgeCapacity(ControllerState.DEFAULT_EDGE_CAPACITY, ControllerState.OVERFLOW_DROP_OLDEST);
+                break;
+            case "edge-grow":
+                state.setEdgeCapacity(ControllerState.DEFAULT_EDGE_CAPACITY, ControllerState.OVERFLOW_GROW);
+                break;
+            case "edge-block":
+                state.setEdgeCapacity(ControllerState.DEFAULT_EDGE_CAPACITY, ControllerState.OVERFLOW_BLOCK);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void enqueue() {
+        value++;
+        switch (strategy) {
+            case "axis":
+                state.setAxes(0, ControllerState.AXIS_X, value & 0x7FFF, ControllerState.AXIS_Y, -(value & 0x7FFF));
+                break;
+            case "legacy-queue":
+                legacyQueue.add(ControllerState.getName(ControllerState.AXIS_X) + " " + (value & 0x7FFF));
+                break;
+            default:
+                state.pushButton(0, ControllerState.BUTTON_START, (value & 1) != 0);
+                break;
+        }
+    }
+
+    private boolean isPending() {
+        return strategy.equals("legacy-queue") ? !legacyQueue.isEmpty() : state.hasPending();
+    }
+
+    private int drain() {
+        if (strategy.equals("legacy-queue")) {
+            int count = 0;
+            while (legacyQueue.poll() != null) {
+                count++;
+            }
+            return count;
+        }
+        return state.drain(controls, values);
+    }
+
+    @Benchmark
+    @Group("single")
+    public int enqueueAndDrain() {
+        enqueue();
+        return drain();
+    }
+
+    @Benchmark
+    @Group("handoff")
+    @GroupThreads(1)
+    @OperationsPerInvocation(BURST)
+    public void produce(Control control) {
+        for (int i = 0; i < BURST; i++) {
+            enqueue();
+        }
+        // The writer keeps draining until every thread of the group is done, so a blocked push is released
+        while (isPending() && !control.stopMeasurement) {
+            Thread.yield();
+        }
+    }
+
+    @Benchmark
+    @Group("handoff")
+    @GroupThreads(1)
+    public int consume() {
+        return drain();
+    }
+
+}
@@ -0,0 +1,1594 @@
+package com.emansapplication.emanvirtualjoystick;
+
+import com.emansapplication.emanvirtualjoystick.dispatch.BinaryCodec;
+import com.emansapplication.emanvirtualjoystick.dispatch.ClockEstimator;
+import com.emansapplication.emanvirtualjoystick.dispatch.ConnectionStateListener;
+import com.emansapplication.emanvirtualjoystick.dispatch.ControllerState;
+import com.emansapplication.emanvirtualjoystick.dispatch.InputRecorder;
+import com.emansapplication.emanvirtualjoystick.dispatch.LatencyHistogram;
+import com.emansapplication.emanvirtualjoystick.dispatch.MessageParser;
+import com.emansapplication.emanvirtualjoystick.dispatch.PendingSnapshot;
+import com.emansapplication.emanvirtualjoystick.dispatch.QueueCounters;
+import com.emansapplication.emanvirtualjoystick.dispatch.RttEstimator;
+import com.emansapplication.emanvirtualjoystick.dispatch.ServerMessageHandler;
+import com.emansapplication.emanvirtualjoystick.dispatch.SharedFrame;
+import com.emansapplication.emanvirtualjoystick.dispatch.SnapshotScheduler;
+import com.emansapplication.emanvirtualjoystick.dispatch.StatePacket;
+import com.emansapplication.emanvirtualjoystick.dispatch.TextCodec;
+import com.emansapplication.emanvirtualjoystick.dispatch.TransportOptions;
+import com.emansapplication.emanvirtualjoystick.dispatch.WireCodec;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.NetworkChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A socket that dispatches the state of the gamepad to a dedicated server, and optionally
+ * mirrors it to other servers (e.g. a recording host).
+ * <p>
+ * Several gamepads (pads) can share the dispatcher, and thus its connections and threads.
+ * The methods without a pad act on pad 0.
+ * <p>
+ * Standby servers can be connected in advance: when the main server fails, the first connected
+ * standby becomes the active server on the next cycle, and receives a keyframe so that it has the
+ * full state of the gamepad right away.
+ * <p>
+ * The dispatcher owns its connections: once an endpoint is set, it connects, and reconnects
+ * with a jittered exponential backoff whenever the connection is lost, until it is closed.
+ * Each endpoint has its own connection and threads (one that connects and writes, one that reads),
+ * which serve every connection to that endpoint. Changes of state of the main endpoint are pushed
+ * to a {@link ConnectionStateListener}.
+ * <p>
+ * A single thread takes the updates from the {@link ControllerState} and encodes each drain cycle
+ * once per wire format in use. The encoded bytes ({@link SharedFrame}) are shared by the writers
+ * of every endpoint using that format, and each of them sends a frame with a single write.
+ * An endpoint that falls behind by more than {@link #OUTBOX_CAPACITY} frames never delays the others:
+ * the next updates are merged into a single snapshot for it (see {@link PendingSnapshot}), which keeps
+ * the latest value of each axis and every button edge, and is queued once the writer makes room.
+ * Memory is thus bounded at every stage but the edges, and the updates sent to and dropped for the
+ * active server are counted (see {@link #getQueueCounters()}). Datagram endpoints drop the frames
+ * instead, since the next datagram carries the whole state. Falling behind is not a failure: only a writer
+ * blocked on a single write for longer than the timeout of the server ends the connection, so that a standby
+ * takes over.
+ * <p>
+ * Updates are sent with the text protocol. If allowed, the binary protocol is offered
+ * right after connecting, and is used as soon as the server accepts it (see {@link BinaryCodec}).
+ * Servers that do not answer the offer keep receiving text.
+ * <p>
+ * With {@link TransportOptions#TRANSPORT_UDP}, each update is sent as a datagram carrying the full state of
+ * the gamepad (see {@link StatePacket}), so a lost datagram never delays the next ones. With redundancy
+ * (see {@link TransportOptions#setDatagramRedundancy(int)}), each datagram also carries the previous states
+ * of the pad, so that the receiver can rebuild the button presses and the moves of a lost datagram from
+ * the next one, rather than waiting for a retransmission as TCP does.
+ * <p>
+ * The messages of the servers (see {@link MessageParser}) are parsed by the reader of the endpoint,
+ * and passed to the handler registered for their type. By default, the dispatcher records the answers
+ * to latency probes, replays the state when asked to, and adapts the rate of the snapshots to
+ * the rate the server asks for, so that a loaded server can slow its clients down.
+ * <p>
+ * The dispatcher also estimates the offset between its clock and the clock of the active server
+ * (see {@link ClockEstimator}), with a burst of TIME requests when the server changes, then one
+ * every {@link #CLOCK_SYNC_INTERVAL_NANOS}. Once the server has answered, each frame carries the time
+ * of its latest input on the clock of the server, so that the server can tell the timing of the input
+ * apart from the jitter of the network. Servers that never answer are not sent timestamps.
+ * <p>
+ * The writer of each connection also sends a heartbeat every {@link #HEARTBEAT_INTERVAL_NANOS}, a latency
+ * probe that the server answers, so that the server can tell that the client is alive while the gamepad
+ * is idle, and the client that the server is. Once a server has answered, a connection on which nothing
+ * is received for longer than the adaptive timeout of the server (see {@link RttEstimator}) after a heartbeat
+ * is stalled: a half-open connection is noticed within a second or two rather than when the kernel gives up
+ * on it. Since datagrams are lost on their own, a datagram session also needs {@link #DATAGRAM_STALL_PROBES}
+ * heartbeats in a row to go unanswered. The listener is told (see {@link ConnectionStateListener#onConnectionStalled}),
+ * and a standby takes over. The endpoint reconnects right away if the server answered on the stalled connection,
+ * since the stall was likely a blip of the network, and after a backoff otherwise.
+ */
+public class SocketDispatcher implements Closeable {
+
+    /// No endpoint is set.
+    public static final int STATE_DISCONNECTED = 0;
+    public static final int STATE_CONNECTING = 1;
+    public static final int STATE_CONNECTED = 2;
+    /// Waiting before the next connection attempt.
+    public static final int STATE_WAITING = 3;
+    public static final int STATE_CLOSED = 4;
+
+    private static final long BACKOFF_BASE_MS = 100;
+    private static final long BACKOFF_MAX_MS = 5000;
+
+    /// Maximum number of updates encoded per drain cycle.
+    private static final int DRAIN_CAPACITY = 32;
+
+    /// Maximum number of frames waiting to be written to an endpoint.
+    private static final int OUTBOX_CAPACITY = 16;
+
+    /// Room for the updates and the timestamp, or for a datagram per update.
+    private static final int FRAME_SIZE = (DRAIN_CAPACITY + 1) * Math.max(WireCodec.MAX_MESSAGE_SIZE, StatePacket.MAX_STATE_SIZE);
+
+    private static final long CLOCK_SYNC_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+    /// A request without answer is sent again after this delay.
+    private static final long CLOCK_SYNC_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    // Wire formats, each encoded at most once per drain cycle
+    private static final int FORMAT_TEXT = 0;
+    private static final int FORMAT_BINARY = 1;
+    private static final int FORMAT_DATAGRAM = 2;
+    private static final int FORMAT_COUNT = 3;
+
+    private static final int[] NO_AXES = new int[ControllerState.AXIS_COUNT];
+
+    private static final long NO_TIMESTAMP = Long.MIN_VALUE;
+
+    private static final long HEARTBEAT_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    /// Heartbeats sent to a server that never answered them, before giving up.
+    private static final int HEARTBEAT_PROBES = 8;
+    /// Heartbeats in a row that a datagram session must lose before it stalls. At 20% loss each way, 36% of
+    /// the round trips are lost, and this many in a row about once in 10 million heartbeats, or 12 days.
+    private static final int DATAGRAM_STALL_PROBES = 16;
+    /// Set in the tokens of the heartbeats, clear in the tokens of the latency probes, so that their answers are told apart.
+    private static final long HEARTBEAT_TOKEN_BIT = 1;
+    private static final long NO_HEARTBEAT = Long.MIN_VALUE;
+    private static final long NO_WRITE = Long.MIN_VALUE;
+
+    private static final byte[] HANDSHAKE = (BinaryCodec.HANDSHAKE + "\n").getBytes(StandardCharsets.US_ASCII);
+
+    private final TransportOptions options;
+
+    /// Takes the updates from the state, and encodes them for every endpoint.
+    private final Thread _encoder;
+
+    private volatile boolean _closed;
+    private volatile int _state = STATE_DISCONNECTED;
+    private int reportedFailedAttempts;
+    private volatile ConnectionStateListener stateListener;
+    private final Object stateLock = new Object();
+
+    private final Object endpointLock = new Object();
+    /// Set by {@link #setEndpoint(String, int)}. Its state is the state of the dispatcher.
+    private volatile Endpoint primary;
+    /// Take over from the main server when it fails, in order.
+    private final List<Endpoint> standbys = new ArrayList<>();
+    private final List<Endpoint> mirrors = new ArrayList<>();
+    /// Copy of the endpoints, read by the encoder without locking.
+    private volatile Endpoint[] targets = new Endpoint[0];
+
+    private final SharedFrame.Pool framePool = new SharedFrame.Pool(FRAME_SIZE, 4 * OUTBOX_CAPACITY);
+
+    // Only used by the encoder
+    private final TextCodec textCodec = new TextCodec();
+    private final BinaryCodec binaryCodec = new BinaryCodec();
+    private final int[][] datagramAxes = new int[ControllerState.MAX_PADS][ControllerState.AXIS_COUNT];
+    private final int[] datagramButtons = new int[ControllerState.MAX_PADS];
+    /// Shared by every datagram endpoint, so that their last datagram (QUIT) is never older than the others.
+    private final AtomicInteger datagramSequence = new AtomicInteger();
+    // Last states sent in redundant datagrams, in a ring indexed by the state count of each pad
+    private final int[][][] historyAxes = new int[ControllerState.MAX_PADS][StatePacket.MAX_REDUNDANCY][ControllerState.AXIS_COUNT];
+    private final int[][] historyButtons = new int[ControllerState.MAX_PADS][StatePacket.MAX_REDUNDANCY];
+    private final int[] historyLengths = new int[ControllerState.MAX_PADS];
+    private final int[] stateCounts = new int[ControllerState.MAX_PADS];
+    /// Sent in redundant datagrams, so that the receivers carry on counting the states when the dispatcher reconnects.
+    private final int clientId = ThreadLocalRandom.current().nextInt();
+
+    private final LatencyHistogram latencyHistogram = new LatencyHistogram();
+
+    private final ClockEstimator clock = new ClockEstimator();
+    /// Server the clock estimate is about. Set by the encoder, cleared by the endpoint when it reconnects.
+    private volatile Endpoint clockEndpoint;
+    private volatile long nextClockSyncNanos;
+    /// Requests sent to the server of the estimate, reset by each answer.
+    private final AtomicInteger unansweredClockRequests = new AtomicInteger();
+
+    private final AtomicLong writeCount = new AtomicLong();
+    private final AtomicLong writtenBytes = new AtomicLong();
+
+    /// Taking from the state blocks the encoder until an update is available,
+    /// so that an update is written as soon as it is dispatched.
+    private final ControllerState state = new ControllerState();
+
+    /// Set while the encoder records the updates.
+    private volatile InputRecorder recorder;
+
+    /// Set while the dispatcher sends snapshots at a fixed rate.
+    private SnapshotScheduler scheduler;
+    private long keyframeIntervalMillis;
+
+    /// Handler of each message of the servers, by message. Replaced as a whole, so that readers do not lock.
+    private volatile ServerMessageHandler[] messageHandlers = new ServerMessageHandler[MessageParser.MESSAGE_COUNT];
+
+    public SocketDispatcher(String host, int port) {
+        this(host, port, new TransportOptions());
+    }
+
+    /// The options are read each time a connection is opened.
+    public SocketDispatcher(String host, int port, TransportOptions options) {
+        this(options);
+        setEndpoint(host, port);
+    }
+
+    /// Creates a dispatcher that waits for {@link #setEndpoint(String, int)} to connect.
+    public SocketDispatcher(TransportOptions options) {
+        this.options = options;
+        messageHandlers[MessageParser.MESSAGE_PONG] = (message, args, argCount) ->
+                latencyHistogram.record(System.nanoTime() - args[0]);
+        messageHandlers[MessageParser.MESSAGE_RESYNC] = (message, args, argCount) -> state.requestKeyframe();
+        messageHandlers[MessageParser.MESSAGE_RATE] = (message, args, argCount) -> applyRequestedRate(args[0]);
+        messageHandlers[MessageParser.MESSAGE_TIME] = (message, args, argCount) -> recordClockSample(args[0], args[1], args[2]);
+        _encoder = new Thread("SocketDispatcher-encoder") {
+            @Override
+            public void run() {
+                encode_loop();
+            }
+        };
+        _encoder.start();
+    }
+
+    /**
+     * Connect to another server. The current connection to the main server, if any, is closed.
+     *
+     * @param host The host of the server, or null to disconnect.
+     */
+    public void setEndpoint(String host, int port) {
+        final Endpoint previous;
+        final Endpoint next;
+        synchronized (endpointLock) {
+            previous = primary;
+            if (_closed || (host == null ? previous == null : previous != null && previous.matches(host, port))) {
+                return;
+            }
+            next = host == null ? null : new Endpoint(host, port, false);
+            primary = next;
+            updateTargets();
+        }
+        if (previous != null) {
+            previous.remove();
+        }
+        if (next != null) {
+            next.start();
+        }
+        updateState();
+    }
+
+    /**
+     * Keep a connection open to these servers, and switch to them, in order, when the main server fails.
+     * The dispatcher switches back to the main server as soon as it is connected again. The gamepad state
+     * is replayed to the server that takes over, so that it is in sync from the next update.
+     *
+     * @param endpoints The servers, in order of preference, replacing the previous ones. Empty to disable failover.
+     */
+    public void setStandbyEndpoints(List<InetSocketAddress> endpoints) {
+        replaceEndpoints(standbys, endpoints, false);
+    }
+
+    /**
+     * Also send the state of the gamepad to these servers. Each of them has its own connection,
+     * kept open if it was already mirrored. Their state is not reported to the listener.
+     *
+     * @param endpoints The servers, replacing the previous ones. Empty to stop mirroring.
+     */
+    public void setMirrorEndpoints(Collection<InetSocketAddress> endpoints) {
+        replaceEndpoints(mirrors, endpoints, true);
+    }
+
+    /// The connections to the servers that were already in the list are kept.
+    private void replaceEndpoints(List<Endpoint> current, Collection<InetSocketAddress> endpoints, boolean mirror) {
+        final List<Endpoint> removed;
+        final List<Endpoint> added = new ArrayList<>();
+        synchronized (endpointLock) {
+            if (_closed) {
+                return;
+            }
+            // Copied under the lock: a concurrent call could otherwise make this call remove an endpoint it keeps
+            final List<Endpoint> previous = new ArrayList<>(current);
+            removed = new ArrayList<>(previous);
+            current.clear();
+            for (InetSocketAddress address : endpoints) {
+                Endpoint endpoint = find(previous, address.getHostString(), address.getPort());
+                if (endpoint == null) {
+                    endpoint = new Endpoint(address.getHostString(), address.getPort(), mirror);
+                    added.add(endpoint);
+                }
+                if (!current.contains(endpoint)) {
+                    current.add(endpoint);
+                }
+            }
+            removed.removeAll(current);
+            updateTargets();
+        }
+        for (Endpoint endpoint : removed) {
+            endpoint.remove();
+        }
+        for (Endpoint endpoint : added) {
+            endpoint.start();
+        }
+        updateState();
+    }
+
+    private static Endpoint find(List<Endpoint> endpoints, String host, int port) {
+        for (Endpoint endpoint : endpoints) {
+            if (endpoint.matches(host, port)) {
+                return endpoint;
+            }
+        }
+        return null;
+    }
+
+    /// Called with the endpoint lock held. The endpoints that can take over come first, in order.
+    private void updateTargets() {
+        final Endpoint[] updated = new Endpoint[(primary != null ? 1 : 0) + standbys.size() + mirrors.size()];
+        int i = 0;
+        if (primary != null) {
+            updated[i++] = primary;
+        }
+        for (Endpoint standby : standbys) {
+            updated[i++] = standby;
+        }
+        for (Endpoint mirror : mirrors) {
+            updated[i++] = mirror;
+        }
+        targets = updated;
+    }
+
+    public void setConnectionStateListener(ConnectionStateListener listener) {
+        this.stateListener = listener;
+    }
+
+    /**
+     * Handle a type of message of the servers, in place of the default handler. Handlers are called
+     * from the reader threads, one per server. {@code QUIT} and {@code PROTO} are handled by
+     * the connection, and the messages of mirrors are dropped, except {@code RESYNC}.
+     *
+     * @param message One of the MESSAGE_ constants of {@link MessageParser}.
+     * @param handler The handler, or null to ignore the message.
+     */
+    public synchronized void setMessageHandler(int message, ServerMessageHandler handler) {
+        if (message == MessageParser.MESSAGE_QUIT || message == MessageParser.MESSAGE_PROTO) {
+            throw new IllegalArgumentException("Handled by the connection: " + message);
+        }
+        final ServerMessageHandler[] updated = messageHandlers.clone();
+        updated[message] = handler;
+        messageHandlers = updated;
+    }
+
+    private void handleMessage(Endpoint endpoint, int message, long[] args, int argCount) {
+        if (endpoint.mirror && message != MessageParser.MESSAGE_RESYNC) {
+            // Mirrors record the gamepad, they do not drive it: only the main server measures the latency
+            return;
+        }
+        if (message == MessageParser.MESSAGE_TIME && endpoint != clockEndpoint) {
+            // Late answer of the previous server
+            return;
+        }
+        final ServerMessageHandler handler = messageHandlers[message];
+        if (handler != null) {
+            handler.onServerMessage(message, args, argCount);
+        }
+    }
+
+    /**
+     * The dispatcher is connected while any server that can take over is. Otherwise, its state is the state
+     * of the first of them, usually the main server.
+     */
+    private void updateState() {
+        Endpoint first = null;
+        for (Endpoint endpoint : targets) {
+            if (endpoint.mirror) {
+                break;
+            }
+            if (endpoint.isConnected()) {
+                setState(STATE_CONNECTED, 0);
+                return;
+            }
+            if (first == null) {
+                first = endpoint;
+            }
+        }
+        if (first == null) {
+            setState(_closed ? STATE_CLOSED : STATE_DISCONNECTED, 0);
+        } else {
+            setState(first.endpointState, first.failedAttempts);
+        }
+    }
+
+    private void setState(int newState, int failedAttempts) {
+        // Serialized, so that the listener never sees a state after STATE_CLOSED
+        synchronized (stateLock) {
+            if (_state == STATE_CLOSED || (_state == newState && reportedFailedAttempts == failedAttempts)) {
+                return;
+            }
+            _state = newState;
+            reportedFailedAttempts = failedAttempts;
+            final ConnectionStateListener listener = stateListener;
+            if (listener != null) {
+                listener.onConnectionStateChanged(newState, failedAttempts);
+            }
+        }
+    }
+
+    /// Full jitter: a random delay between half and all of the exponential backoff.
+    private static long backoffDelay(int failedAttempts) {
+        final long ceiling = Math.min(BACKOFF_MAX_MS, BACKOFF_BASE_MS << Math.min(failedAttempts - 1, 16));
+        return ceiling / 2 + ThreadLocalRandom.current().nextLong(ceiling / 2 + 1);
+    }
+
+    private void encode_loop() {
+        final int[] controls = new int[DRAIN_CAPACITY];
+        final int[] values = new int[DRAIN_CAPACITY];
+        final SharedFrame[] frames = new SharedFrame[FORMAT_COUNT];
+        while (!_closed) {
+            boolean backlog = false;
+            for (Endpoint endpoint : targets) {
+                backlog |= endpoint.flushOverflow(controls, values);
+            }
+            final int count;
+            try {
+                // Checks the writers that fall behind again, even if the gamepad is idle meanwhile
+                count = backlog
+                        ? state.take(controls, values, System.nanoTime() + HEARTBEAT_INTERVAL_NANOS)
+                        : state.take(controls, values);
+            } catch (InterruptedException _ex) {
+                continue;
+            }
+            if (count == 0) {
+                continue;
+            }
+            final InputRecorder currentRecorder = recorder;
+            if (currentRecorder != null) {
+                try {
+                    currentRecorder.record(state.getDrainedEventTime(), controls, values, count);
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                    recorder = null;
+                }
+            }
+
+            Endpoint active = null;
+            for (Endpoint endpoint : targets) {
+                if (!endpoint.isConnected()) {
+                    continue;
+                }
+                if (!endpoint.mirror) {
+                    // Only the first connected server of the failover list is active, the others stand by
+                    if (active != null) {
+                        continue;
+                    }
+                    active = endpoint;
+                }
+                final int format = endpoint.format;
+                if (frames[format] == null) {
+                    frames[format] = encode(format, controls, values, count);
+                }
+                endpoint.offer(frames[format], format, controls, values, count);
+            }
+            if (active == null) {
+                // Replayed by the keyframe sent to the next active server
+                state.getCounters().recordDropped(count);
+            }
+            synchronizeClock(active);
+            if (frames[FORMAT_DATAGRAM] == null) {
+                // Keep the full state up to date for the next datagram endpoint
+                encodeDatagrams(null, controls, values, count, NO_TIMESTAMP);
+            }
+            for (int format = 0; format < FORMAT_COUNT; format++) {
+                if (frames[format] != null) {
+                    frames[format].release();
+                    frames[format] = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Start estimating the clock of the active server when it changes, then refresh the estimate.
+     * Called by the encoder after each cycle, since timestamps are only needed while input is sent.
+     */
+    private void synchronizeClock(Endpoint active) {
+        if (active != clockEndpoint) {
+            // Another server, or another connection: another clock
+            clockEndpoint = active;
+            clock.reset();
+            unansweredClockRequests.set(0);
+            if (active != null) {
+                requestClockSample();
+            }
+        } else if (active != null && System.nanoTime() - nextClockSyncNanos >= 0
+                && (clock.hasEstimate() || unansweredClockRequests.get() < ClockEstimator.SAMPLES)) {
+            requestClockSample();
+        }
+    }
+
+    private void requestClockSample() {
+        nextClockSyncNanos = System.nanoTime() + CLOCK_SYNC_TIMEOUT_NANOS;
+        unansweredClockRequests.incrementAndGet();
+        state.pushCommand(ControllerState.COMMAND_TIME);
+    }
+
+    /// Called by the reader of the active server. Requests follow each other until the estimate has its samples.
+    private void recordClockSample(long clientTime, long receiveTime, long transmitTime) {
+        clock.record(clientTime, receiveTime, transmitTime, TimeUnit.NANOSECONDS.toMicros(System.nanoTime()));
+        unansweredClockRequests.set(0);
+        if (clock.getSampleCount() < ClockEstimator.SAMPLES) {
+            requestClockSample();
+        } else {
+            nextClockSyncNanos = System.nanoTime() + CLOCK_SYNC_INTERVAL_NANOS;
+        }
+    }
+
+    /// @return The time of the input of the updates on the clock of the server, or NO_TIMESTAMP if the frame has no timestamp.
+    private long frameTimestamp(int[] controls, int count) {
+        if (!clock.hasEstimate()) {
+            return NO_TIMESTAMP;
+        }
+        for (int i = 0; i < count; i++) {
+            if (ControllerState.getControl(controls[i]) < ControllerState.CONTROL_COUNT) {
+                return clock.toServerMicros(TimeUnit.NANOSECONDS.toMicros(state.getDrainedEventTime()));
+            }
+        }
+        // Only commands
+        return NO_TIMESTAMP;
+    }
+
+    private SharedFrame encode(int format, int[] controls, int[] values, int count) {
+        final SharedFrame frame = framePool.acquire();
+        final ByteBuffer out = frame.getBuffer();
+        final long timestamp = frameTimestamp(controls, count);
+        if (format == FORMAT_DATAGRAM) {
+            encodeDatagrams(out, controls, values, count, timestamp);
+        } else {
+            final WireCodec codec = format == FORMAT_BINARY ? binaryCodec : textCodec;
+            if (timestamp != NO_TIMESTAMP) {
+                codec.encodeTimestamp(out, timestamp);
+            }
+            for (int i = 0; i < count; i++) {
+                if (controls[i] == ControllerState.COMMAND_PING) {
+                    codec.encodePing(out, probeToken());
+                } else if (controls[i] == ControllerState.COMMAND_TIME) {
+                    codec.encodeTimeRequest(out, TimeUnit.NANOSECONDS.toMicros(System.nanoTime()));
+                } else {
+                    codec.encode(out, controls[i], values[i]);
+                }
+            }
+        }
+        frame.seal(count);
+        return frame;
+    }
+
+    /// The time, as the token of a latency probe.
+    private static long probeToken() {
+        return System.nanoTime() & ~HEARTBEAT_TOKEN_BIT;
+    }
+
+    /**
+     * Apply the updates to the full state of the pads, and encode the datagrams carrying it.
+     *
+     * @param out       The buffer receiving the datagrams, one after the other, or null to only apply the updates.
+     * @param timestamp The time of the input on the clock of the server, or NO_TIMESTAMP to send untimed datagrams.
+     */
+    private void encodeDatagrams(ByteBuffer out, int[] controls, int[] values, int count, long timestamp) {
+        // Bit p is set if pad p changed; byte p holds the buttons of pad p that changed
+        int changedPads = 0;
+        int changedButtons = 0;
+        for (int i = 0; i < count; i++) {
+            final int pad = ControllerState.getPad(controls[i]);
+            final int control = ControllerState.getControl(controls[i]);
+            if (ControllerState.isAxis(control)) {
+                datagramAxes[pad][control] = values[i];
+                changedPads |= 1 << pad;
+            } else if (control < ControllerState.CONTROL_COUNT) {
+                final int mask = StatePacket.buttonMask(control);
+                if ((changedButtons >>> (8 * pad) & mask) != 0) {
+                    // Send the previous edge first, so that a short press is not missed
+                    encodeState(out, pad, timestamp);
+                    changedButtons &= ~(0xFF << (8 * pad));
+                }
+                datagramButtons[pad] = values[i] != 0 ? datagramButtons[pad] | mask : datagramButtons[pad] & ~mask;
+                changedButtons |= mask << (8 * pad);
+                changedPads |= 1 << pad;
+            } else if (control == ControllerState.COMMAND_PING && out != null) {
+                StatePacket.encodeProbe(out, StatePacket.TYPE_PING, probeToken());
+            } else if (control == ControllerState.COMMAND_TIME && out != null) {
+                StatePacket.encodeProbe(out, StatePacket.TYPE_TIME, TimeUnit.NANOSECONDS.toMicros(System.nanoTime()));
+            }
+        }
+        for (int pad = 0; pad < ControllerState.MAX_PADS; pad++) {
+            if ((changedPads & (1 << pad)) != 0) {
+                encodeState(out, pad, timestamp);
+            }
+        }
+    }
+
+    private void encodeState(ByteBuffer out, int pad, long timestamp) {
+        if (out == null) {
+            return;
+        }
+        final int redundancy = options.getDatagramRedundancy();
+        if (redundancy > 0) {
+            encodeRedundantState(out, pad, timestamp, redundancy);
+        } else if (timestamp == NO_TIMESTAMP) {
+            StatePacket.encodePad(out, pad, datagramSequence.getAndIncrement(), datagramAxes[pad], datagramButtons[pad]);
+        } else {
+            StatePacket.encodeTimedPad(out, pad, datagramSequence.getAndIncrement(), datagramAxes[pad], datagramButtons[pad], timestamp);
+        }
+    }
+
+    /// Encode the state of the pad followed by its previous states, then add it to them.
+    private void encodeRedundantState(ByteBuffer out, int pad, long timestamp, int redundancy) {
+        final int count = stateCounts[pad];
+        final int historyCount = Math.min(redundancy, historyLengths[pad]);
+        StatePacket.encodeRedundantPad(out, pad, datagramSequence.getAndIncrement(), datagramAxes[pad], datagramButtons[pad],
+                timestamp == NO_TIMESTAMP ? StatePacket.NO_EVENT_TIME : timestamp, clientId, count, historyCount);
+        // The count wraps around at 2^16, a multiple of the size of the ring
+        final int mask = StatePacket.MAX_REDUNDANCY - 1;
+        for (int i = 1; i <= historyCount; i++) {
+            final int slot = (count - i) & mask;
+            StatePacket.encodeHistoryEntry(out, historyAxes[pad][slot], historyButtons[pad][slot]);
+        }
+        System.arraycopy(datagramAxes[pad], 0, historyAxes[pad][count & mask], 0, ControllerState.AXIS_COUNT);
+        historyButtons[pad][count & mask] = datagramButtons[pad];
+        historyLengths[pad] = Math.min(StatePacket.MAX_REDUNDANCY, historyLengths[pad] + 1);
+        stateCounts[pad] = (count + 1) & 0xFFFF;
+    }
+
+    /**
+     * A server receiving the state of the gamepad, with its own connection.
+     * One thread connects and writes, the other reads, for every connection to the server.
+     */
+    private class Endpoint {
+
+        private final String host;
+        private final int port;
+
+        private final Thread _thread;
+        private final Thread _reader;
+
+        /// Mirrors receive every update. The others only receive them while they are the active server.
+        final boolean mirror;
+
+        private volatile boolean removed;
+        private volatile int endpointState = STATE_CONNECTING;
+        private volatile int failedAttempts;
+        /// Wire format of the frames sent to the current connection.
+        private volatile int format;
+        /// Kept across connections, since the server and the network stay the same.
+        final RttEstimator rtt = new RttEstimator();
+
+        /// Hands the current session over to the reader.
+        private final Object sessionLock = new Object();
+        private Session session;
+
+        // Frames waiting to be written to the current session, guarded by this
+        private Session outboxSession;
+        private final SharedFrame[] outbox = new SharedFrame[OUTBOX_CAPACITY];
+        private int outboxHead;
+        private int outboxCount;
+        /// Updates that did not fit in the outbox, queued once the writer makes room. Also guarded by this.
+        private final PendingSnapshot overflow = new PendingSnapshot();
+
+        Endpoint(String host, int port, boolean mirror) {
+            this.host = host;
+            this.port = port;
+            this.mirror = mirror;
+            _thread = new Thread("SocketDispatcher-" + host + ":" + port) {
+                @Override
+                public void run() {
+                    main_loop();
+                }
+            };
+            _reader = new Thread("SocketDispatcher-" + host + ":" + port + "-reader") {
+                @Override
+                public void run() {
+                    read_loop();
+                }
+            };
+        }
+
+        void start() {
+            _thread.start();
+            _reader.start();
+        }
+
+        boolean matches(String host, int port) {
+            return this.host.equals(host) && this.port == port;
+        }
+
+        boolean isConnected() {
+            return endpointState == STATE_CONNECTED;
+        }
+
+        /// Stops the threads, after the server is told that the client leaves.
+        void remove() {
+            removed = true;
+            // Leaves the current session, connection attempt or backoff
+            _thread.interrupt();
+            synchronized (sessionLock) {
+                sessionLock.notifyAll();
+            }
+        }
+
+        /**
+         * Ends the current session if its writer has been blocked on a single write for longer than the timeout
+         * of the server: the server stopped reading, so the heartbeats cannot tell. The endpoint reconnects after
+         * a backoff, and a standby takes over meanwhile. A backlog that the writer works through is not a stall.
+         */
+        void failIfWriteBlocked(long now) {
+            final Session current;
+            synchronized (sessionLock) {
+                current = session;
+            }
+            if (current != null) {
+                current.stallIfWriteBlocked(now);
+            }
+        }
+
+        private void setEndpointState(int newState, int failedAttempts) {
+            this.failedAttempts = failedAttempts;
+            endpointState = newState;
+            if (!mirror && !removed) {
+                updateState();
+            }
+        }
+
+        private void main_loop() {
+            int failures = 0;
+            int failedSessions = 0;
+            while (!removed) {
+                // Interruptions only tell the thread to look at the flags again
+                Thread.interrupted();
+
+                setEndpointState(STATE_CONNECTING, failures);
+                final Session newSession;
+                try {
+                    newSession = options.getTransport() == TransportOptions.TRANSPORT_UDP
+                            ? new DatagramSession(this)
+                            : new StreamSession(this);
+                } catch (ClosedByInterruptException _ex) {
+                    continue;
+                } catch (IOException ex) {
+                    if (removed) {
+                        break;
+                    }
+                    ex.printStackTrace();
+                    waitBeforeRetry(++failures);
+                    continue;
+                }
+
+                failures = 0;
+                if (clockEndpoint == this) {
+                    // The server may have restarted with another clock: the encoder estimates it again
+                    // once it sends to the new connection
+                    clockEndpoint = null;
+                }
+                format = newSession.initialFormat();
+                openOutbox(newSession);
+                synchronized (sessionLock) {
+                    session = newSession;
+                    sessionLock.notifyAll();
+                }
+                setEndpointState(STATE_CONNECTED, 0);
+                // The server may have missed anything sent before
+                state.requestKeyframe();
+
+                newSession.run();
+
+                endpointState = STATE_CONNECTING;
+                synchronized (sessionLock) {
+                    session = null;
+                }
+                openOutbox(null);
+                if (!mirror) {
+                    // Replays the state to the next active server, if this one was active
+                    state.requestKeyframe();
+                }
+                if (newSession.failed && !removed) {
+                    // The server accepts connections but does not keep up, or never answered: do not take over again right away
+                    waitBeforeRetry(++failedSessions);
+                } else {
+                    // The next attempt is immediate: most losses are short network blips
+                    failedSessions = 0;
+                }
+            }
+        }
+
+        private void waitBeforeRetry(int failures) {
+            setEndpointState(STATE_WAITING, failures);
+            try {
+                Thread.sleep(backoffDelay(failures));
+            } catch (InterruptedException _ex) {
+                // Removed
+            }
+        }
+
+        /// Reads from each session in turn, until the endpoint is removed.
+        private void read_loop() {
+            Session last = null;
+            while (true) {
+                final Session current;
+                synchronized (sessionLock) {
+                    while (!removed && (session == null || session == last)) {
+                        try {
+                            sessionLock.wait();
+                        } catch (InterruptedException _ex) {
+                            return;
+                        }
+                    }
+                    if (removed && (session == null || session == last)) {
+                        return;
+                    }
+                    current = session;
+                }
+                current.read();
+                current.end();
+                last = current;
+            }
+        }
+
+        /// Frames encoded for the previous session are dropped.
+        synchronized void openOutbox(Session current) {
+            clearOutbox();
+            outboxSession = current;
+        }
+
+        /**
+         * Queue the frame for the writer. Once the outbox is full, the updates of the frame, which were drained
+         * from the state, are merged into the snapshot that waits for room instead, so that they stay in order.
+         * The server thus needs no keyframe once it catches up.
+         */
+        synchronized void offer(SharedFrame frame, int frameFormat, int[] controls, int[] values, int count) {
+            if (outboxSession == null || frameFormat != format) {
+                // Between two sessions: the next one starts with a keyframe
+                return;
+            }
+            if (outboxCount == OUTBOX_CAPACITY || !overflow.isEmpty()) {
+                // The next datagram carries the whole state anyway
+                final int dropped = frameFormat == FORMAT_DATAGRAM ? count : overflow.merge(controls, values, count);
+                if (!mirror) {
+                    state.getCounters().recordDropped(dropped);
+                }
+                return;
+            }
+            enqueue(frame);
+        }
+
+        private void enqueue(SharedFrame frame) {
+            frame.retain();
+            outbox[(outboxHead + outboxCount) % OUTBOX_CAPACITY] = frame;
+            outboxCount++;
+            notifyAll();
+        }
+
+        /**
+         * Called by the encoder before each cycle: queues the merged updates, as frames, while the outbox has room.
+         * If there is none, checks that the writer still makes progress.
+         *
+         * @return true if updates are still waiting for room.
+         */
+        boolean flushOverflow(int[] controls, int[] values) {
+            while (true) {
+                final int count;
+                final int frameFormat;
+                synchronized (this) {
+                    if (overflow.isEmpty()) {
+                        return false;
+                    }
+                    if (outboxCount == OUTBOX_CAPACITY) {
+                        break;
+                    }
+                    count = overflow.drain(controls, values);
+                    frameFormat = format;
+                }
+                final SharedFrame frame = encode(frameFormat, controls, values, count);
+                try {
+                    synchronized (this) {
+                        if (outboxSession != null && frameFormat == format) {
+                            enqueue(frame);
+                        }
+                    }
+                } finally {
+                    frame.release();
+                }
+            }
+            failIfWriteBlocked(System.nanoTime());
+            return true;
+        }
+
+        /// The next frame to write, or null once the session has ended or at the deadline, on the clock of {@link System#nanoTime()}.
+        synchronized SharedFrame take(Session current, long deadlineNanos) throws InterruptedException {
+            long remaining;
+            while (outboxCount == 0 && !current.isEnded() && (remaining = deadlineNanos - System.nanoTime()) > 0) {
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+            if (current.isEnded() || outboxCount == 0) {
+                return null;
+            }
+            final SharedFrame frame = outbox[outboxHead];
+            outbox[outboxHead] = null;
+            outboxHead = (outboxHead + 1) % OUTBOX_CAPACITY;
+            outboxCount--;
+            if (!overflow.isEmpty()) {
+                // Room for the merged updates: wakes the encoder up
+                state.abortTake();
+            }
+            return frame;
+        }
+
+        synchronized void clearOutbox() {
+            final int merged = overflow.clear();
+            if (!mirror) {
+                state.getCounters().recordDropped(merged);
+            }
+            while (outboxCount > 0) {
+                if (!mirror) {
+                    state.getCounters().recordDropped(outbox[outboxHead].getUpdateCount());
+                }
+                outbox[outboxHead].release();
+                outbox[outboxHead] = null;
+                outboxHead = (outboxHead + 1) % OUTBOX_CAPACITY;
+                outboxCount--;
+            }
+        }
+
+        synchronized void wakeWriter() {
+            notifyAll();
+        }
+
+    }
+
+    /**
+     * A connection to a server. The writer of the endpoint calls {@link #run()}, its reader calls {@link #read()},
+     * and either of them can end it.
+     */
+    private abstract class Session implements ServerMessageHandler {
+
+        final Endpoint endpoint;
+        private final AtomicBoolean ended = new AtomicBoolean();
+        /// Set when the session is ended because the server failed its health check.
+        volatile boolean failed;
+        /// Set when the reader receives the first message of the server.
+        private volatile boolean answered;
+        /// Allocated once per connection, only used by the reader.
+        final MessageParser parser = new MessageParser();
+
+        /// When the reader last received a message, on the clock of {@link System#nanoTime()}.
+        private volatile long lastReceivedNanos = System.nanoTime();
+
+        // Only used by the writer
+        private long nextHeartbeatNanos;
+        private int heartbeatCount;
+        /// First heartbeat sent since the last message received, if it was sent after.
+        private long unansweredHeartbeatNanos = NO_HEARTBEAT;
+        /// Heartbeats sent since the last message received, while awaiting an answer.
+        private int unansweredHeartbeats;
+        /// When the writer started the write in progress, or NO_WRITE. Read by the encoder.
+        private volatile long writeStartNanos = NO_WRITE;
+
+        Session(Endpoint endpoint) {
+            this.endpoint = endpoint;
+        }
+
+        /// Writes the frames of the endpoint until the session ends, with the heartbeats in between.
+        final void run() {
+            try {
+                nextHeartbeatNanos = System.nanoTime();
+                while (true) {
+                    final long now = System.nanoTime();
+                    if (isStalled(now)) {
+                        stall(now);
+                        break;
+                    }
+                    if (now - nextHeartbeatNanos >= 0) {
+                        heartbeat(now);
+                    }
+                    final SharedFrame frame = endpoint.take(this, watchdogDeadline());
+                    if (frame == null) {
+                        if (isEnded()) {
+                            break;
+                        }
+                        continue;
+                    }
+                    try {
+                        writeStartNanos = System.nanoTime();
+                        write(frame);
+                        writeStartNanos = NO_WRITE;
+                        if (!endpoint.mirror) {
+                            state.getCounters().recordSent(frame.getUpdateCount());
+                        }
+                    } finally {
+                        frame.release();
+                    }
+                }
+            } catch (InterruptedException _ex) {
+                // Closed by the user, or the endpoint changed
+            } catch (IOException ex) {
+                if (!ended.get() && !endpoint.removed) {
+                    ex.printStackTrace();
+                }
+            } finally {
+                if (!ended.get()) {
+                    try {
+                        writeQuit();
+                    } catch (IOException ex) {
+                        // The connection is already lost
+                    }
+                }
+                end();
+            }
+        }
+
+        /// Closes the connection. Also unblocks the reader and the writer.
+        final void end() {
+            if (ended.compareAndSet(false, true)) {
+                try {
+                    close();
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                }
+                endpoint.wakeWriter();
+            }
+        }
+
+        final boolean isEnded() {
+            return ended.get();
+        }
+
+        private boolean isAwaitingAnswer() {
+            return unansweredHeartbeatNanos != NO_HEARTBEAT && lastReceivedNanos - unansweredHeartbeatNanos < 0;
+        }
+
+        /// Only servers that answered heartbeats before can stall: the others may not support them.
+        private boolean isStalled(long now) {
+            return endpoint.rtt.hasEstimate() && isAwaitingAnswer() && unansweredHeartbeats >= stallProbes()
+                    && now - unansweredHeartbeatNanos > endpoint.rtt.getTimeoutNanos();
+        }
+
+        /// Time of the next heartbeat, or of the timeout of the unanswered one if sooner.
+        private long watchdogDeadline() {
+            if (endpoint.rtt.hasEstimate() && isAwaitingAnswer()) {
+                final long timeout = unansweredHeartbeatNanos + endpoint.rtt.getTimeoutNanos() + 1;
+                if (timeout - nextHeartbeatNanos < 0) {
+                    return timeout;
+                }
+            }
+            return nextHeartbeatNanos;
+        }
+
+        private void heartbeat(long now) throws IOException {
+            nextHeartbeatNanos = now + HEARTBEAT_INTERVAL_NANOS;
+            if (!endpoint.rtt.hasEstimate() && heartbeatCount >= HEARTBEAT_PROBES) {
+                // The server does not answer them
+                return;
+            }
+            if (!isAwaitingAnswer()) {
+                unansweredHeartbeatNanos = now;
+                unansweredHeartbeats = 0;
+            }
+            unansweredHeartbeats++;
+            heartbeatCount++;
+            writeStartNanos = now;
+            writeHeartbeat(now | HEARTBEAT_TOKEN_BIT);
+            writeStartNanos = NO_WRITE;
+        }
+
+        /**
+         * Like {@link #stall(long)}, if the writer has been blocked on a single write for longer than the timeout
+         * of the server. The session fails: a server that stops reading does not keep up.
+         */
+        final void stallIfWriteBlocked(long now) {
+            final long start = writeStartNanos;
+            if (start == NO_WRITE || now - start <= endpoint.rtt.getTimeoutNanos()) {
+                return;
+            }
+            final ConnectionStateListener listener = stateListener;
+            if (listener != null && !endpoint.mirror) {
+                listener.onConnectionStalled(endpoint.host, endpoint.port, TimeUnit.NANOSECONDS.toMillis(now - start));
+            }
+            failed = true;
+            end();
+        }
+
+        /**
+         * Tell the listener, and end the session without writing to the server anymore, since the writes may block.
+         * The session only fails if the server never answered on it: a server that did was alive, so the endpoint
+         * reconnects without backing off.
+         */
+        private void stall(long now) {
+            final ConnectionStateListener listener = stateListener;
+            if (listener != null && !endpoint.mirror) {
+                listener.onConnectionStalled(endpoint.host, endpoint.port, TimeUnit.NANOSECONDS.toMillis(now - lastReceivedNanos));
+            }
+            failed = !answered;
+            end();
+        }
+
+        /// Unanswered heartbeats in a row after which the session can stall.
+        int stallProbes() {
+            return 1;
+        }
+
+        abstract int initialFormat();
+
+        abstract void write(SharedFrame frame) throws IOException;
+
+        abstract void writeQuit() throws IOException;
+
+        /// Write a latency probe with the token, which the server answers.
+        abstract void writeHeartbeat(long token) throws IOException;
+
+        /// Reads the messages of the server until the connection is closed or the server quits.
+        abstract void read();
+
+        abstract void close() throws IOException;
+
+        /// Called by the reader, for each message of the server.
+        @Override
+        public void onServerMessage(int message, long[] args, int argCount) {
+            final long now = System.nanoTime();
+            lastReceivedNanos = now;
+            answered = true;
+            if (message == MessageParser.MESSAGE_PONG) {
+                endpoint.rtt.record(now - args[0]);
+                if ((args[0] & HEARTBEAT_TOKEN_BIT) != 0) {
+                    return;
+                }
+            }
+            if (message == MessageParser.MESSAGE_PROTO) {
+                switchProtocol((int) args[0]);
+            } else if (message != MessageParser.MESSAGE_QUIT) {
+                handleMessage(endpoint, message, args, argCount);
+            }
+        }
+
+        /// @param protocol One of the PROTOCOL_ constants of {@link MessageParser}.
+        void switchProtocol(int protocol) {
+            // Only streams have several protocols
+        }
+
+    }
+
+    private class StreamSession extends Session {
+
+        private final SocketChannel channel;
+        // Allocated once per connection: copying and writing do not allocate
+        private final ByteBuffer output = ByteBuffer.allocateDirect(FRAME_SIZE);
+
+        /// Encodes the messages of the session itself. Replaced by the reader when the server accepts the binary protocol.
+        private volatile WireCodec sessionCodec = new TextCodec();
+
+        StreamSession(Endpoint endpoint) throws IOException {
+            super(endpoint);
+            channel = SocketChannel.open();
+            try {
+                applyOptions(channel, options);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, options.isTcpNoDelay());
+                channel.socket().connect(new InetSocketAddress(endpoint.host, endpoint.port), options.getConnectTimeoutMillis());
+                if (options.isBinaryProtocolAllowed()) {
+                    output.put(HANDSHAKE);
+                    writeFully();
+                }
+            } catch (IOException ex) {
+                channel.close();
+                throw ex;
+            }
+        }
+
+        @Override
+        int initialFormat() {
+            return FORMAT_TEXT;
+        }
+
+        @Override
+        void write(SharedFrame frame) throws IOException {
+            frame.copyTo(output);
+            writeFully();
+        }
+
+        @Override
+        void writeQuit() throws IOException {
+            output.clear();
+            sessionCodec.encodeQuit(output);
+            writeFully();
+        }
+
+        @Override
+        void writeHeartbeat(long token) throws IOException {
+            sessionCodec.encodePing(output, token);
+            writeFully();
+        }
+
+        /// Writes the content of the buffer, which is then cleared.
+        private void writeFully() throws IOException {
+            output.flip();
+            while (output.hasRemaining()) {
+                writtenBytes.addAndGet(channel.write(output));
+                writeCount.incrementAndGet();
+            }
+            output.clear();
+        }
+
+        @Override
+        void read() {
+            final ByteBuffer input = parser.getInput();
+            try {
+                while (channel.read(input) >= 0) {
+                    if (!parser.parseLines(this)) {
+                        break;
+                    }
+                }
+            } catch (IOException ex) {
+                // Removing the endpoint interrupts the writer, which may close the channel before the session ends
+                if (!isEnded() && !endpoint.removed) {
+                    ex.printStackTrace();
+                }
+            }
+        }
+
+        /// The server accepts the binary protocol by echoing the handshake, which is a PROTO message.
+        @Override
+        void switchProtocol(int protocol) {
+            final int newFormat;
+            if (protocol == MessageParser.PROTOCOL_BINARY && options.isBinaryProtocolAllowed()) {
+                newFormat = FORMAT_BINARY;
+            } else if (protocol == MessageParser.PROTOCOL_TEXT) {
+                newFormat = FORMAT_TEXT;
+            } else {
+                return;
+            }
+            if (endpoint.format == newFormat) {
+                return;
+            }
+            sessionCodec = newFormat == FORMAT_BINARY ? new BinaryCodec() : new TextCodec();
+            endpoint.format = newFormat;
+            // The frames encoded in the previous format while switching are dropped
+            state.requestKeyframe();
+        }
+
+        @Override
+        void close() throws IOException {
+            channel.close();
+        }
+
+    }
+
+    private class DatagramSession extends Session {
+
+        private final DatagramChannel channel;
+        private final ByteBuffer output = ByteBuffer.allocateDirect(FRAME_SIZE);
+
+        DatagramSession(Endpoint endpoint) throws IOException {
+            super(endpoint);
+            channel = DatagramChannel.open();
+            try {
+                applyOptions(channel, options);
+                channel.connect(new InetSocketAddress(endpoint.host, endpoint.port));
+            } catch (IOException ex) {
+                channel.close();
+                throw ex;
+            }
+        }
+
+        @Override
+        int initialFormat() {
+            return FORMAT_DATAGRAM;
+        }
+
+        @Override
+        int stallProbes() {
+            return DATAGRAM_STALL_PROBES;
+        }
+
+        /// Sends the datagrams of the frame one by one.
+        @Override
+        void write(SharedFrame frame) throws IOException {
+            output.clear();
+            frame.copyTo(output);
+            final int end = output.position();
+            output.flip();
+            while (output.position() < end) {
+                output.limit(output.position() + StatePacket.sizeAt(output, output.position()));
+                send();
+                output.limit(end);
+            }
+        }
+
+        @Override
+        void writeQuit() throws IOException {
+            output.clear();
+            // Axes are irrelevant: the receiver forgets the client
+            StatePacket.encode(output, StatePacket.TYPE_QUIT, datagramSequence.getAndIncrement(), NO_AXES, 0);
+            output.flip();
+            send();
+        }
+
+        @Override
+        void writeHeartbeat(long token) throws IOException {
+            output.clear();
+            StatePacket.encodeProbe(output, StatePacket.TYPE_PING, token);
+            output.flip();
+            send();
+        }
+
+        private void send() throws IOException {
+            try {
+                writtenBytes.addAndGet(channel.write(output));
+            } catch (PortUnreachableException ex) {
+                // No server is listening on the port: back off, since connecting again always succeeds
+                failed = true;
+                end();
+                throw ex;
+            }
+            writeCount.incrementAndGet();
+        }
+
+        /// Waits for the server to quit, or for the network to report that nobody is listening.
+        @Override
+        void read() {
+            final ByteBuffer input = ByteBuffer.allocate(StatePacket.MAX_SIZE);
+            try {
+                while (true) {
+                    input.clear();
+                    channel.read(input);
+                    input.flip();
+                    if (!parser.parseDatagram(input, this)) {
+                        break;
+                    }
+                }
+            } catch (PortUnreachableException ex) {
+                // No server is listening on the port
+                failed = true;
+            } catch (IOException ex) {
+                // Removing the endpoint interrupts the writer, which may close the channel before the session ends
+                if (!isEnded() && !endpoint.removed) {
+                    ex.printStackTrace();
+                }
+            }
+        }
+
+        @Override
+        void close() throws IOException {
+            channel.close();
+        }
+
+    }
+
+    private static void applyOptions(NetworkChannel channel, TransportOptions options) throws IOException {
+        if (options.getSendBufferSize() > 0) {
+            channel.setOption(StandardSocketOptions.SO_SNDBUF, options.getSendBufferSize());
+        }
+        if (options.getTrafficClass() >= 0) {
+            try {
+                channel.setOption(StandardSocketOptions.IP_TOS, options.getTrafficClass());
+            } catch (IOException | UnsupportedOperationException ex) {
+                // Only a hint: some networks and systems do not support it
+            }
+        }
+    }
+
+    /// Stops the threads and closes the connections, if any. The dispatcher cannot be reused.
+    @Override
+    public void close() {
+        stopSnapshots();
+        final Endpoint[] removed;
+        synchronized (endpointLock) {
+            _closed = true;
+            removed = targets;
+            primary = null;
+            standbys.clear();
+            mirrors.clear();
+            updateTargets();
+        }
+        for (Endpoint endpoint : removed) {
+            endpoint.remove();
+        }
+        state.abortTake();
+        state.close();
+        setState(STATE_CLOSED, 0);
+    }
+
+    /**
+     * Send the state of the gamepad as snapshots at a fixed rate, instead of as soon as it changes.
+     * See {@link SnapshotScheduler}.
+     */
+    public synchronized void startSnapshots(int rateHz, long keyframeIntervalMillis) {
+        stopSnapshots();
+        scheduler = new SnapshotScheduler(state, rateHz, keyframeIntervalMillis);
+        this.keyframeIntervalMillis = keyframeIntervalMillis;
+    }
+
+    /**
+     * Default handler of {@code RATE}: the server picks the rate of the snapshots, within the range of
+     * {@link SnapshotScheduler}, or 0 to receive changes right away. The keyframe interval is kept.
+     * The rate stays until the next request, or the next call to {@link #startSnapshots(int, long)}.
+     */
+    private synchronized void applyRequestedRate(long rateHz) {
+        if (rateHz <= 0) {
+            stopSnapshots();
+            return;
+        }
+        final int rate = (int) Math.max(SnapshotScheduler.MIN_RATE_HZ, Math.min(SnapshotScheduler.MAX_RATE_HZ, rateHz));
+        if (scheduler == null || scheduler.getRateHz() != rate) {
+            startSnapshots(rate, keyframeIntervalMillis);
+        }
+    }
+
+    /// Send the state of the gamepad as soon as it changes again.
+    public synchronized void stopSnapshots() {
+        if (scheduler != null) {
+            scheduler.close();
+            scheduler = null;
+        }
+    }
+
+    /// See {@link ControllerState#setAxisQuantization(int, int, int)}.
+    public void setAxisQuantization(int axis, int step, int threshold) {
+        state.setAxisQuantization(axis, step, threshold);
+    }
+
+    /**
+     * Record the updates sent from now on, as they leave the state. The caller closes the recorder,
+     * after replacing it. Recording stops if the recorder fails.
+     *
+     * @param recorder The recorder, or null to stop recording.
+     */
+    public void setRecorder(InputRecorder recorder) {
+        this.recorder = recorder;
+    }
+
+    /**
+     * Dispatch an update given by its control id and raw value, as recorded by an {@link InputRecorder}.
+     *
+     * @param controlId See {@link ControllerState#controlId(int, int)}.
+     * @param value     The value of an axis, or 1 if a button is pressed, 0 otherwise.
+     */
+    public void dispatchUpdate(int controlId, int value) {
+        final int pad = ControllerState.getPad(controlId);
+        final int control = ControllerState.getControl(controlId);
+        if (ControllerState.isAxis(control)) {
+            state.setAxis(pad, control, value);
+        } else if (control < ControllerState.CONTROL_COUNT) {
+            state.pushButton(pad, control, value != 0);
+        }
+    }
+
+    /// See {@link ControllerState#setEdgeCapacity(int, int)}.
+    public void setEdgeCapacity(int capacity, int policy) {
+        state.setEdgeCapacity(capacity, policy);
+    }
+
+    private void dispatchJoystick(int pad, int axis_x, int axis_y, double x, double y, long eventTimeNanos) {
+        state.setAxes(pad, axis_x, (int) (ControllerState.AXIS_MAX * x), axis_y, (int) (ControllerState.AXIS_MAX * y), eventTimeNanos);
+    }
+
+    public void dispatchLeftJoystickPosition(double x, double y) {
+        dispatchLeftJoystickPosition(0, x, y);
+    }
+
+    public void dispatchRightJoystickPosition(double x, double y) {
+        dispatchRightJoystickPosition(0, x, y);
+    }
+
+    /// @param pad The gamepad, from 0 to {@link ControllerState#MAX_PADS} - 1.
+    public void dispatchLeftJoystickPosition(int pad, double x, double y) {
+        dispatchLeftJoystickPosition(pad, x, y, System.nanoTime());
+    }
+
+    /// @param pad The gamepad, from 0 to {@link ControllerState#MAX_PADS} - 1.
+    public void dispatchRightJoystickPosition(int pad, double x, double y) {
+        dispatchRightJoystickPosition(pad, x, y, System.nanoTime());
+    }
+
+    /**
+     * @param eventTimeNanos When the stick moved, on the clock of {@link System#nanoTime()}. On Android, the
+     *                       event time of a {@code MotionEvent}, converted to nanoseconds, is on that clock.
+     */
+    public void dispatchLeftJoystickPosition(int pad, double x, double y, long eventTimeNanos) {
+        dispatchJoystick(pad, ControllerState.AXIS_X, ControllerState.AXIS_Y, x, y, eventTimeNanos);
+    }
+
+    /// See {@link #dispatchLeftJoystickPosition(int, double, double, long)}.
+    public void dispatchRightJoystickPosition(int pad, double x, double y, long eventTimeNanos) {
+        dispatchJoystick(pad, ControllerState.AXIS_RX, ControllerState.AXIS_RY, x, y, eventTimeNanos);
+    }
+
+    /**
+     * @param button         {@link ControllerState#BUTTON_START} or {@link ControllerState#BUTTON_SELECT}.
+     * @param eventTimeNanos When the button changed, on the clock of {@link System#nanoTime()}.
+     */
+    public void dispatchButton(int pad, int button, boolean pressed, long eventTimeNanos) {
+        if (ControllerState.isAxis(button) || button >= ControllerState.CONTROL_COUNT) {
+            throw new IllegalArgumentException("Not a button: " + button);
+        }
+        state.pushButton(pad, button, pressed, eventTimeNanos);
+    }
+
+    public void dispatchStartButtonPressed() {
+        dispatchStartButtonPressed(0);
+    }
+
+    public void dispatchSelectButtonPressed() {
+        dispatchSelectButtonPressed(0);
+    }
+
+    public void dispatchStartButtonReleased() {
+        dispatchStartButtonReleased(0);
+    }
+
+    public void dispatchSelectButtonReleased() {
+        dispatchSelectButtonReleased(0);
+    }
+
+    public void dispatchStartButtonPressed(int pad) {
+        state.pushButton(pad, ControllerState.BUTTON_START, true);
+    }
+
+    public void dispatchSelectButtonPressed(int pad) {
+        state.pushButton(pad, ControllerState.BUTTON_SELECT, true);
+    }
+
+    public void dispatchStartButtonReleased(int pad) {
+        state.pushButton(pad, ControllerState.BUTTON_START, false);
+    }
+
+    public void dispatchSelectButtonReleased(int pad) {
+        state.pushButton(pad, ControllerState.BUTTON_SELECT, false);
+    }
+
+    /**
+     * Send a latency probe. The main server echoes it, and the round-trip time is recorded in
+     * {@link #getLatencyHistogram()}. Servers that do not support probes ignore them.
+     */
+    public void probeLatency() {
+        state.pushCommand(ControllerState.COMMAND_PING);
+    }
+
+    /// Round-trip times to the main server, measured by {@link #probeLatency()}.
+    public LatencyHistogram getLatencyHistogram() {
+        return latencyHistogram;
+    }
+
+    /// Offset between the clock of the dispatcher and the clock of the active server.
+    public ClockEstimator getClockEstimator() {
+        return clock;
+    }
+
+    /// Updates enqueued, sent to and dropped for the active server, and the deepest backlog.
+    public QueueCounters getQueueCounters() {
+        return state.getCounters();
+    }
+
+    /// Number of write system calls made since the dispatcher was created, for every endpoint.
+    public long getWriteCount() {
+        return writeCount.get();
+    }
+
+    /// Number of bytes written since the dispatcher was created, for every endpoint.
+    public long getWrittenBytes() {
+        return writtenBytes.get();
+    }
+
+    /// State of the connection to the main server, one of the STATE_ constants.
+    public int getState() {
+        return _state;
+    }
+
+    public boolean isConnected() {
+        return _state == STATE_CONNECTED;
+    }
+
+    public boolean isConnecting() {
+        return _state == STATE_CONNECTING;
+    }
+
+}
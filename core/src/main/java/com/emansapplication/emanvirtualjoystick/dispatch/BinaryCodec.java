@@ -0,0 +1,96 @@
+package com.emansapplication.emanvirtualjoystick.dispatch;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Fixed-layout binary protocol. Each update is an 8-byte frame:
+ * <pre>
+ *   offset 0: opcode (u8)
+ *   offset 1: control id (u8): the control in the low 4 bits, the pad in the high 4 bits,
+ *             see {@link ControllerState#controlId(int, int)}
+ *   offset 2: value (s16, big-endian), clamped to the range of a short
+ *   offset 4: sequence number (u32, big-endian), incremented for each frame
+ * </pre>
+ * The time of the input of the frames that follow (see {@link WireCodec#encodeTimestamp(ByteBuffer, long)})
+ * is an 8-byte frame too, without sequence number:
+ * <pre>
+ *   offset 0: {@link #OP_TIMESTAMP}
+ *   offset 1: time on the clock of the server (s56, big-endian, us)
+ * </pre>
+ * Timestamps are only sent to servers that answer clock synchronization requests.
+ * <p>
+ * The client only switches to this protocol once the server has answered the
+ * {@link #HANDSHAKE} line with the same line. The first byte of a frame is always
+ * lower than 0x20, so that a server can tell frames apart from text lines. Latency probes
+ * and clock synchronization requests are still sent as text lines, since they are rare
+ * and their answers are text.
+ */
+public class BinaryCodec implements WireCodec {
+
+    /// Line sent by the client to offer the binary protocol, and echoed by servers supporting it.
+    public static final String HANDSHAKE = "PROTO BIN1";
+
+    public static final int FRAME_SIZE = 8;
+
+    public static final int OP_AXIS = 0x01;
+    public static final int OP_BUTTON = 0x02;
+    public static final int OP_COMMAND = 0x03;
+    public static final int OP_QUIT = 0x04;
+    public static final int OP_TIMESTAMP = 0x05;
+
+    private int sequence;
+
+    @Override
+    public void encode(ByteBuffer out, int controlId, int value) {
+        final int control = ControllerState.getControl(controlId);
+        int opcode;
+        if (ControllerState.isAxis(control)) {
+            opcode = OP_AXIS;
+        } else if (control < ControllerState.CONTROL_COUNT) {
+            opcode = OP_BUTTON;
+        } else {
+            opcode = OP_COMMAND;
+        }
+        encodeFrame(out, opcode, controlId, value);
+    }
+
+    @Override
+    public void encodePing(ByteBuffer out, long token) {
+        TextCodec.putPing(out, token);
+    }
+
+    @Override
+    public void encodeTimeRequest(ByteBuffer out, long clientMicros) {
+        TextCodec.putCommand(out, ControllerState.COMMAND_TIME, clientMicros);
+    }
+
+    @Override
+    public void encodeTimestamp(ByteBuffer out, long serverMicros) {
+        // The opcode, then the 7 low bytes of the time
+        out.putLong(serverMicros & 0x00FFFFFFFFFFFFFFL | (long) OP_TIMESTAMP << 56);
+    }
+
+    /// The time of a timestamp frame, in us.
+    public static long getTimestamp(byte[] frame) {
+        long time = 0;
+        for (int i = 1; i < FRAME_SIZE; i++) {
+            time = time << 8 | (frame[i] & 0xFF);
+        }
+        // Sign extension of the s56
+        return time << 8 >> 8;
+    }
+
+    @Override
+    public void encodeQuit(ByteBuffer out) {
+        encodeFrame(out, OP_QUIT, 0, 0);
+    }
+
+    private void encodeFrame(ByteBuffer out, int opcode, int control, int value) {
+        value = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, value));
+        out.put((byte) opcode);
+        out.put((byte) control);
+        out.putShort((short) value);
+        out.putInt(sequence++);
+    }
+
+}
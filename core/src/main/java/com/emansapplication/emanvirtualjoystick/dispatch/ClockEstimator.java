@@ -0,0 +1,74 @@
+package com.emansapplication.emanvirtualjoystick.dispatch;
+
+/**
+ * NTP-style estimate of the offset between the monotonic clock of the client and the clock of a server,
+ * so that the client can tell the server when each input happened, on the clock of the server.
+ * <p>
+ * The client sends its time t0 in a TIME request. The server answers with t0, the time t1 it received
+ * the request and the time t2 it answered, and the client receives the answer at t3. Then:
+ * <pre>
+ *   offset = ((t1 - t0) + (t2 - t3)) / 2
+ *   delay  = (t3 - t0) - (t2 - t1)
+ * </pre>
+ * The error of the offset is at most half the delay, so the estimate is the offset of the exchange
+ * with the smallest delay among the last {@link #SAMPLES} ones, as in the clock filter of NTP: an
+ * exchange delayed by a queue on one way only does not skew it. Times are in microseconds.
+ */
+public class ClockEstimator {
+
+    /// Exchanges kept. The dispatcher makes as many right after connecting.
+    public static final int SAMPLES = 8;
+
+    private final long[] offsets = new long[SAMPLES];
+    private final long[] delays = new long[SAMPLES];
+    private int sampleCount;
+    private int bestSample = -1;
+
+    /// Record an exchange. Exchanges whose times are inconsistent (negative delay) are ignored.
+    public synchronized void record(long t0, long t1, long t2, long t3) {
+        final long delay = (t3 - t0) - (t2 - t1);
+        if (delay < 0 || t2 < t1) {
+            return;
+        }
+        final int slot = sampleCount % SAMPLES;
+        offsets[slot] = ((t1 - t0) + (t2 - t3)) / 2;
+        delays[slot] = delay;
+        sampleCount++;
+        bestSample = 0;
+        for (int i = 1; i < Math.min(sampleCount, SAMPLES); i++) {
+            if (delays[i] < delays[bestSample]) {
+                bestSample = i;
+            }
+        }
+    }
+
+    /// Forget the exchanges, e.g. when the server changes.
+    public synchronized void reset() {
+        sampleCount = 0;
+        bestSample = -1;
+    }
+
+    public synchronized boolean hasEstimate() {
+        return bestSample >= 0;
+    }
+
+    /// Number of exchanges recorded since the last reset.
+    public synchronized int getSampleCount() {
+        return sampleCount;
+    }
+
+    /// Clock of the server minus clock of the client, or 0 without estimate.
+    public synchronized long getOffsetMicros() {
+        return bestSample < 0 ? 0 : offsets[bestSample];
+    }
+
+    /// Round-trip delay of the exchange the estimate comes from, or 0 without estimate.
+    public synchronized long getDelayMicros() {
+        return bestSample < 0 ? 0 : delays[bestSample];
+    }
+
+    public long toServerMicros(long clientMicros) {
+        return clientMicros + getOffsetMicros();
+    }
+
+}
@@ -0,0 +1,26 @@
+package com.emansapplication.emanvirtualjoystick.dispatch;
+
+/**
+ * Notified when the connection of a dispatcher changes state.
+ */
+@FunctionalInterface
+public interface ConnectionStateListener {
+
+    /**
+     * Called from the network thread of the dispatcher.
+     *
+     * @param state          One of the STATE_ constants of the dispatcher.
+     * @param failedAttempts Number of connection attempts that failed in a row.
+     */
+    void onConnectionStateChanged(int state, int failedAttempts);
+
+    /**
+     * Called from the writer thread of a server that stopped answering the heartbeats of the dispatcher,
+     * right before its connection fails. The dispatcher then fails over to a standby, if any, and reconnects.
+     *
+     * @param silenceMillis Time since the last message of the server.
+     */
+    default void onConnectionStalled(String host, int port, long silenceMillis) {
+    }
+
+}
@@ -0,0 +1,460 @@
+package com.emansapplication.emanvirtualjoystick.dispatch;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * State of the gamepads that is waiting to be written to the server.
+ * <p>
+ * Several gamepads (pads) can share a dispatcher. Updates identify their control with an id that packs
+ * the pad and the control (see {@link #controlId(int, int)}). The id of a control of pad 0 is the
+ * control itself, so that single-pad servers are not affected.
+ * <p>
+ * Axis updates are conflated: each axis has a single slot that holds its latest value,
+ * and a dirty flag that tells whether this value still has to be sent. Button edges are
+ * delivered in the order they were pushed, and by default never dropped: their buffer holds
+ * {@link #DEFAULT_EDGE_CAPACITY} edges, and a push waits for the writer once it is full. The capacity
+ * and the overflow policy can be changed (see {@link #setEdgeCapacity(int, int)}). Keyframes and commands
+ * are queued with the edges but are not bounded: they never take the room of, nor evict, an edge
+ * of the user. The updates are counted in {@link #getCounters()}.
+ * <p>
+ * Each axis can be quantized (see {@link #setAxisQuantization(int, int, int)}), so that small
+ * jitter of the input does not produce a new update.
+ * <p>
+ * When paced (see {@link SnapshotScheduler}), pending updates are only released to the writer
+ * on each tick, so that the server receives one coherent snapshot per tick.
+ * <p>
+ * The state also keeps the time of the latest input (see {@link #getDrainedEventTime()}), so that
+ * each drain cycle can be timestamped with when the input happened rather than when it was sent.
+ */
+public class ControllerState {
+
+    public static final int AXIS_X = 0;
+    public static final int AXIS_Y = 1;
+    public static final int AXIS_RX = 2;
+    public static final int AXIS_RY = 3;
+    public static final int AXIS_COUNT = 4;
+
+    public static final int BUTTON_START = 4;
+    public static final int BUTTON_SELECT = 5;
+    public static final int CONTROL_COUNT = 6;
+
+    /// Latency probe. Not a control of the gamepad, but queued like a button edge.
+    /// Its value is ignored: the writer replaces it with the time it is written.
+    public static final int COMMAND_PING = CONTROL_COUNT;
+    /// Clock synchronization request, see {@link ClockEstimator}. Same as the probe, its value is ignored.
+    public static final int COMMAND_TIME = CONTROL_COUNT + 1;
+
+    private static final String[] NAMES = {"X", "Y", "RX", "RY", "BSTART", "BSELECT", "PING", "TIME"};
+
+    public static final int MAX_PADS = 4;
+    /// The pad is stored above the control in a control id.
+    public static final int PAD_SHIFT = 4;
+    private static final int CONTROL_MASK = (1 << PAD_SHIFT) - 1;
+    private static final int BUTTON_COUNT = CONTROL_COUNT - AXIS_COUNT;
+
+    /// Absolute value of an axis at full deflection.
+    public static final int AXIS_MAX = 32768;
+
+    // What happens to a button edge pushed while the buffer is full
+    /// The oldest pending edge is dropped. Since edges carry the level of the button, the buttons
+    /// still end up in the right state, but the server may miss short presses.
+    public static final int OVERFLOW_DROP_OLDEST = 0;
+    /// The buffer grows past its capacity: edges are never dropped, nor waited for, but memory is not bounded.
+    public static final int OVERFLOW_GROW = 1;
+    /// The caller waits for the writer to make room. The default: edges are never dropped, and since the writer
+    /// drains them all at each cycle without waiting for the network, the caller only waits during a burst.
+    public static final int OVERFLOW_BLOCK = 2;
+
+    public static final int DEFAULT_EDGE_CAPACITY = 64;
+
+    private static final int INITIAL_EDGE_CAPACITY = 16;
+
+    /// Value of axis i of pad p at index (p * AXIS_COUNT + i).
+    private final int[] axisValues = new int[MAX_PADS * AXIS_COUNT];
+    private final int[] axisSteps = {1, 1, 1, 1};
+    private final int[] axisThresholds = new int[AXIS_COUNT];
+    /// Bit (p * AXIS_COUNT + i) is set if the value of axis i of pad p has not been drained yet.
+    private int dirtyAxes;
+    /// Bit (p * BUTTON_COUNT + button - AXIS_COUNT) is set if the button of pad p was last pushed as pressed.
+    private int pressedButtons;
+    /// Bit p is set once pad p has been used. Keyframes only cover these pads.
+    private int activePads = 1;
+
+    private boolean paced;
+    private boolean tickDue;
+    private boolean takeAborted;
+    /// Set until the next drain, so that concurrent requests queue a single keyframe.
+    private boolean keyframePending;
+
+    /// Set in a queued edge that comes from a keyframe or a command rather than from the user.
+    private static final int EDGE_INTERNAL = 2;
+
+    /// Ring buffer of pending button edges and commands, encoded as (control id << 2 | EDGE_INTERNAL if internal | pressed).
+    /// Allocated as needed. Only the edges of the user count against the capacity.
+    private int[] edges = new int[INITIAL_EDGE_CAPACITY];
+    private int edgeHead;
+    private int edgeCount;
+    /// Number of the edges of the user among the pending ones.
+    private int userEdgeCount;
+    private int edgeCapacity = DEFAULT_EDGE_CAPACITY;
+    private int overflowPolicy = OVERFLOW_BLOCK;
+    /// Number of callers waiting for room in the buffer.
+    private int blockedPushes;
+    private boolean closed;
+
+    /// Time of the latest input, and of the latest input drained by the writer, from {@link System#nanoTime()}.
+    private long eventTimeNanos = System.nanoTime();
+    private long drainedEventTimeNanos = eventTimeNanos;
+
+    private final QueueCounters counters = new QueueCounters();
+
+    /// Name of the control in the text protocol.
+    public static String getName(int control) {
+        return NAMES[control];
+    }
+
+    public static boolean isAxis(int control) {
+        return control >= 0 && control < AXIS_COUNT;
+    }
+
+    /// Identifies a control of a pad in the updates.
+    public static int controlId(int pad, int control) {
+        return pad << PAD_SHIFT | control;
+    }
+
+    public static int getPad(int controlId) {
+        return controlId >>> PAD_SHIFT;
+    }
+
+    public static int getControl(int controlId) {
+        return controlId & CONTROL_MASK;
+    }
+
+    private static void checkPad(int pad) {
+        if (pad < 0 || pad >= MAX_PADS) {
+            throw new IllegalArgumentException("Invalid pad: " + pad);
+        }
+    }
+
+    /**
+     * Configure the filtering of the values of an axis, for every pad. Filtering happens when the value is set,
+     * so it does not delay the updates that pass through.
+     *
+     * @param step      The value is rounded to the nearest multiple of step. 1 disables quantization.
+     * @param threshold Quantized values that differ from the current value by less than threshold are
+     *                  ignored, except the rest position (0) and full deflection. 0 only ignores values
+     *                  that did not change.
+     */
+    public synchronized void setAxisQuantization(int axis, int step, int threshold) {
+        if (step < 1 || threshold < 0) {
+            throw new IllegalArgumentException("Invalid quantization: step " + step + ", threshold " + threshold);
+        }
+        axisSteps[axis] = step;
+        axisThresholds[axis] = threshold;
+    }
+
+    /**
+     * Bound the buffer of pending button edges of the user. By default, it holds {@link #DEFAULT_EDGE_CAPACITY}
+     * edges, and pushes wait for room ({@link #OVERFLOW_BLOCK}).
+     *
+     * @param capacity Maximum number of pending edges of the user, at least 1.
+     * @param policy   One of the OVERFLOW_ constants.
+     */
+    public synchronized void setEdgeCapacity(int capacity, int policy) {
+        if (capacity < 1 || policy < OVERFLOW_DROP_OLDEST || policy > OVERFLOW_BLOCK) {
+            throw new IllegalArgumentException("Invalid edge buffer: capacity " + capacity + ", policy " + policy);
+        }
+        edgeCapacity = capacity;
+        overflowPolicy = policy;
+        if (policy == OVERFLOW_DROP_OLDEST) {
+            while (userEdgeCount > capacity) {
+                dropOldestUserEdge();
+            }
+        }
+        notifyAll();
+    }
+
+    public QueueCounters getCounters() {
+        return counters;
+    }
+
+    public synchronized void setAxis(int pad, int axis, int value) {
+        checkPad(pad);
+        activePads |= 1 << pad;
+        eventTimeNanos = System.nanoTime();
+        if (updateAxis(pad, axis, value) && !paced) {
+            notifyAll();
+        }
+    }
+
+    /// Set the two axes of a stick at once, so that the writer sends them in the same cycle.
+    public void setAxes(int pad, int axisX, int valueX, int axisY, int valueY) {
+        setAxes(pad, axisX, valueX, axisY, valueY, System.nanoTime());
+    }
+
+    /// @param eventTimeNanos When the input happened, on the clock of {@link System#nanoTime()}.
+    public synchronized void setAxes(int pad, int axisX, int valueX, int axisY, int valueY, long eventTimeNanos) {
+        checkPad(pad);
+        activePads |= 1 << pad;
+        this.eventTimeNanos = eventTimeNanos;
+        boolean changed = updateAxis(pad, axisX, valueX);
+        changed |= updateAxis(pad, axisY, valueY);
+        if (changed && !paced) {
+            notifyAll();
+        }
+    }
+
+    /// Returns true if the axis was marked dirty.
+    private boolean updateAxis(int pad, int axis, int value) {
+        final int index = pad * AXIS_COUNT + axis;
+        final int step = axisSteps[axis];
+        final int quantized = (value + (value < 0 ? -step : step) / 2) / step * step;
+        final int delta = Math.abs(quantized - axisValues[index]);
+        if (delta == 0) {
+            return false;
+        }
+        if (delta < axisThresholds[axis] && quantized != 0 && Math.abs(quantized) < AXIS_MAX) {
+            return false;
+        }
+        axisValues[index] = quantized;
+        markDirty(1 << index);
+        return true;
+    }
+
+    /// The pending values of these axes, if any, are superseded by new ones.
+    private void markDirty(int axes) {
+        final int superseded = Integer.bitCount(dirtyAxes & axes);
+        dirtyAxes |= axes;
+        if (superseded > 0) {
+            counters.recordDropped(superseded);
+        }
+        counters.recordEnqueued(Integer.bitCount(axes));
+        counters.recordDepth(getDepth());
+    }
+
+    /// Number of pending updates, including keyframes and commands.
+    private int getDepth() {
+        return edgeCount + Integer.bitCount(dirtyAxes);
+    }
+
+    /**
+     * Queue an edge of a button of a pad, or a command (of pad 0). If the buffer of the edges of the
+     * user is full, see the policy set by {@link #setEdgeCapacity(int, int)}. Commands are never bounded.
+     */
+    public void pushButton(int pad, int button, boolean pressed) {
+        pushButton(pad, button, pressed, System.nanoTime());
+    }
+
+    /// @param eventTimeNanos When the input happened, on the clock of {@link System#nanoTime()}. Ignored for commands.
+    public synchronized void pushButton(int pad, int button, boolean pressed, long eventTimeNanos) {
+        checkPad(pad);
+        activePads |= 1 << pad;
+        if (button < CONTROL_COUNT) {
+            this.eventTimeNanos = eventTimeNanos;
+        }
+        pushEdge(pad, button, pressed, button >= CONTROL_COUNT);
+    }
+
+    /// Queue a command of pad 0. Never waits and is never dropped, so that the writer and the readers can queue commands.
+    public synchronized void pushCommand(int command) {
+        pushEdge(0, command, false, true);
+    }
+
+    /// @param internal True for keyframes and commands, which are not bounded by the capacity and never wait.
+    private void pushEdge(int pad, int button, boolean pressed, boolean internal) {
+        if (!internal && userEdgeCount >= edgeCapacity && overflowPolicy == OVERFLOW_BLOCK) {
+            blockedPushes++;
+            try {
+                while (userEdgeCount >= edgeCapacity && overflowPolicy == OVERFLOW_BLOCK && !closed) {
+                    wait();
+                }
+            } catch (InterruptedException _ex) {
+                // Go past the capacity rather than drop the edge or the interruption
+                Thread.currentThread().interrupt();
+            } finally {
+                blockedPushes--;
+            }
+        }
+        if (!internal && userEdgeCount >= edgeCapacity && overflowPolicy == OVERFLOW_DROP_OLDEST) {
+            dropOldestUserEdge();
+        }
+        if (edgeCount == edges.length) {
+            int[] grown = new int[edges.length * 2];
+            for (int i = 0; i < edgeCount; i++) {
+                grown[i] = edges[(edgeHead + i) % edges.length];
+            }
+            edges = grown;
+            edgeHead = 0;
+        }
+        edges[(edgeHead + edgeCount) % edges.length] = controlId(pad, button) << 2 | (internal ? EDGE_INTERNAL : 0) | (pressed ? 1 : 0);
+        edgeCount++;
+        if (!internal) {
+            userEdgeCount++;
+        }
+        counters.recordEnqueued(1);
+        counters.recordDepth(getDepth());
+        if (button < CONTROL_COUNT) {
+            final int mask = 1 << (pad * BUTTON_COUNT + button - AXIS_COUNT);
+            pressedButtons = pressed ? pressedButtons | mask : pressedButtons & ~mask;
+        }
+        if (!paced) {
+            notifyAll();
+        }
+    }
+
+    /// Remove the oldest edge of the user, keeping the order of the others. Keyframes and commands stay.
+    private void dropOldestUserEdge() {
+        int i = 0;
+        while ((edges[(edgeHead + i) % edges.length] & EDGE_INTERNAL) != 0) {
+            i++;
+        }
+        // Shift the internal edges queued before it by one slot
+        for (; i > 0; i--) {
+            edges[(edgeHead + i) % edges.length] = edges[(edgeHead + i - 1) % edges.length];
+        }
+        edges[edgeHead] = 0;
+        edgeHead = (edgeHead + 1) % edges.length;
+        edgeCount--;
+        userEdgeCount--;
+        counters.recordDropped(1);
+    }
+
+    /**
+     * Queue the whole state of the pads in use: the current value of every axis, and the current
+     * state of every button, so that a server that missed updates is back in sync.
+     */
+    public synchronized void requestKeyframe() {
+        if (keyframePending) {
+            return;
+        }
+        keyframePending = true;
+        for (int pad = 0; pad < MAX_PADS; pad++) {
+            if ((activePads & (1 << pad)) == 0) {
+                continue;
+            }
+            // Pending values are sent anyway: they are not superseded
+            final int axes = ((1 << AXIS_COUNT) - 1) << (pad * AXIS_COUNT);
+            markDirty(axes & ~dirtyAxes);
+            for (int button = AXIS_COUNT; button < CONTROL_COUNT; button++) {
+                // The writer itself asks for keyframes: they neither wait for room nor evict the edges of the user
+                pushEdge(pad, button, (pressedButtons & (1 << (pad * BUTTON_COUNT + button - AXIS_COUNT))) != 0, true);
+            }
+        }
+        if (!paced) {
+            notifyAll();
+        }
+    }
+
+    /// When paced, the writer is only woken up by {@link #tick(boolean)}.
+    public synchronized void setPaced(boolean paced) {
+        this.paced = paced;
+        tickDue = false;
+        notifyAll();
+    }
+
+    /// Release the pending updates to the writer, if any, and queue a keyframe first if requested.
+    public synchronized void tick(boolean keyframe) {
+        if (keyframe) {
+            requestKeyframe();
+        }
+        tickDue = hasPending();
+        if (tickDue) {
+            notifyAll();
+        }
+    }
+
+    /// Make the pending or the next call of take() return 0, even if nothing is pending.
+    public synchronized void abortTake() {
+        takeAborted = true;
+        notifyAll();
+    }
+
+    /// Wake up the callers waiting for room in the buffer. From then on, edges never wait.
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    public synchronized boolean hasPending() {
+        return dirtyAxes != 0 || edgeCount > 0;
+    }
+
+    /**
+     * Wait until at least one update is pending, then drain the pending updates.
+     *
+     * @param controls Receives the control id of each drained update (see {@link #controlId(int, int)}).
+     * @param values   Receives the value of each drained update. Must be as long as
+     *                 {@code controls}, and at least {@link #MAX_PADS} * {@link #AXIS_COUNT} long.
+     * @return The number of drained updates. Button edges come first, in order, followed by
+     * the latest value of each dirty axis. Edges that do not fit are kept for the next call.
+     * 0 if the call was aborted with {@link #abortTake()}.
+     */
+    public synchronized int take(int[] controls, int[] values) throws InterruptedException {
+        while (!isTakeReady()) {
+            wait();
+        }
+        return takeReady(controls, values);
+    }
+
+    /// Same as take(), but returns 0 at the deadline, on the clock of {@link System#nanoTime()}, if nothing was released by then.
+    public synchronized int take(int[] controls, int[] values, long deadlineNanos) throws InterruptedException {
+        long remaining;
+        while (!isTakeReady()) {
+            if ((remaining = deadlineNanos - System.nanoTime()) <= 0) {
+                return 0;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return takeReady(controls, values);
+    }
+
+    private boolean isTakeReady() {
+        return takeAborted || (hasPending() && (!paced || tickDue));
+    }
+
+    private int takeReady(int[] controls, int[] values) {
+        if (takeAborted) {
+            takeAborted = false;
+            return 0;
+        }
+        tickDue = false;
+        return drain(controls, values);
+    }
+
+    /// Same as take(), but returns 0 immediately if nothing is pending.
+    public synchronized int drain(int[] controls, int[] values) {
+        keyframePending = false;
+        drainedEventTimeNanos = eventTimeNanos;
+        int count = 0;
+        int edgeRoom = controls.length - Integer.bitCount(dirtyAxes);
+        while (edgeCount > 0 && count < edgeRoom) {
+            int edge = edges[edgeHead];
+            edgeHead = (edgeHead + 1) % edges.length;
+            edgeCount--;
+            if ((edge & EDGE_INTERNAL) == 0) {
+                userEdgeCount--;
+            }
+            controls[count] = edge >> 2;
+            values[count] = edge & 1;
+            count++;
+        }
+        for (int index = 0; index < MAX_PADS * AXIS_COUNT; index++) {
+            if ((dirtyAxes & (1 << index)) != 0) {
+                controls[count] = controlId(index / AXIS_COUNT, index % AXIS_COUNT);
+                values[count] = axisValues[index];
+                count++;
+            }
+        }
+        dirtyAxes = 0;
+        if (blockedPushes > 0) {
+            notifyAll();
+        }
+        return count;
+    }
+
+    /// Time of the latest input when the updates were last drained, on the clock of {@link System#nanoTime()}.
+    public synchronized long getDrainedEventTime() {
+        return drainedEventTimeNanos;
+    }
+
+}
@@ -0,0 +1,109 @@
+package com.emansapplication.emanvirtualjoystick.dispatch;
+
+import com.emansapplication.emanvirtualjoystick.SocketDispatcher;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Loopback simulation of a lossy network for the UDP transport, on the JVM: no device is needed.
+ * <p>
+ * For each redundancy (see {@link TransportOptions#setDatagramRedundancy(int)}), the start button is
+ * tapped many times against a {@link DatagramStateReceiver} that drops a fraction of the datagrams,
+ * and the presses the receiver sees, once it has rebuilt the missed states, are counted.
+ * <p>
+ * Usage: {@code DatagramLossSimulation [loss, from 0 to 1] [taps]}.
+ */
+public class DatagramLossSimulation {
+
+    private static final int[] REDUNDANCIES = {0, 1, 2, 4, StatePacket.MAX_REDUNDANCY};
+
+    /// Time the button is held, then released.
+    private static final long TAP_NANOS = TimeUnit.MILLISECONDS.toNanos(3);
+
+    private static final int START_MASK = StatePacket.buttonMask(ControllerState.BUTTON_START);
+
+    /// Only used by the thread of the receiver.
+    private int lastButtons;
+    private volatile int presses;
+
+    private void apply(int buttons) {
+        if ((buttons & START_MASK) != 0 && (lastButtons & START_MASK) == 0) {
+            presses++;
+        }
+        lastButtons = buttons;
+    }
+
+    private void run(int redundancy, double loss, int taps) throws IOException, InterruptedException {
+        lastButtons = 0;
+        presses = 0;
+        final DatagramStateReceiver receiver = new DatagramStateReceiver(0);
+        receiver.setSimulatedLoss(loss);
+        final Thread thread = new Thread("DatagramLossSimulation-receiver") {
+            @Override
+            public void run() {
+                try {
+                    receiver.run(new DatagramStateReceiver.Listener() {
+                        @Override
+                        public void onState(SocketAddress sender, ByteBuffer packet) {
+                            apply(StatePacket.getButtons(packet));
+                        }
+
+                        @Override
+                        public void onMissedState(SocketAddress sender, ByteBuffer packet, int entry) {
+                            apply(StatePacket.getHistoryButtons(packet, entry));
+                        }
+                    });
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+
+        final TransportOptions options = new TransportOptions()
+                .setTransport(TransportOptions.TRANSPORT_UDP)
+                .setDatagramRedundancy(redundancy);
+        try (SocketDispatcher dispatcher = new SocketDispatcher("127.0.0.1", receiver.getLocalPort(), options)) {
+            while (!dispatcher.isConnected()) {
+                Thread.sleep(10);
+            }
+            for (int tap = 0; tap < taps; tap++) {
+                dispatcher.dispatchStartButtonPressed();
+                LockSupport.parkNanos(TAP_NANOS);
+                dispatcher.dispatchStartButtonReleased();
+                LockSupport.parkNanos(TAP_NANOS);
+            }
+            // Moves of the stick after the last tap, so that a datagram carrying it arrives
+            for (int i = 1; i <= 2 * StatePacket.MAX_REDUNDANCY; i++) {
+                dispatcher.dispatchLeftJoystickPosition(i / 100.0, 0);
+                LockSupport.parkNanos(TAP_NANOS);
+            }
+            // Let the last datagrams arrive
+            Thread.sleep(100);
+            System.out.printf("%10d %8d %8d %10d %10d %10d %12.1f%n", redundancy, taps, presses,
+                    receiver.getAcceptedCount(), receiver.getRecoveredStateCount(), receiver.getLostStateCount(),
+                    dispatcher.getWrittenBytes() / (double) dispatcher.getWriteCount());
+        } finally {
+            receiver.close();
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        final double loss = args.length > 0 ? Double.parseDouble(args[0]) : 0.2;
+        final int taps = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+
+        System.out.printf("%.0f%% of the datagrams lost%n", loss * 100);
+        System.out.printf("%10s %8s %8s %10s %10s %10s %12s%n",
+                "redundancy", "taps", "presses", "accepted", "recovered", "lost", "bytes/write");
+        final DatagramLossSimulation simulation = new DatagramLossSimulation();
+        for (int redundancy : REDUNDANCIES) {
+            simulation.run(redundancy, loss, taps);
+        }
+    }
+
+}
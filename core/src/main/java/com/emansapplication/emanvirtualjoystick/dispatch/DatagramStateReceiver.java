@@ -0,0 +1,270 @@
+package com.emansapplication.emanvirtualjoystick.dispatch;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reference receiver for the UDP transport (see {@link StatePacket}). Keeps the last
+ * sequence number accepted from each pad of each sender, and drops stale or reordered datagrams.
+ * Latency probes are echoed to their sender, and clock synchronization requests are answered with
+ * {@link #clockMicros()}.
+ * <p>
+ * The states carried by {@link StatePacket#TYPE_REDUNDANT_STATE} datagrams that the receiver missed are
+ * passed to the listener before the state of the datagram. The states missed beyond them are counted,
+ * so that a loss is never silent (see {@link #getLostStateCount()}). Those datagrams are tracked by the
+ * id of their client rather than by sender, so that the states a client sent while it reconnected, from
+ * another port, are missed states too, rather than a new start.
+ * <p>
+ * Run {@link #main(String[])} to print the state received on a local port. Losses can be simulated
+ * with {@link #setSimulatedLoss(double)}.
+ */
+public class DatagramStateReceiver implements Closeable {
+
+    @FunctionalInterface
+    public interface Listener {
+        /// Called for each accepted state. The packet is only valid during the call.
+        void onState(SocketAddress sender, ByteBuffer packet);
+
+        /**
+         * Called before {@link #onState(SocketAddress, ByteBuffer)} for each previous state carried by the packet
+         * that the receiver missed, oldest first. Read it with {@link StatePacket#getHistoryAxis(ByteBuffer, int, int)}
+         * and {@link StatePacket#getHistoryButtons(ByteBuffer, int)}.
+         */
+        default void onMissedState(SocketAddress sender, ByteBuffer packet, int entry) {
+        }
+    }
+
+    /// What the receiver knows of a sender.
+    private static final class Peer {
+        /// Last sequence accepted for each pad, or NO_SEQUENCE.
+        final long[] sequences = new long[ControllerState.MAX_PADS];
+        /// State count of the last redundant datagram accepted for each pad, or NO_STATE_COUNT.
+        final int[] stateCounts = new int[ControllerState.MAX_PADS];
+
+        Peer() {
+            Arrays.fill(sequences, NO_SEQUENCE);
+            Arrays.fill(stateCounts, NO_STATE_COUNT);
+        }
+    }
+
+    private final DatagramChannel channel;
+    /// Senders of datagrams without client id. Forgotten when they quit.
+    private final Map<SocketAddress, Peer> peers = new HashMap<>();
+    /// Senders of {@link StatePacket#TYPE_REDUNDANT_STATE} datagrams, by client id. Kept when they quit, since they may come back.
+    private final Map<Integer, Peer> clients = new HashMap<>();
+
+    private static final long NO_SEQUENCE = Long.MIN_VALUE;
+    private static final int NO_STATE_COUNT = -1;
+
+    private volatile long acceptedCount;
+    private volatile long droppedCount;
+    private volatile long recoveredStateCount;
+    private volatile long lostStateCount;
+
+    private final Random random = new Random();
+    private volatile double simulatedLoss;
+
+    /// Origin of the clock of the receiver.
+    private final long startNanos = System.nanoTime();
+
+    public DatagramStateReceiver(int port) throws IOException {
+        channel = DatagramChannel.open();
+        channel.bind(new InetSocketAddress(port));
+    }
+
+    public int getLocalPort() {
+        return channel.socket().getLocalPort();
+    }
+
+    public long getAcceptedCount() {
+        return acceptedCount;
+    }
+
+    /// Clock of the receiver, in microseconds since it started. The time of {@link StatePacket#TYPE_TIMED_STATE} datagrams is on this clock.
+    public long clockMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos);
+    }
+
+    /// Number of datagrams dropped because they were malformed, stale or reordered.
+    public long getDroppedCount() {
+        return droppedCount;
+    }
+
+    /// Number of missed states rebuilt from the previous states carried by the next datagram.
+    public long getRecoveredStateCount() {
+        return recoveredStateCount;
+    }
+
+    /// Number of missed states that the next datagram did not carry, because more datagrams were lost in a row than it carries.
+    public long getLostStateCount() {
+        return lostStateCount;
+    }
+
+    /// Drop this fraction of the received datagrams, at random, as a lossy network would.
+    public void setSimulatedLoss(double probability) {
+        if (!(probability >= 0 && probability < 1)) {
+            throw new IllegalArgumentException("Invalid probability: " + probability);
+        }
+        simulatedLoss = probability;
+    }
+
+    /// Receive datagrams until the receiver is closed.
+    public void run(Listener listener) throws IOException {
+        final ByteBuffer packet = ByteBuffer.allocate(StatePacket.MAX_SIZE);
+        while (channel.isOpen()) {
+            packet.clear();
+            SocketAddress sender;
+            try {
+                sender = channel.receive(packet);
+            } catch (IOException ex) {
+                if (!channel.isOpen()) {
+                    return;
+                }
+                throw ex;
+            }
+            packet.flip();
+            if (simulatedLoss > 0 && random.nextDouble() < simulatedLoss) {
+                continue;
+            }
+            if (packet.remaining() >= StatePacket.PROBE_SIZE && StatePacket.getType(packet) == StatePacket.TYPE_PING) {
+                packet.put(0, (byte) StatePacket.TYPE_PONG);
+                channel.send(packet, sender);
+                continue;
+            }
+            if (packet.remaining() >= StatePacket.PROBE_SIZE && StatePacket.getType(packet) == StatePacket.TYPE_TIME) {
+                final long receiveTime = clockMicros();
+                final long clientTime = StatePacket.getProbeToken(packet);
+                packet.clear();
+                StatePacket.encodeTimeReply(packet, clientTime, receiveTime, clockMicros());
+                packet.flip();
+                channel.send(packet, sender);
+                continue;
+            }
+            if (!packet.hasRemaining() || packet.remaining() < StatePacket.sizeOf(StatePacket.getType(packet))
+                    || packet.remaining() < StatePacket.sizeAt(packet, 0)) {
+                droppedCount++;
+                continue;
+            }
+            if (StatePacket.getType(packet) == StatePacket.TYPE_QUIT) {
+                peers.remove(sender);
+                continue;
+            }
+            final int pad = StatePacket.getPad(packet);
+            if (pad >= ControllerState.MAX_PADS) {
+                droppedCount++;
+                continue;
+            }
+            final Peer peer = getPeer(sender, packet);
+            int sequence = StatePacket.getSequence(packet);
+            if (peer.sequences[pad] != NO_SEQUENCE && !StatePacket.isNewer(sequence, (int) peer.sequences[pad])) {
+                droppedCount++;
+                continue;
+            }
+            peer.sequences[pad] = sequence;
+            acceptedCount++;
+            if (StatePacket.getType(packet) == StatePacket.TYPE_REDUNDANT_STATE) {
+                recoverMissedStates(sender, peer, pad, packet, listener);
+            }
+            listener.onState(sender, packet);
+        }
+    }
+
+    private Peer getPeer(SocketAddress sender, ByteBuffer packet) {
+        Peer peer;
+        if (StatePacket.getType(packet) == StatePacket.TYPE_REDUNDANT_STATE) {
+            final int clientId = StatePacket.getClientId(packet);
+            peer = clients.get(clientId);
+            if (peer == null) {
+                peer = new Peer();
+                clients.put(clientId, peer);
+            }
+        } else {
+            peer = peers.get(sender);
+            if (peer == null) {
+                peer = new Peer();
+                peers.put(sender, peer);
+            }
+        }
+        return peer;
+    }
+
+    /// Pass the states of the pad missed since the last accepted datagram, if the packet carries them.
+    private void recoverMissedStates(SocketAddress sender, Peer peer, int pad, ByteBuffer packet, Listener listener) {
+        final int stateCount = StatePacket.getStateCount(packet);
+        final int lastCount = peer.stateCounts[pad];
+        peer.stateCounts[pad] = stateCount;
+        if (lastCount == NO_STATE_COUNT) {
+            // The first state of the client: what it sent before, to other servers, is not missed
+            return;
+        }
+        final int missed = ((stateCount - lastCount) & 0xFFFF) - 1;
+        if (missed <= 0) {
+            return;
+        }
+        final int recovered = Math.min(missed, StatePacket.getHistoryCount(packet));
+        for (int entry = recovered - 1; entry >= 0; entry--) {
+            listener.onMissedState(sender, packet, entry);
+        }
+        recoveredStateCount += recovered;
+        lostStateCount += missed - recovered;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /// Usage: {@code DatagramStateReceiver [port] [simulated loss, from 0 to 1]}.
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 0;
+        // The responder lets the players find the receiver on their network
+        try (DatagramStateReceiver receiver = new DatagramStateReceiver(port);
+             DiscoveryResponder responder = new DiscoveryResponder(DiscoveryPacket.DEFAULT_PORT,
+                     "DatagramStateReceiver", receiver.getLocalPort(), 1 << TransportOptions.TRANSPORT_UDP)) {
+            if (args.length > 1) {
+                receiver.setSimulatedLoss(Double.parseDouble(args[1]));
+            }
+            System.out.println("Listening on UDP port " + receiver.getLocalPort());
+            System.out.println("Answering discovery queries on UDP port " + responder.getLocalPort());
+            receiver.run(new Listener() {
+                @Override
+                public void onState(SocketAddress sender, ByteBuffer packet) {
+                    final StringBuilder line = new StringBuilder();
+                    line.append(sender).append(" pad ").append(StatePacket.getPad(packet))
+                            .append(" #").append(StatePacket.getSequence(packet));
+                    for (int axis = 0; axis < ControllerState.AXIS_COUNT; axis++) {
+                        line.append(' ').append(ControllerState.getName(axis))
+                                .append('=').append(StatePacket.getAxis(packet, axis));
+                    }
+                    line.append(" buttons=").append(Integer.toBinaryString(StatePacket.getButtons(packet)));
+                    if (StatePacket.hasEventTime(packet)) {
+                        line.append(" input ").append(receiver.clockMicros() - StatePacket.getEventTime(packet)).append(" us ago");
+                    }
+                    System.out.println(line);
+                }
+
+                @Override
+                public void onMissedState(SocketAddress sender, ByteBuffer packet, int entry) {
+                    final StringBuilder line = new StringBuilder();
+                    line.append(sender).append(" pad ").append(StatePacket.getPad(packet)).append(" recovered");
+                    for (int axis = 0; axis < ControllerState.AXIS_COUNT; axis++) {
+                        line.append(' ').append(ControllerState.getName(axis))
+                                .append('=').append(StatePacket.getHistoryAxis(packet, entry, axis));
+                    }
+                    line.append(" buttons=").append(Integer.toBinaryString(StatePacket.getHistoryButtons(packet, entry)));
+                    System.out.println(line);
+                }
+            });
+        }
+    }
+
+}
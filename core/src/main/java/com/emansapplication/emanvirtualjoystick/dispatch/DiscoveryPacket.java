@@ -0,0 +1,107 @@
+package com.emansapplication.emanvirtualjoystick.dispatch;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Layout of the datagrams of server discovery (see {@link ServerDiscovery}). A client broadcasts
+ * queries on {@link #DEFAULT_PORT}, and each server on the network answers to the sender:
+ * <pre>
+ *   offset 0:  magic, the ASCII bytes "EMVJ"
+ *   offset 4:  type (u8), {@link #TYPE_QUERY} or {@link #TYPE_ANSWER}
+ *   offset 5:  token (s64, big-endian), chosen by the client and echoed in the answer
+ *   offset 13: port of the server (u16, big-endian), only in answers
+ *   offset 15: transports (u8), bit t set if the server accepts transport t of {@link TransportOptions}
+ *   offset 16: length of the name (u8), then the name of the server in UTF-8, at most {@link #MAX_NAME_LENGTH} bytes
+ * </pre>
+ * Datagrams without the magic, e.g. of another application on the port, are ignored.
+ */
+public final class DiscoveryPacket {
+
+    public static final int DEFAULT_PORT = 47474;
+
+    private static final byte[] MAGIC = {'E', 'M', 'V', 'J'};
+
+    public static final int TYPE_QUERY = 1;
+    public static final int TYPE_ANSWER = 2;
+
+    public static final int MAX_NAME_LENGTH = 64;
+
+    public static final int QUERY_SIZE = MAGIC.length + 1 + 8;
+    public static final int ANSWER_SIZE = QUERY_SIZE + 2 + 1 + 1;
+    public static final int MAX_SIZE = ANSWER_SIZE + MAX_NAME_LENGTH;
+
+    private DiscoveryPacket() {
+    }
+
+    public static void encodeQuery(ByteBuffer out, long token) {
+        out.put(MAGIC);
+        out.put((byte) TYPE_QUERY);
+        out.putLong(token);
+    }
+
+    /// @param transports Bit t set if the server accepts transport t, e.g. {@code 1 << TransportOptions.TRANSPORT_TCP}.
+    public static void encodeAnswer(ByteBuffer out, long token, int port, int transports, String name) {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        if (nameBytes.length > MAX_NAME_LENGTH) {
+            // Cut between two characters
+            int length = MAX_NAME_LENGTH;
+            while ((nameBytes[length] & 0xC0) == 0x80) {
+                length--;
+            }
+            nameBytes = Arrays.copyOf(nameBytes, length);
+        }
+        out.put(MAGIC);
+        out.put((byte) TYPE_ANSWER);
+        out.putLong(token);
+        out.putShort((short) port);
+        out.put((byte) transports);
+        out.put((byte) nameBytes.length);
+        out.put(nameBytes);
+    }
+
+    /// @return The type of the datagram, or -1 if it is not a complete discovery datagram.
+    public static int getType(ByteBuffer packet) {
+        if (packet.remaining() < QUERY_SIZE) {
+            return -1;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (packet.get(i) != MAGIC[i]) {
+                return -1;
+            }
+        }
+        final int type = packet.get(MAGIC.length) & 0xFF;
+        if (type == TYPE_ANSWER && (packet.remaining() < ANSWER_SIZE || packet.remaining() < ANSWER_SIZE + getNameLength(packet))) {
+            return -1;
+        }
+        return type;
+    }
+
+    // Accessors reading a packet at the start of the buffer, regardless of its position
+
+    public static long getToken(ByteBuffer packet) {
+        return packet.getLong(MAGIC.length + 1);
+    }
+
+    public static int getPort(ByteBuffer packet) {
+        return packet.getShort(QUERY_SIZE) & 0xFFFF;
+    }
+
+    public static int getTransports(ByteBuffer packet) {
+        return packet.get(QUERY_SIZE + 2) & 0xFF;
+    }
+
+    private static int getNameLength(ByteBuffer packet) {
+        return packet.get(ANSWER_SIZE - 1) & 0xFF;
+    }
+
+    public static String getName(ByteBuffer packet) {
+        final byte[] name = new byte[getNameLength(packet)];
+        for (int i = 0; i < name.length; i++) {
+            name[i] = packet.get(ANSWER_SIZE + i);
+        }
+        return new String(name, StandardCharsets.UTF_8);
+    }
+
+}
@@ -0,0 +1,109 @@
+package com.emansapplication.emanvirtualjoystick.dispatch;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * Answers the discovery queries of the clients (see {@link DiscoveryPacket}) on behalf of a server,
+ * so that players can pick it from a list instead of typing its address. A server runs one next
+ * to its own socket. Several responders can share the discovery port of a host: each of them
+ * receives the broadcast queries.
+ * <p>
+ * Run {@link #main(String[])} for a stand-in responder, announcing a server that may not exist.
+ */
+public class DiscoveryResponder implements Closeable {
+
+    private final DatagramChannel channel;
+    private final Thread _thread;
+
+    private final String name;
+    private final int serverPort;
+    private final int transports;
+
+    private volatile long answerCount;
+
+    /**
+     * @param discoveryPort Port on which the queries are received, usually {@link DiscoveryPacket#DEFAULT_PORT}, or 0 to pick a free one.
+     * @param name          Name of the server, shown to the players.
+     * @param serverPort    Port on which the server receives the clients.
+     * @param transports    Bit t set if the server accepts transport t of {@link TransportOptions}.
+     */
+    public DiscoveryResponder(int discoveryPort, String name, int serverPort, int transports) throws IOException {
+        this.name = name;
+        this.serverPort = serverPort;
+        this.transports = transports;
+        channel = DatagramChannel.open();
+        try {
+            channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            channel.bind(new InetSocketAddress(discoveryPort));
+        } catch (IOException ex) {
+            channel.close();
+            throw ex;
+        }
+        _thread = new Thread("DiscoveryResponder") {
+            @Override
+            public void run() {
+                answer_loop();
+            }
+        };
+        _thread.setDaemon(true);
+        _thread.start();
+    }
+
+    public int getLocalPort() {
+        return channel.socket().getLocalPort();
+    }
+
+    public long getAnswerCount() {
+        return answerCount;
+    }
+
+    private void answer_loop() {
+        final ByteBuffer packet = ByteBuffer.allocate(DiscoveryPacket.MAX_SIZE);
+        while (channel.isOpen()) {
+            try {
+                packet.clear();
+                final SocketAddress sender = channel.receive(packet);
+                packet.flip();
+                if (DiscoveryPacket.getType(packet) != DiscoveryPacket.TYPE_QUERY) {
+                    continue;
+                }
+                final long token = DiscoveryPacket.getToken(packet);
+                packet.clear();
+                DiscoveryPacket.encodeAnswer(packet, token, serverPort, transports, name);
+                packet.flip();
+                channel.send(packet, sender);
+                answerCount++;
+            } catch (IOException ex) {
+                if (!channel.isOpen()) {
+                    return;
+                }
+                // The sender may be unreachable: the next queries are still answered
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /// Usage: {@code DiscoveryResponder [name] [server port] [tcp|udp] [discovery port]}.
+    public static void main(String[] args) throws IOException, InterruptedException {
+        final String name = args.length > 0 ? args[0] : "Stand-in server";
+        final int serverPort = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+        final int transport = args.length > 2 && args[2].equals("udp") ? TransportOptions.TRANSPORT_UDP : TransportOptions.TRANSPORT_TCP;
+        final int discoveryPort = args.length > 3 ? Integer.parseInt(args[3]) : DiscoveryPacket.DEFAULT_PORT;
+        try (DiscoveryResponder responder = new DiscoveryResponder(discoveryPort, name, serverPort, 1 << transport)) {
+            System.out.println("Announcing \"" + name + "\" on port " + serverPort + " to the queries on UDP port " + responder.getLocalPort());
+            responder._thread.join();
+        }
+    }
+
+}
@@ -0,0 +1,61 @@
+package com.emansapplication.emanvirtualjoystick.dispatch;
+
+/**
+ * First-order low-pass filter with a fixed cutoff frequency. The smoothing factor follows the
+ * time between samples, so the response does not depend on the rate of the touch events.
+ * Simple, but it delays fast moves as much as slow ones: see {@link OneEuroFilter}.
+ */
+public class ExponentialFilter implements StickFilter {
+
+    public static final double DEFAULT_CUTOFF_HZ = 10;
+
+    /// 2 pi times the cutoff, so that a sample costs a multiplication and a division.
+    private final double cutoffRadians;
+
+    private boolean primed;
+    private long lastTimeNanos;
+    private double x;
+    private double y;
+
+    public ExponentialFilter() {
+        this(DEFAULT_CUTOFF_HZ);
+    }
+
+    public ExponentialFilter(double cutoffHz) {
+        if (!(cutoffHz > 0)) {
+            throw new IllegalArgumentException("Invalid cutoff: " + cutoffHz);
+        }
+        cutoffRadians = 2 * Math.PI * cutoffHz;
+    }
+
+    @Override
+    public void filter(long timeNanos, double x, double y) {
+        if (!primed) {
+            primed = true;
+            lastTimeNanos = timeNanos;
+            this.x = x;
+            this.y = y;
+            return;
+        }
+        final double alpha = OneEuroFilter.smoothingFactor(cutoffRadians, OneEuroFilter.period(timeNanos - lastTimeNanos));
+        lastTimeNanos = timeNanos;
+        this.x += alpha * (x - this.x);
+        this.y += alpha * (y - this.y);
+    }
+
+    @Override
+    public double getX() {
+        return x;
+    }
+
+    @Override
+    public double getY() {
+        return y;
+    }
+
+    @Override
+    public void reset() {
+        primed = false;
+    }
+
+}
@@ -0,0 +1,195 @@
+package com.emansapplication.emanvirtualjoystick.dispatch;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Appends the updates sent by a dispatcher to a compact binary log, which {@link InputReplayer}
+ * can send again.
+ * <pre>
+ *   header: magic "EMJR", version (u8), start of the recording (s64, ms since the epoch, big-endian)
+ *   event:  time since the previous event (varint, us), control id (u8), value (zigzag varint)
+ * </pre>
+ * The first event is timed from the start of the recording. The updates of a drain cycle share
+ * their time, so a stick update usually takes 5 bytes. Commands, such as latency probes, are not recorded.
+ * <p>
+ * Events are encoded into a buffer that is handed to a writer thread once full, so recording neither
+ * allocates nor makes a system call, and the thread that records never waits for the disk. It only
+ * waits if the disk falls a whole buffer behind, since the writer then still holds the spare buffer.
+ */
+public class InputRecorder implements Closeable {
+
+    static final byte[] MAGIC = {'E', 'M', 'J', 'R'};
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = MAGIC.length + 1 + 8;
+
+    /// Two varints of at most 5 bytes and the control.
+    static final int MAX_EVENT_SIZE = 5 + 1 + 5;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final FileChannel channel;
+    private final Thread _writer;
+    /// Buffer being filled with events.
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    /// Empty buffer to swap in once the current one is full, or null while the writer holds it.
+    private ByteBuffer spare = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    /// Full buffer waiting for the writer, if any.
+    private ByteBuffer full;
+    /// Why the writer stopped, if it failed.
+    private IOException failure;
+    private final long startNanos;
+    private long lastMicros;
+    private long eventCount;
+    private boolean closed;
+
+    /// Creates or truncates the file.
+    public InputRecorder(File file) throws IOException {
+        channel = new FileOutputStream(file).getChannel();
+        startNanos = System.nanoTime();
+        buffer.put(MAGIC);
+        buffer.put((byte) VERSION);
+        buffer.putLong(System.currentTimeMillis());
+        _writer = new Thread("InputRecorder-" + file.getName()) {
+            @Override
+            public void run() {
+                write_loop();
+            }
+        };
+        _writer.setDaemon(true);
+        _writer.start();
+    }
+
+    /**
+     * Append the updates of a drain cycle (see {@link ControllerState#take(int[], int[])}).
+     *
+     * @param timeNanos When their input happened, from {@link System#nanoTime()}.
+     */
+    public synchronized void record(long timeNanos, int[] controls, int[] values, int count) throws IOException {
+        if (closed) {
+            return;
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        for (int i = 0; i < count; i++) {
+            if (ControllerState.getControl(controls[i]) >= ControllerState.CONTROL_COUNT) {
+                continue;
+            }
+            if (buffer.remaining() < MAX_EVENT_SIZE) {
+                handOff();
+            }
+            final long micros = Math.max(lastMicros, (timeNanos - startNanos) / 1000);
+            putVarint(buffer, (int) Math.min(Integer.MAX_VALUE, micros - lastMicros));
+            lastMicros = micros;
+            buffer.put((byte) controls[i]);
+            putVarint(buffer, (values[i] << 1) ^ (values[i] >> 31));
+            eventCount++;
+        }
+    }
+
+    public synchronized long getEventCount() {
+        return eventCount;
+    }
+
+    /// Give the current buffer to the writer, and go on with the spare one.
+    private void handOff() throws IOException {
+        try {
+            while (spare == null && failure == null) {
+                wait();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the disk");
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        full = buffer;
+        buffer = spare;
+        spare = null;
+        notifyAll();
+    }
+
+    private void write_loop() {
+        while (true) {
+            final ByteBuffer toWrite;
+            synchronized (this) {
+                while (full == null && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException _ex) {
+                        // Only closing stops the writer, so that no event is lost
+                    }
+                }
+                if (full == null) {
+                    return;
+                }
+                toWrite = full;
+                full = null;
+            }
+            try {
+                toWrite.flip();
+                while (toWrite.hasRemaining()) {
+                    channel.write(toWrite);
+                }
+                toWrite.clear();
+            } catch (IOException ex) {
+                synchronized (this) {
+                    failure = ex;
+                    notifyAll();
+                }
+                return;
+            }
+            synchronized (this) {
+                spare = toWrite;
+                notifyAll();
+            }
+        }
+    }
+
+    /// Unsigned LEB128: 7 bits per byte, least significant first.
+    private static void putVarint(ByteBuffer out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.put((byte) (value & 0x7F | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    /// Writes the remaining events, and waits until they are on the file. The updates recorded afterwards are ignored.
+    @Override
+    public void close() throws IOException {
+        try {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                if (buffer.position() > 0) {
+                    handOff();
+                }
+                closed = true;
+                notifyAll();
+            }
+            try {
+                _writer.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while writing the end of the recording");
+            }
+            synchronized (this) {
+                if (failure != null) {
+                    throw failure;
+                }
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+}
@@ -0,0 +1,167 @@
+package com.emansapplication.emanvirtualjoystick.dispatch;
+
+import com.emansapplication.emanvirtualjoystick.SocketDispatcher;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Reads a log written by {@link InputRecorder}, and sends it again through a {@link SocketDispatcher},
+ * with the original timing or as fast as possible.
+ * <p>
+ * Run {@link #main(String[])} to print the events of a log, or to replay it to a server.
+ */
+public class InputReplayer implements Closeable {
+
+    @FunctionalInterface
+    public interface Listener {
+        /// @param timeMicros Time of the event since the start of the recording.
+        void onEvent(long timeMicros, int controlId, int value);
+    }
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+    private final long startTimeMillis;
+    private boolean endOfFile;
+
+    public InputReplayer(File file) throws IOException {
+        channel = new FileInputStream(file).getChannel();
+        try {
+            buffer.limit(0);
+            if (!fill(InputRecorder.HEADER_SIZE)) {
+                throw new EOFException("Not an input log: " + file);
+            }
+            final byte[] magic = new byte[InputRecorder.MAGIC.length];
+            buffer.get(magic);
+            final int version = buffer.get() & 0xFF;
+            if (!Arrays.equals(magic, InputRecorder.MAGIC) || version != InputRecorder.VERSION) {
+                throw new IOException("Not an input log, or of an unknown version: " + file);
+            }
+            startTimeMillis = buffer.getLong();
+        } catch (IOException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    /// Start of the recording, in ms since the epoch.
+    public long getStartTimeMillis() {
+        return startTimeMillis;
+    }
+
+    /// Make at least this number of bytes available, unless the file ends first.
+    private boolean fill(int size) throws IOException {
+        while (buffer.remaining() < size && !endOfFile) {
+            buffer.compact();
+            endOfFile = channel.read(buffer) < 0;
+            buffer.flip();
+        }
+        return buffer.remaining() >= size;
+    }
+
+    private int getVarint() throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            if (!buffer.hasRemaining()) {
+                throw new EOFException("Truncated event");
+            }
+            final int b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    /**
+     * Read the remaining events. An event cut by the end of the file, e.g. when the recorder
+     * was not closed, ends the log.
+     *
+     * @return The number of events read.
+     */
+    public long read(Listener listener) throws IOException {
+        long count = 0;
+        long timeMicros = 0;
+        while (true) {
+            fill(InputRecorder.MAX_EVENT_SIZE);
+            if (!buffer.hasRemaining()) {
+                return count;
+            }
+            final int controlId;
+            final int zigzag;
+            try {
+                timeMicros += getVarint();
+                if (!buffer.hasRemaining()) {
+                    return count;
+                }
+                controlId = buffer.get() & 0xFF;
+                zigzag = getVarint();
+            } catch (EOFException ex) {
+                return count;
+            }
+            listener.onEvent(timeMicros, controlId, (zigzag >>> 1) ^ -(zigzag & 1));
+            count++;
+        }
+    }
+
+    /**
+     * Send the remaining events through the dispatcher.
+     *
+     * @param realTime True to keep the original timing, false to send them as fast as possible. Then, the replay
+     *                 waits for the writer whenever the edge buffer of the dispatcher is full, by default
+     *                 (see {@link ControllerState#OVERFLOW_BLOCK}), so no edge is lost.
+     * @return The number of events sent.
+     */
+    public long replay(SocketDispatcher dispatcher, boolean realTime) throws IOException {
+        final long startNanos = System.nanoTime();
+        return read((timeMicros, controlId, value) -> {
+            if (realTime) {
+                final long deadline = startNanos + TimeUnit.MICROSECONDS.toNanos(timeMicros);
+                long delay;
+                while ((delay = deadline - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(delay);
+                }
+            }
+            dispatcher.dispatchUpdate(controlId, value);
+        });
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /// Usage: {@code InputReplayer log [host port [fast]]}.
+    public static void main(String[] args) throws IOException, InterruptedException {
+        try (InputReplayer replayer = new InputReplayer(new File(args[0]))) {
+            if (args.length < 3) {
+                System.out.println("Recorded at " + new Date(replayer.getStartTimeMillis()));
+                replayer.read((timeMicros, controlId, value) ->
+                        System.out.printf("%10.3f ms pad %d %s=%d%n", timeMicros / 1e3, ControllerState.getPad(controlId),
+                                ControllerState.getName(ControllerState.getControl(controlId)), value));
+                return;
+            }
+            try (SocketDispatcher dispatcher = new SocketDispatcher(args[1], Integer.parseInt(args[2]))) {
+                while (!dispatcher.isConnected()) {
+                    Thread.sleep(10);
+                }
+                final long start = System.nanoTime();
+                final long count = replayer.replay(dispatcher, args.length < 4 || !args[3].equals("fast"));
+                System.out.printf("Replayed %d events in %.1f ms%n", count, (System.nanoTime() - start) / 1e6);
+                // Let the writer send the last updates before quitting
+                Thread.sleep(100);
+            }
+        }
+    }
+
+}
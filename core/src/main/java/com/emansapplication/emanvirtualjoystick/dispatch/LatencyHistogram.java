@@ -0,0 +1,109 @@
+package com.emansapplication.emanvirtualjoystick.dispatch;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fixed-size histogram of latencies. Memory does not grow with the number of samples.
+ * <p>
+ * Buckets are log-linear: each power of two of microseconds is split into
+ * {@link #SUB_BUCKETS} equal buckets, so the relative error of a percentile is at most
+ * 1 / SUB_BUCKETS. The maximum is tracked exactly.
+ */
+public class LatencyHistogram {
+
+    public static final int SUB_BUCKETS = 8;
+    private static final int SUB_BUCKET_BITS = 3;
+    /// Powers of two of microseconds covered by the histogram, i.e. up to about 4.5 minutes.
+    private static final int MAGNITUDES = 28;
+
+    private final long[] counts = new long[(MAGNITUDES + 1) * SUB_BUCKETS];
+    private long count;
+    private long maxNanos;
+
+    public synchronized void record(long nanos) {
+        if (nanos < 0) {
+            return;
+        }
+        counts[bucketOf(TimeUnit.NANOSECONDS.toMicros(nanos))]++;
+        count++;
+        maxNanos = Math.max(maxNanos, nanos);
+    }
+
+    /// Add the samples of another histogram, e.g. to summarize several connections.
+    public void add(LatencyHistogram other) {
+        final long[] otherCounts;
+        final long otherCount;
+        final long otherMaxNanos;
+        // Never hold both locks, so that two histograms can be added to each other concurrently
+        synchronized (other) {
+            otherCounts = other.counts.clone();
+            otherCount = other.count;
+            otherMaxNanos = other.maxNanos;
+        }
+        synchronized (this) {
+            for (int bucket = 0; bucket < counts.length; bucket++) {
+                counts[bucket] += otherCounts[bucket];
+            }
+            count += otherCount;
+            maxNanos = Math.max(maxNanos, otherMaxNanos);
+        }
+    }
+
+    public synchronized void reset() {
+        Arrays.fill(counts, 0);
+        count = 0;
+        maxNanos = 0;
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    public synchronized long getMaxNanos() {
+        return maxNanos;
+    }
+
+    /**
+     * @param percentile Between 0 and 100.
+     * @return An upper bound of the latency under which this percentage of the samples fall,
+     * in nanoseconds, or 0 if no sample was recorded.
+     */
+    public synchronized long getPercentileNanos(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        final long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int bucket = 0; bucket < counts.length; bucket++) {
+            seen += counts[bucket];
+            if (seen >= rank) {
+                return Math.min(maxNanos, TimeUnit.MICROSECONDS.toNanos(upperBoundOf(bucket) + 1) - 1);
+            }
+        }
+        return maxNanos;
+    }
+
+    private static int bucketOf(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        final int magnitude = 63 - Long.numberOfLeadingZeros(micros) - SUB_BUCKET_BITS + 1;
+        if (magnitude > MAGNITUDES) {
+            return (MAGNITUDES + 1) * SUB_BUCKETS - 1;
+        }
+        final int subBucket = (int) (micros >> (magnitude - 1)) - SUB_BUCKETS;
+        return magnitude * SUB_BUCKETS + subBucket;
+    }
+
+    /// Largest value, in microseconds, that falls in the bucket.
+    private static long upperBoundOf(int bucket) {
+        final int magnitude = bucket / SUB_BUCKETS;
+        final int subBucket = bucket % SUB_BUCKETS;
+        if (magnitude == 0) {
+            return subBucket;
+        }
+        return ((long) (SUB_BUCKETS + subBucket + 1) << (magnitude - 1)) - 1;
+    }
+
+}
@@ -0,0 +1,152 @@
+package com.emansapplication.emanvirtualjoystick.dispatch;
+
+import com.emansapplication.emanvirtualjoystick.SocketDispatcher;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * End-to-end benchmark of a {@link SocketDispatcher} against a server on the loopback interface,
+ * on the JVM: no device is needed.
+ * <p>
+ * The left stick is moved at fixed rates, then as fast as possible. Each position is a distinct
+ * value of the X axis, so the server can tell when it was dispatched, and the latency from the
+ * dispatch call to the reception by the server is recorded in a {@link LatencyHistogram}.
+ * Positions conflated by the dispatcher are never received, and are not counted.
+ * <p>
+ * Usage: {@code LoopbackBenchmark [text|binary|udp] [seconds per rate] [maximum p99 in ms]}.
+ * The process exits with status 1 when the p99 of any rate exceeds the maximum, so that a build
+ * can fail on a latency regression.
+ */
+public class LoopbackBenchmark {
+
+    /// Rates at which the stick is moved, in Hz. 0 moves it as fast as possible.
+    private static final int[] RATES_HZ = {60, 120, 250, 500, 1000, 0};
+
+    /// Positions are tagged with values from 1 to this, then wrap around.
+    private static final int MAX_TAG = 30_000;
+
+    private final AtomicLongArray dispatchTimes = new AtomicLongArray(MAX_TAG + 1);
+    private final LatencyHistogram histogram = new LatencyHistogram();
+
+    private void received(int controlId, int value) {
+        if (controlId != ControllerState.AXIS_X || value < 1 || value > MAX_TAG) {
+            return;
+        }
+        final long dispatchTime = dispatchTimes.get(value);
+        if (dispatchTime != 0) {
+            histogram.record(System.nanoTime() - dispatchTime);
+        }
+    }
+
+    /// @return The p99 of the latency, in nanoseconds.
+    private long run(SocketDispatcher dispatcher, int rateHz, long durationNanos, String label) {
+        histogram.reset();
+        final long startBytes = dispatcher.getWrittenBytes();
+        final long startWrites = dispatcher.getWriteCount();
+        final long periodNanos = rateHz == 0 ? 0 : TimeUnit.SECONDS.toNanos(1) / rateHz;
+        final long start = System.nanoTime();
+        long deadline = start;
+        long dispatched = 0;
+        int tag = 0;
+        while (System.nanoTime() - start < durationNanos) {
+            if (periodNanos > 0) {
+                deadline += periodNanos;
+                long delay;
+                while ((delay = deadline - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(delay);
+                }
+            }
+            tag = tag % MAX_TAG + 1;
+            dispatchTimes.set(tag, System.nanoTime());
+            dispatcher.dispatchLeftJoystickPosition(tag / (double) ControllerState.AXIS_MAX, 0);
+            dispatched++;
+        }
+        // Let the last updates arrive
+        LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(100));
+        final double seconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.printf("%-6s %8s %10d %10d %10.1f %10.1f %10.1f %12.0f %10.0f%n",
+                label, rateHz == 0 ? "max" : rateHz + " Hz", dispatched, histogram.getCount(),
+                histogram.getPercentileNanos(50) / 1e3, histogram.getPercentileNanos(99) / 1e3,
+                histogram.getMaxNanos() / 1e3,
+                (dispatcher.getWrittenBytes() - startBytes) / seconds,
+                (dispatcher.getWriteCount() - startWrites) / seconds);
+        return histogram.getPercentileNanos(99);
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        final String protocol = args.length > 0 ? args[0] : "binary";
+        final long durationNanos = TimeUnit.SECONDS.toNanos(args.length > 1 ? Long.parseLong(args[1]) : 2);
+        final double maxP99Millis = args.length > 2 ? Double.parseDouble(args[2]) : Double.POSITIVE_INFINITY;
+
+        final LoopbackBenchmark benchmark = new LoopbackBenchmark();
+        final TransportOptions options = new TransportOptions();
+        final Closeable server;
+        final int port;
+        switch (protocol) {
+            case "text":
+            case "binary": {
+                options.setBinaryProtocolAllowed(protocol.equals("binary"));
+                final ReferenceServer tcpServer = new ReferenceServer(0, true,
+                        (client, controlId, value) -> benchmark.received(controlId, value));
+                server = tcpServer;
+                port = tcpServer.getLocalPort();
+                break;
+            }
+            case "udp": {
+                options.setTransport(TransportOptions.TRANSPORT_UDP);
+                final DatagramStateReceiver receiver = new DatagramStateReceiver(0);
+                final Thread thread = new Thread("LoopbackBenchmark-receiver") {
+                    @Override
+                    public void run() {
+                        try {
+                            receiver.run((sender, packet) -> {
+                                if (StatePacket.getPad(packet) == 0) {
+                                    benchmark.received(ControllerState.AXIS_X, StatePacket.getAxis(packet, ControllerState.AXIS_X));
+                                }
+                            });
+                        } catch (IOException ex) {
+                            ex.printStackTrace();
+                        }
+                    }
+                };
+                thread.setDaemon(true);
+                thread.start();
+                server = receiver;
+                port = receiver.getLocalPort();
+                break;
+            }
+            default:
+                throw new IllegalArgumentException("Unknown protocol: " + protocol);
+        }
+
+        boolean regressed = false;
+        try (SocketDispatcher dispatcher = new SocketDispatcher("127.0.0.1", port, options)) {
+            while (!dispatcher.isConnected()) {
+                Thread.sleep(10);
+            }
+            // Let the binary handshake complete, and warm the code up
+            benchmark.run(dispatcher, 1000, TimeUnit.MILLISECONDS.toNanos(500), "warmup");
+
+            System.out.printf("%-6s %8s %10s %10s %10s %10s %10s %12s %10s%n",
+                    "", "rate", "dispatched", "received", "p50 us", "p99 us", "max us", "bytes/s", "writes/s");
+            for (int rate : RATES_HZ) {
+                final long p99 = benchmark.run(dispatcher, rate, durationNanos, protocol);
+                if (p99 / 1e6 > maxP99Millis) {
+                    regressed = true;
+                }
+            }
+        } finally {
+            server.close();
+        }
+        if (regressed) {
+            System.out.println("p99 above " + maxP99Millis + " ms");
+            System.exit(1);
+        }
+    }
+
+}
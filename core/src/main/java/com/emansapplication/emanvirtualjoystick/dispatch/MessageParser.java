@@ -0,0 +1,232 @@
+package com.emansapplication.emanvirtualjoystick.dispatch;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Parses the messages sent by a server, without allocating.
+ * <p>
+ * Over TCP, servers send text lines, whatever the protocol the client writes with:
+ * <pre>
+ *   QUIT                     the server disconnects the client
+ *   PONG token               answer to a latency probe
+ *   PROTO TEXT|BIN1          the client must write with this protocol (see {@link BinaryCodec#HANDSHAKE})
+ *   RESYNC                   the server asks for the full state of the pads
+ *   RATE hz                  the server asks for snapshots at this rate, 0 to send changes right away
+ *   RUMBLE pad strength ms   the server asks a pad to vibrate, with a strength from 0 to 255
+ *   TIME t0 t1 t2            answer to a clock synchronization request, see {@link ClockEstimator}
+ * </pre>
+ * Over UDP, they send the matching datagrams of {@link StatePacket}.
+ * <p>
+ * The keyword of a line, or the type of a datagram, is looked up in a table giving the message
+ * and the arguments it expects, and the message is passed to a {@link ServerMessageHandler}.
+ * Arguments are decimal integers, or protocol names. Unknown and malformed messages are skipped,
+ * and the arguments beyond the expected ones are ignored, so that servers can send messages that
+ * older clients do not know. Instances must only be used by a single thread.
+ */
+public class MessageParser {
+
+    public static final int MESSAGE_QUIT = 0;
+    public static final int MESSAGE_PONG = 1;
+    public static final int MESSAGE_PROTO = 2;
+    public static final int MESSAGE_RESYNC = 3;
+    public static final int MESSAGE_RATE = 4;
+    public static final int MESSAGE_RUMBLE = 5;
+    public static final int MESSAGE_TIME = 6;
+    public static final int MESSAGE_COUNT = 7;
+
+    /// Arguments of {@link #MESSAGE_PROTO}.
+    public static final int PROTOCOL_TEXT = 0;
+    public static final int PROTOCOL_BINARY = 1;
+
+    /// Maximum number of arguments expected by a message.
+    public static final int MAX_ARGS = 3;
+
+    /// Longer lines are skipped.
+    public static final int MAX_LINE_LENGTH = 128;
+
+    private static final byte[][] KEYWORDS = ascii("QUIT", "PONG", "PROTO", "RESYNC", "RATE", "RUMBLE", "TIME");
+    /// Number of arguments expected by each message.
+    private static final int[] ARG_COUNTS = {0, 1, 1, 0, 1, 3, 3};
+    /// Names of the protocols, by PROTOCOL_ constant.
+    private static final byte[][] PROTOCOLS = ascii("TEXT", "BIN1");
+
+    /// Message of each datagram type, from {@link StatePacket#TYPE_STATE}. -1 for the types servers do not send.
+    private static final int[] DATAGRAM_MESSAGES = {
+            -1, MESSAGE_QUIT, -1, MESSAGE_PONG, -1, MESSAGE_RESYNC, MESSAGE_RATE, MESSAGE_RUMBLE, MESSAGE_TIME,
+    };
+    /// Size in bytes of each argument of the datagram of each message, unsigned unless 8 bytes long.
+    private static final int[][] DATAGRAM_FIELDS = {{}, {8}, null, {}, {2}, {1, 1, 2}, {8, 8, 8}};
+
+    private final long[] args = new long[MAX_ARGS];
+
+    /// Bytes received and not parsed yet, in write mode.
+    private final ByteBuffer input = ByteBuffer.allocate(MAX_LINE_LENGTH);
+    /// Set while the rest of a line that was too long is skipped.
+    private boolean skipping;
+
+    private static byte[][] ascii(String... strings) {
+        final byte[][] bytes = new byte[strings.length][];
+        for (int i = 0; i < strings.length; i++) {
+            bytes[i] = strings[i].getBytes(StandardCharsets.US_ASCII);
+        }
+        return bytes;
+    }
+
+    /// Buffer to read the text of the server into, before calling {@link #parseLines(ServerMessageHandler)}.
+    public ByteBuffer getInput() {
+        return input;
+    }
+
+    /**
+     * Handle every complete line of the input. The end of an incomplete line stays in the input.
+     *
+     * @return false if the server quit. The lines after {@code QUIT} are dropped.
+     */
+    public boolean parseLines(ServerMessageHandler handler) {
+        final byte[] bytes = input.array();
+        final int end = input.position();
+        int start = 0;
+        for (int i = 0; i < end; i++) {
+            if (bytes[i] != '\n') {
+                continue;
+            }
+            if (skipping) {
+                skipping = false;
+            } else if (parseLine(bytes, start, i, handler) == MESSAGE_QUIT) {
+                input.clear();
+                return false;
+            }
+            start = i + 1;
+        }
+        if (start == 0 && end == bytes.length) {
+            // No end of line in sight
+            skipping = true;
+            input.clear();
+        } else {
+            input.limit(end).position(start);
+            input.compact();
+        }
+        return true;
+    }
+
+    /// @return The message of the line, or -1 if it was skipped.
+    private int parseLine(byte[] bytes, int start, int end, ServerMessageHandler handler) {
+        if (end > start && bytes[end - 1] == '\r') {
+            end--;
+        }
+        int tokenEnd = nextSpace(bytes, start, end);
+        final int message = lookUp(KEYWORDS, bytes, start, tokenEnd);
+        if (message < 0) {
+            return -1;
+        }
+        final int argCount = ARG_COUNTS[message];
+        int position = tokenEnd;
+        for (int i = 0; i < argCount; i++) {
+            while (position < end && bytes[position] == ' ') {
+                position++;
+            }
+            if (position == end) {
+                return -1;
+            }
+            tokenEnd = nextSpace(bytes, position, end);
+            if (!parseArgument(bytes, position, tokenEnd, i)) {
+                return -1;
+            }
+            position = tokenEnd;
+        }
+        handler.onServerMessage(message, args, argCount);
+        return message;
+    }
+
+    /// A decimal integer, or the name of a protocol.
+    private boolean parseArgument(byte[] bytes, int start, int end, int index) {
+        final int protocol = lookUp(PROTOCOLS, bytes, start, end);
+        if (protocol >= 0) {
+            args[index] = protocol;
+            return true;
+        }
+        final boolean negative = bytes[start] == '-';
+        int i = negative ? start + 1 : start;
+        if (i == end) {
+            return false;
+        }
+        // Accumulate a negative number, so that Long.MIN_VALUE does not overflow
+        long value = 0;
+        for (; i < end; i++) {
+            final int digit = bytes[i] - '0';
+            if (digit < 0 || digit > 9 || value < (Long.MIN_VALUE + digit) / 10) {
+                return false;
+            }
+            value = value * 10 - digit;
+        }
+        if (!negative && value == Long.MIN_VALUE) {
+            return false;
+        }
+        args[index] = negative ? value : -value;
+        return true;
+    }
+
+    private static int nextSpace(byte[] bytes, int start, int end) {
+        while (start < end && bytes[start] != ' ') {
+            start++;
+        }
+        return start;
+    }
+
+    /// @return The index of the token in the table, or -1.
+    private static int lookUp(byte[][] table, byte[] bytes, int start, int end) {
+        for (int i = 0; i < table.length; i++) {
+            final byte[] entry = table[i];
+            if (entry.length != end - start) {
+                continue;
+            }
+            int j = 0;
+            while (j < entry.length && entry[j] == bytes[start + j]) {
+                j++;
+            }
+            if (j == entry.length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Handle a datagram of the server, from the position to the limit of the buffer.
+     *
+     * @return false if the server quit.
+     */
+    public boolean parseDatagram(ByteBuffer datagram, ServerMessageHandler handler) {
+        if (!datagram.hasRemaining()) {
+            return true;
+        }
+        final int type = (datagram.get(datagram.position()) & 0xFF) - StatePacket.TYPE_STATE;
+        if (type < 0 || type >= DATAGRAM_MESSAGES.length || DATAGRAM_MESSAGES[type] < 0) {
+            return true;
+        }
+        final int message = DATAGRAM_MESSAGES[type];
+        final int[] fields = DATAGRAM_FIELDS[message];
+        int offset = datagram.position() + 1;
+        for (int i = 0; i < fields.length; i++) {
+            if (offset + fields[i] > datagram.limit()) {
+                return true;
+            }
+            switch (fields[i]) {
+                case 1:
+                    args[i] = datagram.get(offset) & 0xFF;
+                    break;
+                case 2:
+                    args[i] = datagram.getShort(offset) & 0xFFFF;
+                    break;
+                default:
+                    args[i] = datagram.getLong(offset);
+                    break;
+            }
+            offset += fields[i];
+        }
+        handler.onServerMessage(message, args, fields.length);
+        return message != MESSAGE_QUIT;
+    }
+
+}
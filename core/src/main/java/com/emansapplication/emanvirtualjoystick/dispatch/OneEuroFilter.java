@@ -0,0 +1,106 @@
+package com.emansapplication.emanvirtualjoystick.dispatch;
+
+/**
+ * Adaptive low-pass filter of Casiez, Roussel and Vogel ("1 Euro Filter: A Simple Speed-based Low-pass
+ * Filter for Noisy Input in Interactive Systems", CHI 2012).
+ * <p>
+ * The cutoff frequency grows with the speed of the stick: {@code cutoff = minCutoff + beta * speed}.
+ * A stick held still is smoothed hard, which removes the tremor of the finger, while a fast move
+ * goes through with little lag. The speed is itself smoothed, with a fixed cutoff.
+ * <p>
+ * Both axes share the cutoff, computed from the speed of the stick in the plane, so that smoothing
+ * does not bend the direction of a move. Positions are between -1 and 1, so the speed is in
+ * stick radiuses per second.
+ */
+public class OneEuroFilter implements StickFilter {
+
+    /// Smoothing of a stick held still.
+    public static final double DEFAULT_MIN_CUTOFF_HZ = 1.5;
+    /// Increase of the cutoff per radius per second.
+    public static final double DEFAULT_BETA = 2;
+    public static final double DEFAULT_DERIVATIVE_CUTOFF_HZ = 1;
+
+    /// Samples closer in time are taken this far apart, so that simultaneous samples are not ignored.
+    private static final double MIN_PERIOD_SECONDS = 1e-3;
+
+    // 2 pi times the parameters, so that a smoothing factor costs a multiplication and a division
+    private final double minCutoffRadians;
+    private final double betaRadians;
+    private final double derivativeCutoffRadians;
+
+    private boolean primed;
+    private long lastTimeNanos;
+    private double x;
+    private double y;
+    /// Smoothed speed along each axis.
+    private double dx;
+    private double dy;
+
+    public OneEuroFilter() {
+        this(DEFAULT_MIN_CUTOFF_HZ, DEFAULT_BETA, DEFAULT_DERIVATIVE_CUTOFF_HZ);
+    }
+
+    /**
+     * @param minCutoffHz        Cutoff frequency when the stick is still. Lower values remove more tremor.
+     * @param beta               Increase of the cutoff frequency with the speed. Higher values reduce the lag of fast moves.
+     * @param derivativeCutoffHz Cutoff frequency of the speed.
+     */
+    public OneEuroFilter(double minCutoffHz, double beta, double derivativeCutoffHz) {
+        if (!(minCutoffHz > 0) || !(beta >= 0) || !(derivativeCutoffHz > 0)) {
+            throw new IllegalArgumentException("Invalid parameters: " + minCutoffHz + ", " + beta + ", " + derivativeCutoffHz);
+        }
+        minCutoffRadians = 2 * Math.PI * minCutoffHz;
+        betaRadians = 2 * Math.PI * beta;
+        derivativeCutoffRadians = 2 * Math.PI * derivativeCutoffHz;
+    }
+
+    @Override
+    public void filter(long timeNanos, double x, double y) {
+        if (!primed) {
+            primed = true;
+            lastTimeNanos = timeNanos;
+            this.x = x;
+            this.y = y;
+            dx = dy = 0;
+            return;
+        }
+        final double period = period(timeNanos - lastTimeNanos);
+        lastTimeNanos = timeNanos;
+
+        final double derivativeAlpha = smoothingFactor(derivativeCutoffRadians, period);
+        dx += derivativeAlpha * ((x - this.x) / period - dx);
+        dy += derivativeAlpha * ((y - this.y) / period - dy);
+
+        final double cutoffRadians = minCutoffRadians + betaRadians * Math.sqrt(dx * dx + dy * dy);
+        final double alpha = smoothingFactor(cutoffRadians, period);
+        this.x += alpha * (x - this.x);
+        this.y += alpha * (y - this.y);
+    }
+
+    @Override
+    public double getX() {
+        return x;
+    }
+
+    @Override
+    public double getY() {
+        return y;
+    }
+
+    @Override
+    public void reset() {
+        primed = false;
+    }
+
+    /// Time between two samples, in seconds.
+    static double period(long elapsedNanos) {
+        return Math.max(MIN_PERIOD_SECONDS, elapsedNanos / 1e9);
+    }
+
+    /// Smoothing factor of a first-order low-pass filter: 1 / (1 + tau / period), with tau = 1 / (2 pi cutoff).
+    static double smoothingFactor(double cutoffRadians, double period) {
+        final double r = cutoffRadians * period;
+        return r / (r + 1);
+    }
+
+}
@@ -0,0 +1,111 @@
+package com.emansapplication.emanvirtualjoystick.dispatch;
+
+/**
+ * Updates held back for a server that fell behind, merged into a single snapshot as they come:
+ * the latest value of each axis, and every button edge and command, in order. Drained like
+ * {@link ControllerState}, edges first, so that a slow server gets fewer and larger frames,
+ * but never misses a press.
+ * <p>
+ * Not thread-safe.
+ */
+public class PendingSnapshot {
+
+    private static final int AXIS_SLOTS = ControllerState.MAX_PADS * ControllerState.AXIS_COUNT;
+    private static final int INITIAL_EDGE_CAPACITY = 16;
+
+    /// Value of axis i of pad p at index (p * AXIS_COUNT + i).
+    private final int[] axisValues = new int[AXIS_SLOTS];
+    /// Bit (p * AXIS_COUNT + i) is set if axis i of pad p has a pending value.
+    private int dirtyAxes;
+
+    /// Pending edges and commands, from edgeHead, as (control id, value). Allocated as needed.
+    private int[] edgeControls = new int[INITIAL_EDGE_CAPACITY];
+    private int[] edgeValues = new int[INITIAL_EDGE_CAPACITY];
+    private int edgeHead;
+    private int edgeCount;
+
+    public boolean isEmpty() {
+        return dirtyAxes == 0 && edgeCount == 0;
+    }
+
+    /**
+     * Merge drained updates (see {@link ControllerState#take(int[], int[])}) into the snapshot.
+     *
+     * @return The number of pending axis values superseded by the merged ones.
+     */
+    public int merge(int[] controls, int[] values, int count) {
+        int superseded = 0;
+        for (int i = 0; i < count; i++) {
+            final int control = ControllerState.getControl(controls[i]);
+            if (ControllerState.isAxis(control)) {
+                final int index = ControllerState.getPad(controls[i]) * ControllerState.AXIS_COUNT + control;
+                if ((dirtyAxes & (1 << index)) != 0) {
+                    superseded++;
+                }
+                axisValues[index] = values[i];
+                dirtyAxes |= 1 << index;
+            } else {
+                pushEdge(controls[i], values[i]);
+            }
+        }
+        return superseded;
+    }
+
+    private void pushEdge(int controlId, int value) {
+        if (edgeHead + edgeCount == edgeControls.length) {
+            if (edgeHead > 0) {
+                System.arraycopy(edgeControls, edgeHead, edgeControls, 0, edgeCount);
+                System.arraycopy(edgeValues, edgeHead, edgeValues, 0, edgeCount);
+            } else {
+                final int[] grownControls = new int[edgeControls.length * 2];
+                final int[] grownValues = new int[edgeValues.length * 2];
+                System.arraycopy(edgeControls, 0, grownControls, 0, edgeCount);
+                System.arraycopy(edgeValues, 0, grownValues, 0, edgeCount);
+                edgeControls = grownControls;
+                edgeValues = grownValues;
+            }
+            edgeHead = 0;
+        }
+        edgeControls[edgeHead + edgeCount] = controlId;
+        edgeValues[edgeHead + edgeCount] = value;
+        edgeCount++;
+    }
+
+    /**
+     * Drain the snapshot, with the contract of {@link ControllerState#drain(int[], int[])}: edges first, in order,
+     * then the latest value of each axis. Edges that do not fit are kept for the next call.
+     */
+    public int drain(int[] controls, int[] values) {
+        int count = 0;
+        final int edgeRoom = controls.length - Integer.bitCount(dirtyAxes);
+        while (edgeCount > 0 && count < edgeRoom) {
+            controls[count] = edgeControls[edgeHead];
+            values[count] = edgeValues[edgeHead];
+            edgeHead++;
+            edgeCount--;
+            count++;
+        }
+        if (edgeCount == 0) {
+            edgeHead = 0;
+        }
+        for (int index = 0; index < AXIS_SLOTS; index++) {
+            if ((dirtyAxes & (1 << index)) != 0) {
+                controls[count] = ControllerState.controlId(index / ControllerState.AXIS_COUNT, index % ControllerState.AXIS_COUNT);
+                values[count] = axisValues[index];
+                count++;
+            }
+        }
+        dirtyAxes = 0;
+        return count;
+    }
+
+    /// @return The number of updates dropped.
+    public int clear() {
+        final int count = edgeCount + Integer.bitCount(dirtyAxes);
+        edgeHead = 0;
+        edgeCount = 0;
+        dirtyAxes = 0;
+        return count;
+    }
+
+}
@@ -0,0 +1,61 @@
+package com.emansapplication.emanvirtualjoystick.dispatch;
+
+/**
+ * Counts the updates going through a dispatcher, to tell how far it is from keeping up.
+ * <ul>
+ *   <li>Enqueued: updates queued in the {@link ControllerState}, including the updates of keyframes.</li>
+ *   <li>Sent: updates written to the active server.</li>
+ *   <li>Dropped: updates that will never reach the active server. Axis values replaced by a newer
+ *       value before being sent, button edges dropped by {@link ControllerState#OVERFLOW_DROP_OLDEST},
+ *       and updates that the active server did not take, or sent while no server was connected.</li>
+ *   <li>Max depth: largest number of updates that were pending in the state at once.</li>
+ * </ul>
+ * Updates still pending or waiting to be written are neither sent nor dropped yet.
+ */
+public class QueueCounters {
+
+    private long enqueued;
+    private long sent;
+    private long dropped;
+    private int maxDepth;
+
+    public synchronized void recordEnqueued(int count) {
+        enqueued += count;
+    }
+
+    public synchronized void recordSent(int count) {
+        sent += count;
+    }
+
+    public synchronized void recordDropped(int count) {
+        dropped += count;
+    }
+
+    public synchronized void recordDepth(int depth) {
+        maxDepth = Math.max(maxDepth, depth);
+    }
+
+    public synchronized void reset() {
+        enqueued = 0;
+        sent = 0;
+        dropped = 0;
+        maxDepth = 0;
+    }
+
+    public synchronized long getEnqueued() {
+        return enqueued;
+    }
+
+    public synchronized long getSent() {
+        return sent;
+    }
+
+    public synchronized long getDropped() {
+        return dropped;
+    }
+
+    public synchronized int getMaxDepth() {
+        return maxDepth;
+    }
+
+}
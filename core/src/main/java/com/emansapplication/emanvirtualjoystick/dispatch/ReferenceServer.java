@@ -0,0 +1,334 @@
+package com.emansapplication.emanvirtualjoystick.dispatch;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reference server for the TCP transport, on the JVM. Understands the text protocol
+ * (see {@link TextCodec}), accepts the binary protocol (see {@link BinaryCodec}) when allowed,
+ * echoes latency probes and answers clock synchronization requests. Each client is served by its own thread.
+ * <p>
+ * Servers can send their messages to the clients (see {@link MessageParser}) with
+ * {@link #broadcast(String)}.
+ * <p>
+ * The dispatcher sends heartbeats to its servers, so that a server can drop the clients that stay silent
+ * for longer than a timeout (see {@link #setClientTimeout(int)}): they are gone, or unreachable.
+ * <p>
+ * Run {@link #main(String[])} to print the updates received on a local port, with the arguments
+ * {@code [port] [client timeout in ms]}.
+ */
+public class ReferenceServer implements Closeable {
+
+    @FunctionalInterface
+    public interface Listener {
+        /**
+         * Called from the thread of the client, for each update it sends.
+         *
+         * @param controlId The pad and the control, see {@link ControllerState#controlId(int, int)}.
+         */
+        void onUpdate(SocketAddress client, int controlId, int value);
+
+        /**
+         * Called before the updates of a frame that carries the time of its input.
+         *
+         * @param serverMicros The time of the input, on the clock of the server (see {@link #clockMicros()}).
+         */
+        default void onFrameTime(SocketAddress client, long serverMicros) {
+        }
+    }
+
+    private static final String PING = ControllerState.getName(ControllerState.COMMAND_PING) + " ";
+    private static final String TIME = ControllerState.getName(ControllerState.COMMAND_TIME) + " ";
+    private static final String AT = "AT ";
+
+    /// Origin of the clock of the server.
+    private final long startNanos = System.nanoTime();
+
+    private final ServerSocket serverSocket;
+    private final boolean binaryAllowed;
+    private final Listener listener;
+    private final Thread acceptor;
+    private final List<Socket> clients = new ArrayList<>();
+
+    private final AtomicLong updateCount = new AtomicLong();
+
+    private volatile int clientTimeoutMillis;
+
+    /**
+     * Listen on the loopback interface.
+     *
+     * @param port          The port, or 0 to pick a free one.
+     * @param binaryAllowed Whether the binary protocol is accepted when a client offers it.
+     */
+    public ReferenceServer(int port, boolean binaryAllowed, Listener listener) throws IOException {
+        this(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), binaryAllowed, listener);
+    }
+
+    public ReferenceServer(InetSocketAddress address, boolean binaryAllowed, Listener listener) throws IOException {
+        this.binaryAllowed = binaryAllowed;
+        this.listener = listener;
+        serverSocket = new ServerSocket();
+        serverSocket.bind(address);
+        acceptor = new Thread("ReferenceServer-acceptor") {
+            @Override
+            public void run() {
+                accept_loop();
+            }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public int getLocalPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /// Clock of the server, in microseconds since it started, as a game server would have its own.
+    public long clockMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos);
+    }
+
+    /// Number of updates received from every client.
+    public long getUpdateCount() {
+        return updateCount.get();
+    }
+
+    /// Drop the clients accepted from now on once they send nothing for this long. 0, the default, never drops them.
+    public void setClientTimeout(int millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("Negative timeout: " + millis);
+        }
+        clientTimeoutMillis = millis;
+    }
+
+    /// Send a line, e.g. "RATE 60", to every client. Clients that cannot receive it are dropped.
+    public void broadcast(String line) {
+        final byte[] bytes = (line + "\n").getBytes(StandardCharsets.US_ASCII);
+        synchronized (clients) {
+            for (Socket client : new ArrayList<>(clients)) {
+                try {
+                    send(client, bytes);
+                } catch (IOException ex) {
+                    closeClient(client);
+                }
+            }
+        }
+    }
+
+    private void accept_loop() {
+        int clientNumber = 0;
+        while (!serverSocket.isClosed()) {
+            final Socket client;
+            try {
+                client = serverSocket.accept();
+                client.setTcpNoDelay(true);
+                client.setSoTimeout(clientTimeoutMillis);
+            } catch (IOException ex) {
+                if (!serverSocket.isClosed()) {
+                    ex.printStackTrace();
+                }
+                return;
+            }
+            synchronized (clients) {
+                clients.add(client);
+            }
+            final Thread thread = new Thread("ReferenceServer-client-" + ++clientNumber) {
+                @Override
+                public void run() {
+                    client_loop(client);
+                }
+            };
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private void client_loop(Socket client) {
+        final SocketAddress address = client.getRemoteSocketAddress();
+        final StringBuilder line = new StringBuilder();
+        try {
+            final InputStream input = new BufferedInputStream(client.getInputStream());
+            final byte[] frame = new byte[BinaryCodec.FRAME_SIZE];
+            int first;
+            while ((first = input.read()) >= 0) {
+                if (first < 0x20 && first != '\n' && first != '\r') {
+                    // The first byte of a binary frame is lower than any character of a text line
+                    frame[0] = (byte) first;
+                    if (!readFully(input, frame, 1)) {
+                        break;
+                    }
+                    if (first == BinaryCodec.OP_QUIT) {
+                        break;
+                    }
+                    if (first == BinaryCodec.OP_TIMESTAMP) {
+                        listener.onFrameTime(address, BinaryCodec.getTimestamp(frame));
+                        continue;
+                    }
+                    received(address, frame[1] & 0xFF, (short) ((frame[2] & 0xFF) << 8 | (frame[3] & 0xFF)));
+                    continue;
+                }
+                line.setLength(0);
+                int c = first;
+                while (c >= 0 && c != '\n') {
+                    if (c != '\r') {
+                        line.append((char) c);
+                    }
+                    c = input.read();
+                }
+                if (!handleLine(client, address, line.toString())) {
+                    break;
+                }
+            }
+        } catch (SocketTimeoutException ex) {
+            System.err.println("Dropping " + address + ": silent for " + clientTimeoutMillis + " ms");
+        } catch (IOException ex) {
+            if (!client.isClosed()) {
+                ex.printStackTrace();
+            }
+        } finally {
+            closeClient(client);
+        }
+    }
+
+    /// @return false if the client quit.
+    private boolean handleLine(Socket client, SocketAddress address, String line) throws IOException {
+        if ("QUIT".equals(line)) {
+            return false;
+        } else if (BinaryCodec.HANDSHAKE.equals(line)) {
+            if (binaryAllowed) {
+                send(client, (line + "\n").getBytes(StandardCharsets.US_ASCII));
+            }
+            return true;
+        } else if (line.startsWith(PING)) {
+            send(client, ("PONG " + line.substring(PING.length()) + "\n").getBytes(StandardCharsets.US_ASCII));
+            return true;
+        } else if (line.startsWith(TIME)) {
+            final long receiveTime = clockMicros();
+            send(client, (line + " " + receiveTime + " " + clockMicros() + "\n").getBytes(StandardCharsets.US_ASCII));
+            return true;
+        } else if (line.startsWith(AT)) {
+            try {
+                listener.onFrameTime(address, Long.parseLong(line.substring(AT.length())));
+            } catch (NumberFormatException ex) {
+                // Malformed: skipped, like the unknown lines
+            }
+            return true;
+        }
+        int pad = 0;
+        if (line.startsWith("P") && line.indexOf(' ') > 1 && Character.isDigit(line.charAt(1))) {
+            try {
+                pad = Integer.parseInt(line.substring(1, line.indexOf(' ')));
+            } catch (NumberFormatException ex) {
+                return true;
+            }
+            line = line.substring(line.indexOf(' ') + 1);
+        }
+        final int space = line.indexOf(' ');
+        if (space < 0 || pad >= ControllerState.MAX_PADS) {
+            return true;
+        }
+        final String name = line.substring(0, space);
+        for (int control = 0; control < ControllerState.CONTROL_COUNT; control++) {
+            if (ControllerState.getName(control).equals(name)) {
+                try {
+                    received(address, ControllerState.controlId(pad, control), Integer.parseInt(line.substring(space + 1)));
+                } catch (NumberFormatException ex) {
+                    // Malformed: skipped, like the unknown lines
+                }
+                break;
+            }
+        }
+        return true;
+    }
+
+    private void received(SocketAddress address, int controlId, int value) {
+        updateCount.incrementAndGet();
+        listener.onUpdate(address, controlId, value);
+    }
+
+    private static boolean readFully(InputStream input, byte[] buffer, int offset) throws IOException {
+        while (offset < buffer.length) {
+            final int read = input.read(buffer, offset, buffer.length - offset);
+            if (read < 0) {
+                return false;
+            }
+            offset += read;
+        }
+        return true;
+    }
+
+    private static void send(Socket client, byte[] bytes) throws IOException {
+        final OutputStream output = client.getOutputStream();
+        synchronized (client) {
+            output.write(bytes);
+            output.flush();
+        }
+    }
+
+    private void closeClient(Socket client) {
+        synchronized (clients) {
+            clients.remove(client);
+        }
+        try {
+            client.close();
+        } catch (IOException ex) {
+            // Already lost
+        }
+    }
+
+    /// Stops accepting clients, and disconnects the current ones without telling them.
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        final List<Socket> remaining;
+        synchronized (clients) {
+            remaining = new ArrayList<>(clients);
+        }
+        for (Socket client : remaining) {
+            closeClient(client);
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        final int port = args.length > 0 ? Integer.parseInt(args[0]) : 0;
+        final InetSocketAddress address = new InetSocketAddress(port);
+        try (ReferenceServer server = new ReferenceServer(address, true, new Listener() {
+            @Override
+            public void onUpdate(SocketAddress client, int controlId, int value) {
+                System.out.println(client + " pad " + ControllerState.getPad(controlId) + " "
+                        + ControllerState.getName(ControllerState.getControl(controlId)) + "=" + value);
+            }
+
+            @Override
+            public void onFrameTime(SocketAddress client, long serverMicros) {
+                System.out.println(client + " frame of input at " + serverMicros + " us");
+            }
+        })) {
+            if (args.length > 1) {
+                server.setClientTimeout(Integer.parseInt(args[1]));
+            }
+            System.out.println("Listening on TCP port " + server.getLocalPort());
+            // Lets the players find the server on their network
+            try (DiscoveryResponder responder = new DiscoveryResponder(DiscoveryPacket.DEFAULT_PORT,
+                    "ReferenceServer", server.getLocalPort(), 1 << TransportOptions.TRANSPORT_TCP)) {
+                System.out.println("Answering discovery queries on UDP port " + responder.getLocalPort());
+                server.acceptor.join();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,57 @@
+package com.emansapplication.emanvirtualjoystick.dispatch;
+
+/**
+ * Smoothed round-trip time of a connection and its variation, as TCP estimates them (RFC 6298):
+ * <pre>
+ *   rttvar = 3/4 rttvar + 1/4 |srtt - rtt|
+ *   srtt   = 7/8 srtt + 1/8 rtt
+ * </pre>
+ * The timeout after which a server that does not answer is deemed dead is {@code srtt + 4 rttvar},
+ * within {@link #MIN_TIMEOUT_NANOS} and {@link #MAX_TIMEOUT_NANOS}: it follows the latency of the link,
+ * so that a stall is detected quickly on a LAN without false alarms on a slower network.
+ */
+public class RttEstimator {
+
+    /// Jitter below this, e.g. Wi-Fi power saving or a scan for other networks, is not a stall. The minimum of RFC 6298.
+    public static final long MIN_TIMEOUT_NANOS = 1_000_000_000;
+    public static final long MAX_TIMEOUT_NANOS = 3_000_000_000L;
+
+    private long smoothedNanos;
+    private long variationNanos;
+    private int sampleCount;
+
+    public synchronized void record(long rttNanos) {
+        if (rttNanos < 0) {
+            return;
+        }
+        if (sampleCount == 0) {
+            smoothedNanos = rttNanos;
+            variationNanos = rttNanos / 2;
+        } else {
+            variationNanos += (Math.abs(smoothedNanos - rttNanos) - variationNanos) / 4;
+            smoothedNanos += (rttNanos - smoothedNanos) / 8;
+        }
+        sampleCount++;
+    }
+
+    public synchronized boolean hasEstimate() {
+        return sampleCount > 0;
+    }
+
+    public synchronized long getSmoothedNanos() {
+        return smoothedNanos;
+    }
+
+    public synchronized long getVariationNanos() {
+        return variationNanos;
+    }
+
+    /// Time to wait for an answer before deeming the server dead, or {@link #MAX_TIMEOUT_NANOS} without estimate.
+    public synchronized long getTimeoutNanos() {
+        if (sampleCount == 0) {
+            return MAX_TIMEOUT_NANOS;
+        }
+        return Math.max(MIN_TIMEOUT_NANOS, Math.min(MAX_TIMEOUT_NANOS, smoothedNanos + 4 * variationNanos));
+    }
+
+}
@@ -0,0 +1,252 @@
+package com.emansapplication.emanvirtualjoystick.dispatch;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.InterfaceAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finds the servers of the local network, with the round-trip time to each of them. Broadcasts
+ * {@link #QUERY_COUNT} queries (see {@link DiscoveryPacket}), in case some are lost, and collects
+ * the answers of the {@link DiscoveryResponder} of each server until the search ends.
+ * The round-trip time of a server is the shortest of its answers.
+ * <p>
+ * The search starts when the discovery is created, on its own thread, and stops after its duration
+ * or when it is closed. Answers are sent to the client directly, so receiving them needs no
+ * multicast lock on Android.
+ */
+public class ServerDiscovery implements Closeable {
+
+    public static final int QUERY_COUNT = 3;
+    public static final long QUERY_INTERVAL_MILLIS = 250;
+    public static final long DEFAULT_DURATION_MILLIS = 1500;
+
+    /// A server that answered.
+    public static final class Server {
+        private final String host;
+        private final int port;
+        private final int transports;
+        private final String name;
+        private final long rttNanos;
+
+        Server(String host, int port, int transports, String name, long rttNanos) {
+            this.host = host;
+            this.port = port;
+            this.transports = transports;
+            this.name = name;
+            this.rttNanos = rttNanos;
+        }
+
+        /// Address the answer came from.
+        public String getHost() {
+            return host;
+        }
+
+        public int getPort() {
+            return port;
+        }
+
+        /// @param transport One of the TRANSPORT_ constants of {@link TransportOptions}.
+        public boolean supports(int transport) {
+            return (transports & (1 << transport)) != 0;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getRttNanos() {
+            return rttNanos;
+        }
+
+        /// Identifies the server among the others.
+        public String getKey() {
+            return host + ":" + port;
+        }
+    }
+
+    public interface Listener {
+        /// Called from the thread of the discovery when a server answers for the first time, or faster than before.
+        void onServerFound(Server server);
+
+        /// Called from the thread of the discovery when the search ends, unless it was closed.
+        default void onDiscoveryFinished() {
+        }
+    }
+
+    private final List<InetSocketAddress> targets;
+    private final long durationNanos;
+    private final Listener listener;
+
+    private final DatagramSocket socket;
+    private final Thread _thread;
+    private volatile boolean _closed;
+
+    /// Servers that answered, by key. Only used by the thread of the discovery.
+    private final Map<String, Server> servers = new HashMap<>();
+
+    /// Search the local network, on {@link DiscoveryPacket#DEFAULT_PORT}.
+    public ServerDiscovery(Listener listener) throws IOException {
+        this(broadcastTargets(DiscoveryPacket.DEFAULT_PORT), DEFAULT_DURATION_MILLIS, listener);
+    }
+
+    /// @param targets Where the queries are sent, e.g. {@link #broadcastTargets(int)}.
+    public ServerDiscovery(List<InetSocketAddress> targets, long durationMillis, Listener listener) throws IOException {
+        this.targets = new ArrayList<>(targets);
+        this.durationNanos = TimeUnit.MILLISECONDS.toNanos(durationMillis);
+        this.listener = listener;
+        socket = new DatagramSocket();
+        socket.setBroadcast(true);
+        _thread = new Thread("ServerDiscovery") {
+            @Override
+            public void run() {
+                search_loop();
+            }
+        };
+        _thread.setDaemon(true);
+        _thread.start();
+    }
+
+    /**
+     * The broadcast address of each network the device is on, and the limited broadcast address for the others.
+     * Servers running on the device itself receive the broadcasts too.
+     */
+    public static List<InetSocketAddress> broadcastTargets(int port) {
+        final List<InetSocketAddress> targets = new ArrayList<>();
+        try {
+            for (NetworkInterface networkInterface : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+                if (!networkInterface.isUp() || networkInterface.isLoopback()) {
+                    continue;
+                }
+                for (InterfaceAddress address : networkInterface.getInterfaceAddresses()) {
+                    if (address.getAddress() instanceof Inet4Address && address.getBroadcast() != null) {
+                        targets.add(new InetSocketAddress(address.getBroadcast(), port));
+                    }
+                }
+            }
+        } catch (SocketException ex) {
+            // The limited broadcast is still sent on the default network
+        }
+        try {
+            targets.add(new InetSocketAddress(InetAddress.getByName("255.255.255.255"), port));
+        } catch (IOException ex) {
+            throw new AssertionError(ex);
+        }
+        return targets;
+    }
+
+    private void search_loop() {
+        final byte[] buffer = new byte[DiscoveryPacket.MAX_SIZE];
+        final DatagramPacket datagram = new DatagramPacket(buffer, buffer.length);
+        final long startNanos = System.nanoTime();
+        final long deadline = startNanos + durationNanos;
+        long nextQuery = startNanos;
+        int queries = 0;
+        try {
+            while (!_closed) {
+                final long now = System.nanoTime();
+                if (now - deadline >= 0) {
+                    break;
+                }
+                if (queries < QUERY_COUNT && now - nextQuery >= 0) {
+                    sendQuery(now);
+                    queries++;
+                    nextQuery += TimeUnit.MILLISECONDS.toNanos(QUERY_INTERVAL_MILLIS);
+                }
+                final long wakeUp = queries < QUERY_COUNT && nextQuery - deadline < 0 ? nextQuery : deadline;
+                socket.setSoTimeout((int) Math.max(1, TimeUnit.NANOSECONDS.toMillis(wakeUp - System.nanoTime())));
+                datagram.setLength(buffer.length);
+                try {
+                    socket.receive(datagram);
+                } catch (SocketTimeoutException _ex) {
+                    continue;
+                }
+                received(datagram, System.nanoTime());
+            }
+        } catch (IOException ex) {
+            if (!_closed) {
+                ex.printStackTrace();
+            }
+        } finally {
+            socket.close();
+        }
+        if (!_closed) {
+            listener.onDiscoveryFinished();
+        }
+    }
+
+    /// The token is the time of the query, so that the answer gives the round-trip time.
+    private void sendQuery(long now) {
+        final ByteBuffer query = ByteBuffer.allocate(DiscoveryPacket.QUERY_SIZE);
+        DiscoveryPacket.encodeQuery(query, now);
+        for (InetSocketAddress target : targets) {
+            try {
+                socket.send(new DatagramPacket(query.array(), query.position(), target));
+            } catch (IOException ex) {
+                // This network is unreachable: the others may not be
+            }
+        }
+    }
+
+    private void received(DatagramPacket datagram, long now) {
+        final ByteBuffer packet = ByteBuffer.wrap(datagram.getData(), 0, datagram.getLength());
+        if (DiscoveryPacket.getType(packet) != DiscoveryPacket.TYPE_ANSWER) {
+            return;
+        }
+        final long rttNanos = now - DiscoveryPacket.getToken(packet);
+        if (rttNanos < 0 || rttNanos > durationNanos) {
+            // Not an answer to this search
+            return;
+        }
+        final String host = datagram.getAddress().getHostAddress();
+        final int port = DiscoveryPacket.getPort(packet);
+        final Server previous = servers.get(host + ":" + port);
+        if (previous != null && previous.rttNanos <= rttNanos) {
+            return;
+        }
+        final Server server = new Server(host, port, DiscoveryPacket.getTransports(packet), DiscoveryPacket.getName(packet), rttNanos);
+        servers.put(server.getKey(), server);
+        listener.onServerFound(server);
+    }
+
+    /// Stops the search. The listener is not called anymore.
+    @Override
+    public void close() {
+        _closed = true;
+        socket.close();
+    }
+
+    /// Usage: {@code ServerDiscovery [discovery port]}. Prints the servers that answer.
+    public static void main(String[] args) throws IOException, InterruptedException {
+        final int port = args.length > 0 ? Integer.parseInt(args[0]) : DiscoveryPacket.DEFAULT_PORT;
+        final ServerDiscovery discovery = new ServerDiscovery(broadcastTargets(port), DEFAULT_DURATION_MILLIS, new Listener() {
+            @Override
+            public void onServerFound(Server server) {
+                System.out.printf("%-24s %-24s %6.2f ms%s%s%n", server.getName(), server.getKey(), server.getRttNanos() / 1e6,
+                        server.supports(TransportOptions.TRANSPORT_TCP) ? " tcp" : "",
+                        server.supports(TransportOptions.TRANSPORT_UDP) ? " udp" : "");
+            }
+
+            @Override
+            public void onDiscoveryFinished() {
+                System.out.println("Done");
+            }
+        });
+        discovery._thread.join();
+    }
+
+}
@@ -0,0 +1,18 @@
+package com.emansapplication.emanvirtualjoystick.dispatch;
+
+/**
+ * Handles the messages of a server, parsed by a {@link MessageParser}.
+ */
+@FunctionalInterface
+public interface ServerMessageHandler {
+
+    /**
+     * Called from the network thread reading the server, which must not be blocked for long.
+     *
+     * @param message  One of the MESSAGE_ constants of {@link MessageParser}.
+     * @param args     The arguments of the message. Only valid during the call.
+     * @param argCount Number of arguments, the number the message expects.
+     */
+    void onServerMessage(int message, long[] args, int argCount);
+
+}
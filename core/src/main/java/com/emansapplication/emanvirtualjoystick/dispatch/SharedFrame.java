@@ -0,0 +1,106 @@
+package com.emansapplication.emanvirtualjoystick.dispatch;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Encoded updates shared by the writers of several connections.
+ * <p>
+ * A frame is encoded once, by a single thread, then only read: each writer copies the bytes
+ * into its own buffer, so that a slow connection never holds back the others. Frames are
+ * reference counted, and return to their {@link Pool} once every writer has released them.
+ */
+public final class SharedFrame {
+
+    private final Pool pool;
+    private final byte[] bytes;
+    private final ByteBuffer buffer;
+    private final AtomicInteger references = new AtomicInteger();
+
+    private int length;
+    private int updateCount;
+
+    private SharedFrame(Pool pool, int size) {
+        this.pool = pool;
+        this.bytes = new byte[size];
+        this.buffer = ByteBuffer.wrap(bytes);
+    }
+
+    /// Buffer to encode into, before the frame is sealed.
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    /// Ends the encoding of this number of updates. The frame must not be modified until it returns to its pool.
+    public void seal(int updateCount) {
+        length = buffer.position();
+        this.updateCount = updateCount;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public int getUpdateCount() {
+        return updateCount;
+    }
+
+    public boolean isEmpty() {
+        return length == 0;
+    }
+
+    /// Copy the encoded bytes at the position of the buffer.
+    public void copyTo(ByteBuffer out) {
+        out.put(bytes, 0, length);
+    }
+
+    public void retain() {
+        references.incrementAndGet();
+    }
+
+    public void release() {
+        if (references.decrementAndGet() == 0) {
+            pool.recycle(this);
+        }
+    }
+
+    /**
+     * Recycles the frames, so that encoding does not allocate once the pool is warm.
+     * The pool allocates new frames when all of them are still held by slow writers.
+     */
+    public static final class Pool {
+
+        private final int frameSize;
+        private final SharedFrame[] free;
+        private int freeCount;
+
+        public Pool(int frameSize, int capacity) {
+            this.frameSize = frameSize;
+            this.free = new SharedFrame[capacity];
+        }
+
+        /// A cleared frame, held once by the caller.
+        public SharedFrame acquire() {
+            SharedFrame frame;
+            synchronized (this) {
+                frame = freeCount > 0 ? free[--freeCount] : null;
+            }
+            if (frame == null) {
+                frame = new SharedFrame(this, frameSize);
+            }
+            frame.buffer.clear();
+            frame.length = 0;
+            frame.updateCount = 0;
+            frame.references.set(1);
+            return frame;
+        }
+
+        private synchronized void recycle(SharedFrame frame) {
+            if (freeCount < free.length) {
+                free[freeCount++] = frame;
+            }
+        }
+
+    }
+
+}
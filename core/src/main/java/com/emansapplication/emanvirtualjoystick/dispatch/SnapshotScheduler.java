@@ -0,0 +1,96 @@
+package com.emansapplication.emanvirtualjoystick.dispatch;
+
+import java.io.Closeable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Paces a {@link ControllerState}: the pending updates are released to the writer at a fixed
+ * rate, and a full keyframe is queued at a slower interval. The server then receives at most
+ * one snapshot per period, and no control is ever staler than the keyframe interval.
+ * <p>
+ * Ticks are scheduled on absolute deadlines of the monotonic clock, so that the error of a
+ * wake-up does not accumulate. Ticks missed while the thread could not run are skipped
+ * rather than sent in a burst.
+ */
+public class SnapshotScheduler implements Closeable {
+
+    /// Low enough for a loaded server to slow its clients down (see {@link MessageParser#MESSAGE_RATE}).
+    public static final int MIN_RATE_HZ = 10;
+    public static final int MAX_RATE_HZ = 1000;
+
+    private final ControllerState state;
+    private final int rateHz;
+    private final long periodNanos;
+    private final long keyframeIntervalNanos;
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    /**
+     * @param rateHz                Number of snapshots per second, between {@link #MIN_RATE_HZ}
+     *                              and {@link #MAX_RATE_HZ}.
+     * @param keyframeIntervalMillis Interval between two keyframes. 0 disables keyframes.
+     */
+    public SnapshotScheduler(ControllerState state, int rateHz, long keyframeIntervalMillis) {
+        if (rateHz < MIN_RATE_HZ || rateHz > MAX_RATE_HZ) {
+            throw new IllegalArgumentException("Snapshot rate out of range: " + rateHz + " Hz");
+        }
+        if (keyframeIntervalMillis < 0) {
+            throw new IllegalArgumentException("Negative keyframe interval: " + keyframeIntervalMillis);
+        }
+        this.state = state;
+        this.rateHz = rateHz;
+        this.periodNanos = TimeUnit.SECONDS.toNanos(1) / rateHz;
+        this.keyframeIntervalNanos = TimeUnit.MILLISECONDS.toNanos(keyframeIntervalMillis);
+
+        state.setPaced(true);
+        thread = new Thread("SnapshotScheduler") {
+            @Override
+            public void run() {
+                tick_loop();
+            }
+        };
+        thread.setPriority(Thread.MAX_PRIORITY);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void tick_loop() {
+        long deadline = System.nanoTime() + periodNanos;
+        long nextKeyframe = deadline;
+        while (running) {
+            long delay;
+            while ((delay = deadline - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(this, delay);
+                if (!running) {
+                    return;
+                }
+            }
+
+            final boolean keyframe = keyframeIntervalNanos > 0 && deadline - nextKeyframe >= 0;
+            if (keyframe) {
+                nextKeyframe = deadline + keyframeIntervalNanos;
+            }
+            state.tick(keyframe);
+
+            deadline += periodNanos;
+            final long now = System.nanoTime();
+            if (now - deadline > periodNanos) {
+                deadline = now + periodNanos;
+            }
+        }
+    }
+
+    public int getRateHz() {
+        return rateHz;
+    }
+
+    /// Stop pacing: the state wakes the writer up on every change again.
+    @Override
+    public void close() {
+        running = false;
+        LockSupport.unpark(thread);
+        state.setPaced(false);
+    }
+
+}
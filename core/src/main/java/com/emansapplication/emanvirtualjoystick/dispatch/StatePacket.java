@@ -0,0 +1,272 @@
+package com.emansapplication.emanvirtualjoystick.dispatch;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Layout of the datagrams sent by the UDP transport. Each datagram carries the full state of
+ * the gamepad, so that any datagram can replace the ones before it:
+ * <pre>
+ *   offset 0:  type (u8), {@link #TYPE_STATE} or {@link #TYPE_QUIT}
+ *   offset 1:  sequence number (u32, big-endian), incremented for each datagram
+ *   offset 5:  value of each axis (s16, big-endian), in the order of {@link ControllerState}
+ *   offset 13: buttons (u8), bit i set if button (AXIS_COUNT + i) is pressed
+ *   offset 14: pad (u8), only in {@link #TYPE_PAD_STATE} and {@link #TYPE_TIMED_STATE} datagrams
+ *   offset 15: time of the input (s64, big-endian, us on the clock of the server), only in {@link #TYPE_TIMED_STATE} datagrams
+ * </pre>
+ * The state of pad 0 is sent in {@link #TYPE_STATE} datagrams, and the state of the other pads
+ * in {@link #TYPE_PAD_STATE} datagrams, which receivers that only know one pad must ignore.
+ * Receivers must drop any datagram whose sequence number is not newer than the last accepted
+ * one for the same pad (see {@link #isNewer(int, int)}), since it was reordered by the network.
+ * A receiver can disconnect the client by sending it a datagram starting with {@link #TYPE_QUIT}.
+ * Latency probes ({@link #TYPE_PING}) are {@link #PROBE_SIZE} bytes long.
+ * <p>
+ * Clock synchronization requests ({@link #TYPE_TIME}) carry the time of the client (s64, big-endian, us),
+ * and receivers that support them answer with a {@link #TYPE_TIME} datagram of {@link #TIME_REPLY_SIZE} bytes
+ * carrying that time, then the times they received the request and answered, on their own clock
+ * (see {@link ClockEstimator}). Once a receiver has answered, the client sends {@link #TYPE_TIMED_STATE}
+ * datagrams, for every pad, instead of the untimed ones.
+ * <p>
+ * With redundancy (see {@link TransportOptions#setDatagramRedundancy(int)}), the client sends
+ * {@link #TYPE_REDUNDANT_STATE} datagrams instead, which also carry the previous states of the pad:
+ * <pre>
+ *   offset 0:  type (u8), sequence (u32), axes, buttons and pad (u8), as in {@link #TYPE_TIMED_STATE}
+ *   offset 15: time of the input (s64), or {@link #NO_EVENT_TIME} if the client has no estimate of the clock of the receiver
+ *   offset 23: id of the client (s32, big-endian), drawn at random, the same for all its connections
+ *   offset 27: number of states of the pad sent before this one (u16, big-endian), wrapping around
+ *   offset 29: number of previous states carried (u8), at most {@link #MAX_REDUNDANCY}
+ *   offset 30: the previous states, most recent first: value of each axis (s16, big-endian), then buttons (u8)
+ * </pre>
+ * A receiver that missed states of a pad can tell how many from the state count, and rebuild
+ * the ones carried by the next datagram that arrives, so that neither a short press of a button
+ * nor the release of a stick is lost, without waiting for a retransmission. The count of a client
+ * goes on when it reconnects, from another port, so receivers keep it by client id rather than by sender.
+ * <p>
+ * Receivers can also send {@link #TYPE_RESYNC}, {@link #TYPE_RATE} and {@link #TYPE_RUMBLE} datagrams,
+ * the counterparts of the text messages of {@link MessageParser}.
+ */
+public final class StatePacket {
+
+    public static final int TYPE_STATE = 0x10;
+    public static final int TYPE_QUIT = 0x11;
+    /// Latency probe, followed by a token (s64, big-endian) that the receiver echoes in a {@link #TYPE_PONG}.
+    public static final int TYPE_PING = 0x12;
+    public static final int TYPE_PONG = 0x13;
+    /// State of a pad other than pad 0.
+    public static final int TYPE_PAD_STATE = 0x14;
+    /// Asks for the full state of the pads. No payload.
+    public static final int TYPE_RESYNC = 0x15;
+    /// Asks for snapshots at a rate, followed by the rate in Hz (u16, big-endian), 0 to send changes right away.
+    public static final int TYPE_RATE = 0x16;
+    /// Asks a pad to vibrate, followed by the pad (u8), the strength (u8) and the duration in ms (u16, big-endian).
+    public static final int TYPE_RUMBLE = 0x17;
+    /// Clock synchronization request, or its answer.
+    public static final int TYPE_TIME = 0x18;
+    /// State of a pad, with the time of the latest input.
+    public static final int TYPE_TIMED_STATE = 0x19;
+    /// State of a pad, with the previous states of the pad.
+    public static final int TYPE_REDUNDANT_STATE = 0x1A;
+
+    /// Time of the input of a {@link #TYPE_REDUNDANT_STATE} datagram sent before the clock is synchronized.
+    public static final long NO_EVENT_TIME = Long.MIN_VALUE;
+
+    /// Maximum number of previous states in a datagram. A power of two, so that the state count wraps around on a multiple.
+    public static final int MAX_REDUNDANCY = 8;
+
+    public static final int PROBE_SIZE = 1 + 8;
+
+    public static final int SIZE = 1 + 4 + 2 * ControllerState.AXIS_COUNT + 1;
+
+    public static final int PAD_STATE_SIZE = SIZE + 1;
+
+    public static final int TIMED_STATE_SIZE = PAD_STATE_SIZE + 8;
+
+    /// Size of a {@link #TYPE_REDUNDANT_STATE} datagram without previous states.
+    public static final int REDUNDANT_STATE_SIZE = TIMED_STATE_SIZE + 4 + 2 + 1;
+
+    public static final int HISTORY_ENTRY_SIZE = 2 * ControllerState.AXIS_COUNT + 1;
+
+    /// Size of the largest state datagram.
+    public static final int MAX_STATE_SIZE = REDUNDANT_STATE_SIZE + MAX_REDUNDANCY * HISTORY_ENTRY_SIZE;
+
+    public static final int TIME_REPLY_SIZE = 1 + 3 * 8;
+
+    public static final int RESYNC_SIZE = 1;
+    public static final int RATE_SIZE = 1 + 2;
+    public static final int RUMBLE_SIZE = 1 + 1 + 1 + 2;
+
+    /// Size of the largest datagram.
+    public static final int MAX_SIZE = Math.max(MAX_STATE_SIZE, TIME_REPLY_SIZE);
+
+    private StatePacket() {
+    }
+
+    public static void encode(ByteBuffer out, int type, int sequence, int[] axes, int buttons) {
+        out.put((byte) type);
+        out.putInt(sequence);
+        for (int axis = 0; axis < ControllerState.AXIS_COUNT; axis++) {
+            out.putShort((short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, axes[axis])));
+        }
+        out.put((byte) buttons);
+    }
+
+    /// Encode the state of a pad, in a {@link #TYPE_STATE} or {@link #TYPE_PAD_STATE} datagram.
+    public static void encodePad(ByteBuffer out, int pad, int sequence, int[] axes, int buttons) {
+        if (pad == 0) {
+            encode(out, TYPE_STATE, sequence, axes, buttons);
+        } else {
+            encode(out, TYPE_PAD_STATE, sequence, axes, buttons);
+            out.put((byte) pad);
+        }
+    }
+
+    /// Encode the state of a pad with the time of the latest input, in a {@link #TYPE_TIMED_STATE} datagram.
+    public static void encodeTimedPad(ByteBuffer out, int pad, int sequence, int[] axes, int buttons, long eventTimeMicros) {
+        encode(out, TYPE_TIMED_STATE, sequence, axes, buttons);
+        out.put((byte) pad);
+        out.putLong(eventTimeMicros);
+    }
+
+    /**
+     * Encode the state of a pad in a {@link #TYPE_REDUNDANT_STATE} datagram. The previous states
+     * must follow, most recent first, each encoded with {@link #encodeHistoryEntry(ByteBuffer, int[], int)}.
+     *
+     * @param clientId     Id of the client, the same for all its connections.
+     * @param stateCount   Number of states of the pad sent before, modulo 2^16.
+     * @param historyCount Number of previous states that follow.
+     */
+    public static void encodeRedundantPad(ByteBuffer out, int pad, int sequence, int[] axes, int buttons,
+                                          long eventTimeMicros, int clientId, int stateCount, int historyCount) {
+        encode(out, TYPE_REDUNDANT_STATE, sequence, axes, buttons);
+        out.put((byte) pad);
+        out.putLong(eventTimeMicros);
+        out.putInt(clientId);
+        out.putShort((short) stateCount);
+        out.put((byte) historyCount);
+    }
+
+    public static void encodeHistoryEntry(ByteBuffer out, int[] axes, int buttons) {
+        for (int axis = 0; axis < ControllerState.AXIS_COUNT; axis++) {
+            out.putShort((short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, axes[axis])));
+        }
+        out.put((byte) buttons);
+    }
+
+    public static void encodeProbe(ByteBuffer out, int type, long token) {
+        out.put((byte) type);
+        out.putLong(token);
+    }
+
+    /// Answer of a receiver to a {@link #TYPE_TIME} request.
+    public static void encodeTimeReply(ByteBuffer out, long clientTime, long receiveTime, long transmitTime) {
+        out.put((byte) TYPE_TIME);
+        out.putLong(clientTime);
+        out.putLong(receiveTime);
+        out.putLong(transmitTime);
+    }
+
+    /// Bit of the button in the "buttons" field of a packet.
+    public static int buttonMask(int button) {
+        return 1 << (button - ControllerState.AXIS_COUNT);
+    }
+
+    /// Size of a datagram of the given type. For {@link #TYPE_TIME}, the size of the request,
+    /// and for {@link #TYPE_REDUNDANT_STATE}, the size without previous states.
+    public static int sizeOf(int type) {
+        switch (type) {
+            case TYPE_PING:
+            case TYPE_PONG:
+            case TYPE_TIME:
+                return PROBE_SIZE;
+            case TYPE_PAD_STATE:
+                return PAD_STATE_SIZE;
+            case TYPE_TIMED_STATE:
+                return TIMED_STATE_SIZE;
+            case TYPE_REDUNDANT_STATE:
+                return REDUNDANT_STATE_SIZE;
+            case TYPE_RESYNC:
+                return RESYNC_SIZE;
+            case TYPE_RATE:
+                return RATE_SIZE;
+            case TYPE_RUMBLE:
+                return RUMBLE_SIZE;
+            default:
+                return SIZE;
+        }
+    }
+
+    /// Size of the datagram starting at the offset of the buffer, regardless of its position.
+    public static int sizeAt(ByteBuffer buffer, int offset) {
+        final int type = buffer.get(offset) & 0xFF;
+        if (type != TYPE_REDUNDANT_STATE) {
+            return sizeOf(type);
+        }
+        return REDUNDANT_STATE_SIZE + (buffer.get(offset + REDUNDANT_STATE_SIZE - 1) & 0xFF) * HISTORY_ENTRY_SIZE;
+    }
+
+    /// Serial number comparison (RFC 1982), so that the sequence can wrap around.
+    public static boolean isNewer(int sequence, int last) {
+        return sequence - last > 0;
+    }
+
+    // Accessors reading a packet at the start of the buffer, regardless of its position
+
+    public static int getType(ByteBuffer packet) {
+        return packet.get(0) & 0xFF;
+    }
+
+    public static int getSequence(ByteBuffer packet) {
+        return packet.getInt(1);
+    }
+
+    public static int getAxis(ByteBuffer packet, int axis) {
+        return packet.getShort(5 + 2 * axis);
+    }
+
+    public static int getButtons(ByteBuffer packet) {
+        return packet.get(5 + 2 * ControllerState.AXIS_COUNT) & 0xFF;
+    }
+
+    public static int getPad(ByteBuffer packet) {
+        final int type = getType(packet);
+        return type == TYPE_PAD_STATE || type == TYPE_TIMED_STATE || type == TYPE_REDUNDANT_STATE ? packet.get(SIZE) & 0xFF : 0;
+    }
+
+    /// Time of the input of a {@link #TYPE_TIMED_STATE} or {@link #TYPE_REDUNDANT_STATE} datagram.
+    public static long getEventTime(ByteBuffer packet) {
+        return packet.getLong(PAD_STATE_SIZE);
+    }
+
+    public static boolean hasEventTime(ByteBuffer packet) {
+        final int type = getType(packet);
+        return type == TYPE_TIMED_STATE || type == TYPE_REDUNDANT_STATE && getEventTime(packet) != NO_EVENT_TIME;
+    }
+
+    /// Id of the client that sent a {@link #TYPE_REDUNDANT_STATE} datagram.
+    public static int getClientId(ByteBuffer packet) {
+        return packet.getInt(TIMED_STATE_SIZE);
+    }
+
+    /// State count of a {@link #TYPE_REDUNDANT_STATE} datagram.
+    public static int getStateCount(ByteBuffer packet) {
+        return packet.getShort(TIMED_STATE_SIZE + 4) & 0xFFFF;
+    }
+
+    /// Number of previous states in a {@link #TYPE_REDUNDANT_STATE} datagram.
+    public static int getHistoryCount(ByteBuffer packet) {
+        return packet.get(REDUNDANT_STATE_SIZE - 1) & 0xFF;
+    }
+
+    /// @param entry Index of the previous state, 0 being the most recent.
+    public static int getHistoryAxis(ByteBuffer packet, int entry, int axis) {
+        return packet.getShort(REDUNDANT_STATE_SIZE + entry * HISTORY_ENTRY_SIZE + 2 * axis);
+    }
+
+    public static int getHistoryButtons(ByteBuffer packet, int entry) {
+        return packet.get(REDUNDANT_STATE_SIZE + entry * HISTORY_ENTRY_SIZE + 2 * ControllerState.AXIS_COUNT) & 0xFF;
+    }
+
+    public static long getProbeToken(ByteBuffer packet) {
+        return packet.getLong(1);
+    }
+
+}
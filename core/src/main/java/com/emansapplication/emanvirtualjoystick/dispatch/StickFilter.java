@@ -0,0 +1,27 @@
+package com.emansapplication.emanvirtualjoystick.dispatch;
+
+/**
+ * Smooths the position of a stick, sample by sample, between the view and the dispatcher, so that
+ * the tremor of the finger does not become a stream of tiny updates.
+ * <p>
+ * Implementations keep their whole state in fields: filtering a sample must not allocate.
+ * Instances are not thread-safe, and serve a single stick.
+ */
+public interface StickFilter {
+
+    /**
+     * Filter a sample, then read the result with {@link #getX()} and {@link #getY()}.
+     *
+     * @param timeNanos When the stick was at this position, on the clock of {@link System#nanoTime()}.
+     * @param x,y       The position, between -1 and 1.
+     */
+    void filter(long timeNanos, double x, double y);
+
+    double getX();
+
+    double getY();
+
+    /// Forget the previous samples, e.g. when the stick is released: the next sample passes through unchanged.
+    void reset();
+
+}
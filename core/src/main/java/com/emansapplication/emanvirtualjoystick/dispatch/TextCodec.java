@@ -0,0 +1,90 @@
+package com.emansapplication.emanvirtualjoystick.dispatch;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Line-based text protocol, understood by every server.
+ * Each update is sent as "NAME value\n", e.g. "RX 12345\n". Updates of pads other than pad 0
+ * are prefixed with the pad, e.g. "P1 RX 12345\n".
+ * Once the server has answered a clock synchronization request, each frame starts with the time
+ * of its input, e.g. "AT 1234567890\n".
+ */
+public class TextCodec implements WireCodec {
+
+    private static final byte[] QUIT = "QUIT\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] AT = "AT ".getBytes(StandardCharsets.US_ASCII);
+
+    /// Pad and name of each control followed by a space, pre-encoded, by control id.
+    private static final byte[][] PREFIXES = new byte[ControllerState.controlId(ControllerState.MAX_PADS, 0)][];
+
+    static {
+        for (int pad = 0; pad < ControllerState.MAX_PADS; pad++) {
+            for (int control = 0; control <= ControllerState.COMMAND_TIME; control++) {
+                final String prefix = (pad == 0 ? "" : "P" + pad + " ") + ControllerState.getName(control) + " ";
+                PREFIXES[ControllerState.controlId(pad, control)] = prefix.getBytes(StandardCharsets.US_ASCII);
+            }
+        }
+    }
+
+    @Override
+    public void encode(ByteBuffer out, int controlId, int value) {
+        out.put(PREFIXES[controlId]);
+        putDecimal(out, value);
+        out.put((byte) '\n');
+    }
+
+    @Override
+    public void encodePing(ByteBuffer out, long token) {
+        putPing(out, token);
+    }
+
+    @Override
+    public void encodeTimeRequest(ByteBuffer out, long clientMicros) {
+        putCommand(out, ControllerState.COMMAND_TIME, clientMicros);
+    }
+
+    @Override
+    public void encodeTimestamp(ByteBuffer out, long serverMicros) {
+        out.put(AT);
+        putDecimal(out, serverMicros);
+        out.put((byte) '\n');
+    }
+
+    @Override
+    public void encodeQuit(ByteBuffer out) {
+        out.put(QUIT);
+    }
+
+    /// Probes are text lines in every protocol.
+    static void putPing(ByteBuffer out, long token) {
+        putCommand(out, ControllerState.COMMAND_PING, token);
+    }
+
+    /// So are clock synchronization requests.
+    static void putCommand(ByteBuffer out, int command, long argument) {
+        out.put(PREFIXES[command]);
+        putDecimal(out, argument);
+        out.put((byte) '\n');
+    }
+
+    /// Same output as Integer.toString(), without allocating.
+    static void putDecimal(ByteBuffer out, long value) {
+        if (value < 0) {
+            out.put((byte) '-');
+        } else {
+            value = -value;
+        }
+        // Work on negative numbers so that Long.MIN_VALUE does not overflow
+        long divisor = -1;
+        while (divisor >= Long.MIN_VALUE / 10 && divisor * 10 >= value) {
+            divisor *= 10;
+        }
+        while (divisor != 0) {
+            out.put((byte) ('0' + value / divisor));
+            value %= divisor;
+            divisor /= 10;
+        }
+    }
+
+}
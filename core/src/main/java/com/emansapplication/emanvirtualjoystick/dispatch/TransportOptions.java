@@ -0,0 +1,112 @@
+package com.emansapplication.emanvirtualjoystick.dispatch;
+
+/**
+ * Options of the connection opened by a dispatcher. The defaults favour latency over throughput.
+ */
+public class TransportOptions {
+
+    public static final int TRANSPORT_TCP = 0;
+    public static final int TRANSPORT_UDP = 1;
+
+    /// IPTOS_LOWDELAY, honoured by most home routers.
+    public static final int TRAFFIC_CLASS_LOW_DELAY = 0x10;
+
+    private int transport = TRANSPORT_TCP;
+    private boolean allowBinaryProtocol = true;
+    private boolean tcpNoDelay = true;
+    private int sendBufferSize = 8 * 1024;
+    private int trafficClass = TRAFFIC_CLASS_LOW_DELAY;
+    private int connectTimeoutMillis = 2000;
+    private volatile int datagramRedundancy;
+
+    public int getTransport() {
+        return transport;
+    }
+
+    /// {@link #TRANSPORT_TCP} or {@link #TRANSPORT_UDP}.
+    public TransportOptions setTransport(int transport) {
+        if (transport != TRANSPORT_TCP && transport != TRANSPORT_UDP) {
+            throw new IllegalArgumentException("Unknown transport: " + transport);
+        }
+        this.transport = transport;
+        return this;
+    }
+
+    public boolean isBinaryProtocolAllowed() {
+        return allowBinaryProtocol;
+    }
+
+    /// Offer the binary protocol to the server. Only used with TCP.
+    public TransportOptions setBinaryProtocolAllowed(boolean allowed) {
+        this.allowBinaryProtocol = allowed;
+        return this;
+    }
+
+    public boolean isTcpNoDelay() {
+        return tcpNoDelay;
+    }
+
+    /// Disable Nagle's algorithm, so that each write leaves the phone immediately. Only used with TCP.
+    public TransportOptions setTcpNoDelay(boolean noDelay) {
+        this.tcpNoDelay = noDelay;
+        return this;
+    }
+
+    public int getSendBufferSize() {
+        return sendBufferSize;
+    }
+
+    /// Size of the kernel send buffer, in bytes. A small buffer keeps stale updates from
+    /// piling up in the kernel when the link stalls. 0 keeps the system default.
+    public TransportOptions setSendBufferSize(int size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("Negative send buffer size: " + size);
+        }
+        this.sendBufferSize = size;
+        return this;
+    }
+
+    public int getTrafficClass() {
+        return trafficClass;
+    }
+
+    /// Value of the IP traffic class (type of service) byte. -1 keeps the system default.
+    public TransportOptions setTrafficClass(int trafficClass) {
+        if (trafficClass < -1 || trafficClass > 0xFF) {
+            throw new IllegalArgumentException("Invalid traffic class: " + trafficClass);
+        }
+        this.trafficClass = trafficClass;
+        return this;
+    }
+
+    public int getConnectTimeoutMillis() {
+        return connectTimeoutMillis;
+    }
+
+    /// Maximum duration of a TCP connection attempt. 0 waits until the system gives up.
+    public TransportOptions setConnectTimeoutMillis(int timeout) {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("Negative connect timeout: " + timeout);
+        }
+        this.connectTimeoutMillis = timeout;
+        return this;
+    }
+
+    public int getDatagramRedundancy() {
+        return datagramRedundancy;
+    }
+
+    /**
+     * Number of previous states of the pad carried by each datagram, up to {@link StatePacket#MAX_REDUNDANCY},
+     * so that the receiver can rebuild the states lost with up to as many datagrams in a row.
+     * 0 sends the plain state datagrams. Only used with UDP. Takes effect with the next update.
+     */
+    public TransportOptions setDatagramRedundancy(int redundancy) {
+        if (redundancy < 0 || redundancy > StatePacket.MAX_REDUNDANCY) {
+            throw new IllegalArgumentException("Invalid redundancy: " + redundancy);
+        }
+        this.datagramRedundancy = redundancy;
+        return this;
+    }
+
+}
@@ -0,0 +1,30 @@
+package com.emansapplication.emanvirtualjoystick.dispatch;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes the updates of the gamepad into the format expected by the server.
+ * Instances must only be used by a single thread, which may encode for several connections.
+ * Implementations must not allocate while encoding.
+ */
+public interface WireCodec {
+
+    /// Upper bound of the number of bytes written by a single call to an encode method.
+    int MAX_MESSAGE_SIZE = 24;
+
+    /// Encode an update of a control of a pad (see {@link ControllerState#controlId(int, int)}) into the buffer.
+    void encode(ByteBuffer out, int controlId, int value);
+
+    /// Encode a latency probe. The server is expected to answer "PONG token".
+    void encodePing(ByteBuffer out, long token);
+
+    /// Encode a clock synchronization request. Servers that support it answer "TIME t0 t1 t2" (see {@link ClockEstimator}).
+    void encodeTimeRequest(ByteBuffer out, long clientMicros);
+
+    /// Encode the time of the input of the updates that follow in the frame, on the clock of the server.
+    void encodeTimestamp(ByteBuffer out, long serverMicros);
+
+    /// Encode the message that tells the server the client is leaving.
+    void encodeQuit(ByteBuffer out);
+
+}
@@ -0,0 +1,188 @@
+package com.emansapplication.emanvirtualjoystick;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.emansapplication.emanvirtualjoystick.dispatch.ControllerState;
+import com.emansapplication.emanvirtualjoystick.dispatch.QueueCounters;
+import com.emansapplication.emanvirtualjoystick.dispatch.ReferenceServer;
+import com.emansapplication.emanvirtualjoystick.dispatch.TransportOptions;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/// A dispatcher against a {@link ReferenceServer} on the loopback interface, in both stream protocols.
+public class SocketDispatcherTest {
+
+    private static final long TIMEOUT_MILLIS = 5000;
+    private static final int PRESSES = 500;
+    private static final int POSITIONS = 5000;
+
+    /// Updates received by the server, as (control id, value) pairs.
+    private final List<int[]> received = new ArrayList<>();
+    /// Times of the input of the frames, on the clock of the server.
+    private final List<Long> frameTimes = new ArrayList<>();
+    private ReferenceServer server;
+    private SocketDispatcher dispatcher;
+
+    private void connect(boolean binary) throws IOException, InterruptedException {
+        server = new ReferenceServer(0, true, new ReferenceServer.Listener() {
+            @Override
+            public void onUpdate(SocketAddress client, int controlId, int value) {
+                synchronized (received) {
+                    received.add(new int[]{controlId, value});
+                    received.notifyAll();
+                }
+            }
+
+            @Override
+            public void onFrameTime(SocketAddress client, long serverMicros) {
+                synchronized (received) {
+                    frameTimes.add(serverMicros);
+                }
+            }
+        });
+        final TransportOptions options = new TransportOptions();
+        options.setBinaryProtocolAllowed(binary);
+        dispatcher = new SocketDispatcher("127.0.0.1", server.getLocalPort(), options);
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MILLIS);
+        while (!dispatcher.isConnected()) {
+            assertTrue("Not connected", System.nanoTime() - deadline < 0);
+            Thread.sleep(10);
+        }
+        // Let the handshake and the keyframe of the new session go through before counting
+        Thread.sleep(200);
+        synchronized (received) {
+            received.clear();
+            frameTimes.clear();
+        }
+        dispatcher.getQueueCounters().reset();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (dispatcher != null) {
+            dispatcher.close();
+        }
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    /// Waits until the server received at least count updates of the control, or the timeout.
+    private List<Integer> awaitValues(int controlId, int count) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        synchronized (received) {
+            while (true) {
+                final List<Integer> values = new ArrayList<>();
+                for (int[] update : received) {
+                    if (update[0] == controlId) {
+                        values.add(update[1]);
+                    }
+                }
+                final long remaining = deadline - System.currentTimeMillis();
+                if (values.size() >= count || remaining <= 0) {
+                    return values;
+                }
+                received.wait(remaining);
+            }
+        }
+    }
+
+    private void checkButtonEdges(boolean binary) throws Exception {
+        connect(binary);
+        // Far faster than fingers: the outbox overflows, and the edges wait in the merged snapshot
+        for (int i = 0; i < PRESSES; i++) {
+            dispatcher.dispatchStartButtonPressed();
+            dispatcher.dispatchStartButtonReleased();
+        }
+        final List<Integer> values = awaitValues(ControllerState.BUTTON_START, 2 * PRESSES);
+        assertEquals("Edges received", 2 * PRESSES, values.size());
+        for (int i = 0; i < values.size(); i++) {
+            assertEquals("Edge " + i, i % 2 == 0 ? 1 : 0, (int) values.get(i));
+        }
+    }
+
+    private void checkLatestAxisValue(boolean binary) throws Exception {
+        connect(binary);
+        for (int value = 1; value <= POSITIONS; value++) {
+            dispatcher.dispatchUpdate(ControllerState.AXIS_X, value);
+        }
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        List<Integer> values;
+        do {
+            values = awaitValues(ControllerState.AXIS_X, 1);
+            Thread.sleep(10);
+        } while ((values.isEmpty() || values.get(values.size() - 1) != POSITIONS) && System.currentTimeMillis() < deadline);
+
+        assertEquals("Latest value", POSITIONS, (int) values.get(values.size() - 1));
+        // Conflation may skip values, but never sends a stale one
+        for (int i = 1; i < values.size(); i++) {
+            assertTrue("Stale value after " + values.get(i - 1), values.get(i) > values.get(i - 1));
+        }
+        // Every update the dispatcher counts as sent reached the server
+        final QueueCounters counters = dispatcher.getQueueCounters();
+        synchronized (received) {
+            assertEquals(counters.getSent(), received.size());
+        }
+        assertEquals(POSITIONS, counters.getSent() + counters.getDropped());
+    }
+
+    /// Frames carry the time of their input, once the clock of the server is known.
+    private void checkFrameTimes(boolean binary) throws Exception {
+        connect(binary);
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!dispatcher.getClockEstimator().hasEstimate()) {
+            assertTrue("No clock estimate", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        final long before = server.clockMicros();
+        dispatcher.dispatchUpdate(ControllerState.AXIS_X, 1234);
+        assertEquals(1, awaitValues(ControllerState.AXIS_X, 1).size());
+        final long after = server.clockMicros();
+        synchronized (received) {
+            assertTrue("No frame time", !frameTimes.isEmpty());
+            final long time = frameTimes.get(frameTimes.size() - 1);
+            // Loopback: the estimated offset is within a millisecond
+            assertTrue("Frame time " + time + " not in [" + before + ", " + after + "]",
+                    time >= before - 1000 && time <= after + 1000);
+        }
+    }
+
+    @Test
+    public void textProtocolDeliversEveryEdge() throws Exception {
+        checkButtonEdges(false);
+    }
+
+    @Test
+    public void binaryProtocolDeliversEveryEdge() throws Exception {
+        checkButtonEdges(true);
+    }
+
+    @Test
+    public void textProtocolDeliversLatestAxisValue() throws Exception {
+        checkLatestAxisValue(false);
+    }
+
+    @Test
+    public void binaryProtocolDeliversLatestAxisValue() throws Exception {
+        checkLatestAxisValue(true);
+    }
+
+    @Test
+    public void textProtocolTimestampsFrames() throws Exception {
+        checkFrameTimes(false);
+    }
+
+    @Test
+    public void binaryProtocolTimestampsFrames() throws Exception {
+        checkFrameTimes(true);
+    }
+
+}
@@ -0,0 +1,173 @@
+package com.emansapplication.emanvirtualjoystick;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.emansapplication.emanvirtualjoystick.dispatch.ConnectionStateListener;
+import com.emansapplication.emanvirtualjoystick.dispatch.DatagramStateReceiver;
+import com.emansapplication.emanvirtualjoystick.dispatch.StatePacket;
+import com.emansapplication.emanvirtualjoystick.dispatch.TransportOptions;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/// The heartbeats of a datagram session, against a server that answers them until it goes silent, and a standby.
+public class SocketDispatcherWatchdogTest {
+
+    private static final long TIMEOUT_MILLIS = 5000;
+    /// Longer than the stall timeout, so that a stall would have happened.
+    private static final long QUIET_MILLIS = 3000;
+    // A silent datagram server stalls once 16 heartbeats, 100 ms apart, and the adaptive timeout of at least 1 s
+    // (and at most 3 s) have gone unanswered
+    private static final long MIN_STALL_MILLIS = 1000;
+    private static final long MAX_STALL_MILLIS = 3500;
+
+    private DatagramChannel server;
+    private Thread serverThread;
+    private volatile boolean answering = true;
+    private volatile int answeredPings;
+
+    private DatagramStateReceiver standby;
+    private Thread standbyThread;
+    private SocketDispatcher dispatcher;
+
+    private volatile long stallNanos;
+    private final CountDownLatch stalled = new CountDownLatch(1);
+
+    @Before
+    public void setUp() throws IOException {
+        server = DatagramChannel.open();
+        server.bind(new InetSocketAddress("127.0.0.1", 0));
+        serverThread = new Thread("SocketDispatcherWatchdogTest-server") {
+            @Override
+            public void run() {
+                answer_loop();
+            }
+        };
+        serverThread.start();
+
+        standby = new DatagramStateReceiver(0);
+        standbyThread = new Thread("SocketDispatcherWatchdogTest-standby") {
+            @Override
+            public void run() {
+                try {
+                    standby.run((sender, packet) -> {
+                    });
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                }
+            }
+        };
+        standbyThread.start();
+    }
+
+    @After
+    public void tearDown() throws IOException, InterruptedException {
+        if (dispatcher != null) {
+            dispatcher.close();
+        }
+        server.close();
+        standby.close();
+        serverThread.join(TIMEOUT_MILLIS);
+        standbyThread.join(TIMEOUT_MILLIS);
+    }
+
+    /// Echoes the heartbeats while answering, and ignores everything else.
+    private void answer_loop() {
+        final ByteBuffer packet = ByteBuffer.allocate(StatePacket.MAX_SIZE);
+        try {
+            while (true) {
+                packet.clear();
+                final SocketAddress sender = server.receive(packet);
+                packet.flip();
+                if (answering && packet.remaining() >= StatePacket.PROBE_SIZE
+                        && StatePacket.getType(packet) == StatePacket.TYPE_PING) {
+                    packet.put(0, (byte) StatePacket.TYPE_PONG);
+                    server.send(packet, sender);
+                    answeredPings++;
+                }
+            }
+        } catch (IOException ex) {
+            // Closed
+        }
+    }
+
+    private void connect() throws InterruptedException {
+        dispatcher = new SocketDispatcher(new TransportOptions().setTransport(TransportOptions.TRANSPORT_UDP));
+        dispatcher.setConnectionStateListener(new ConnectionStateListener() {
+            @Override
+            public void onConnectionStateChanged(int state, int failedAttempts) {
+            }
+
+            @Override
+            public void onConnectionStalled(String host, int port, long silenceMillis) {
+                if (stalled.getCount() > 0) {
+                    stallNanos = System.nanoTime();
+                    stalled.countDown();
+                }
+            }
+        });
+        dispatcher.setStandbyEndpoints(Collections.singletonList(new InetSocketAddress("127.0.0.1", standby.getLocalPort())));
+        dispatcher.setEndpoint("127.0.0.1", server.socket().getLocalPort());
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MILLIS);
+        // Once a few heartbeats are answered, the dispatcher has an estimate of the round-trip time
+        while (!dispatcher.isConnected() || answeredPings < 3) {
+            assertTrue("Heartbeats not answered", System.nanoTime() - deadline < 0);
+            Thread.sleep(10);
+        }
+    }
+
+    /// Moves of the stick, sent to the active server.
+    private void moveStick(int count) {
+        for (int i = 1; i <= count; i++) {
+            dispatcher.dispatchLeftJoystickPosition(i / 100.0, 0);
+        }
+    }
+
+    @Test
+    public void answeredHeartbeatsNeverStall() throws Exception {
+        connect();
+        // The standby may have been active before the server connected
+        final long standbyStates = standby.getAcceptedCount();
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(QUIET_MILLIS);
+        while (System.nanoTime() - deadline < 0) {
+            moveStick(10);
+            Thread.sleep(50);
+        }
+        assertEquals("Stalls", 1, stalled.getCount());
+        assertTrue("Not connected", dispatcher.isConnected());
+        assertEquals("States sent to the standby", standbyStates, standby.getAcceptedCount());
+    }
+
+    @Test
+    public void silentServerFailsOverToStandby() throws Exception {
+        connect();
+        final long standbyStates = standby.getAcceptedCount();
+        final long silenceNanos = System.nanoTime();
+        answering = false;
+
+        assertTrue("No stall", stalled.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        final long stallMillis = TimeUnit.NANOSECONDS.toMillis(stallNanos - silenceNanos);
+        assertTrue("Stalled after " + stallMillis + " ms", stallMillis >= MIN_STALL_MILLIS && stallMillis <= MAX_STALL_MILLIS);
+
+        // The standby is active while the server is not connected: it receives the keyframe of the failover,
+        // then the states sent until the server reconnects, and during the backoff once the next session fails
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MILLIS);
+        while (standby.getAcceptedCount() == standbyStates) {
+            assertTrue("The standby did not take over", System.nanoTime() - deadline < 0);
+            moveStick(10);
+            Thread.sleep(10);
+        }
+    }
+
+}
@@ -0,0 +1,34 @@
+package com.emansapplication.emanvirtualjoystick.dispatch;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+public class BinaryCodecTest {
+
+    private final BinaryCodec codec = new BinaryCodec();
+    private final ByteBuffer out = ByteBuffer.allocate(64);
+
+    private long roundTrip(long serverMicros) {
+        out.clear();
+        codec.encodeTimestamp(out, serverMicros);
+        assertEquals(BinaryCodec.FRAME_SIZE, out.position());
+        assertEquals(BinaryCodec.OP_TIMESTAMP, out.get(0));
+        final byte[] frame = new byte[BinaryCodec.FRAME_SIZE];
+        out.flip();
+        out.get(frame);
+        return BinaryCodec.getTimestamp(frame);
+    }
+
+    @Test
+    public void timestampIsOneFrame() {
+        assertEquals(0, roundTrip(0));
+        assertEquals(1_234_567_890_123L, roundTrip(1_234_567_890_123L));
+        // Just after the start of the server, the estimate of the offset may make the time negative
+        assertEquals(-42, roundTrip(-42));
+        assertEquals((1L << 55) - 1, roundTrip((1L << 55) - 1));
+    }
+
+}
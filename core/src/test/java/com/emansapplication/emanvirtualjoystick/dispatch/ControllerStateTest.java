@@ -0,0 +1,113 @@
+package com.emansapplication.emanvirtualjoystick.dispatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/// Button edges of the user are lossless and bounded unless another policy is chosen, and keyframes and commands never evict them.
+public class ControllerStateTest {
+
+    private final ControllerState state = new ControllerState();
+    private final int[] controls = new int[64];
+    private final int[] values = new int[controls.length];
+
+    /// The drained updates, as "control=value".
+    private List<String> drainAll() {
+        final List<String> drained = new ArrayList<>();
+        int count;
+        while ((count = state.drain(controls, values)) > 0) {
+            for (int i = 0; i < count; i++) {
+                drained.add(controls[i] + "=" + values[i]);
+            }
+        }
+        return drained;
+    }
+
+    private void pushPresses(int presses) {
+        for (int i = 0; i < presses; i++) {
+            state.pushButton(0, ControllerState.BUTTON_START, true);
+            state.pushButton(0, ControllerState.BUTTON_START, false);
+        }
+    }
+
+    private static void assertPresses(int presses, List<String> drained) {
+        assertEquals(2 * presses, drained.size());
+        for (int i = 0; i < drained.size(); i++) {
+            assertEquals(ControllerState.BUTTON_START + "=" + (i % 2 == 0 ? 1 : 0), drained.get(i));
+        }
+    }
+
+    @Test
+    public void edgesWaitForRoomByDefault() throws InterruptedException {
+        final int presses = 10 * ControllerState.DEFAULT_EDGE_CAPACITY;
+        final Thread pusher = new Thread("ControllerStateTest-pusher") {
+            @Override
+            public void run() {
+                pushPresses(presses);
+            }
+        };
+        pusher.start();
+        final List<String> drained = new ArrayList<>();
+        while (drained.size() < 2 * presses) {
+            final int count = state.take(controls, values, System.nanoTime() + TimeUnit.SECONDS.toNanos(5));
+            assertTrue("Pushes stopped after " + drained.size() + " edges", count > 0);
+            for (int i = 0; i < count; i++) {
+                drained.add(controls[i] + "=" + values[i]);
+            }
+        }
+        pusher.join();
+        assertPresses(presses, drained);
+        assertEquals(0, state.getCounters().getDropped());
+        assertTrue("Depth " + state.getCounters().getMaxDepth(),
+                state.getCounters().getMaxDepth() <= ControllerState.DEFAULT_EDGE_CAPACITY);
+    }
+
+    @Test
+    public void growKeepsEveryEdgeWithoutWaiting() {
+        state.setEdgeCapacity(ControllerState.DEFAULT_EDGE_CAPACITY, ControllerState.OVERFLOW_GROW);
+        final int presses = 10 * ControllerState.DEFAULT_EDGE_CAPACITY;
+        pushPresses(presses);
+        assertPresses(presses, drainAll());
+        assertEquals(0, state.getCounters().getDropped());
+    }
+
+    @Test
+    public void keyframesAndCommandsDoNotEvictEdges() {
+        state.setEdgeCapacity(2, ControllerState.OVERFLOW_BLOCK);
+        state.pushButton(0, ControllerState.BUTTON_START, true);
+        state.pushButton(0, ControllerState.BUTTON_SELECT, true);
+        // The buffer of the user is full: these must neither wait nor drop the edges above
+        state.requestKeyframe();
+        state.pushCommand(ControllerState.COMMAND_PING);
+        state.pushCommand(ControllerState.COMMAND_TIME);
+
+        final List<String> drained = drainAll();
+        assertEquals(ControllerState.BUTTON_START + "=1", drained.get(0));
+        assertEquals(ControllerState.BUTTON_SELECT + "=1", drained.get(1));
+        assertEquals(ControllerState.COMMAND_PING + "=0", drained.get(4));
+        assertEquals(ControllerState.COMMAND_TIME + "=0", drained.get(5));
+        assertEquals(0, state.getCounters().getDropped());
+    }
+
+    @Test
+    public void dropOldestOnlyDropsEdgesOfTheUser() {
+        state.setEdgeCapacity(2, ControllerState.OVERFLOW_DROP_OLDEST);
+        state.pushCommand(ControllerState.COMMAND_PING);
+        state.pushButton(0, ControllerState.BUTTON_START, true);
+        state.pushButton(0, ControllerState.BUTTON_START, false);
+        state.pushButton(0, ControllerState.BUTTON_SELECT, true);
+
+        final List<String> drained = drainAll();
+        assertEquals(3, drained.size());
+        assertEquals(ControllerState.COMMAND_PING + "=0", drained.get(0));
+        assertEquals(ControllerState.BUTTON_START + "=0", drained.get(1));
+        assertEquals(ControllerState.BUTTON_SELECT + "=1", drained.get(2));
+        assertEquals(1, state.getCounters().getDropped());
+    }
+
+}
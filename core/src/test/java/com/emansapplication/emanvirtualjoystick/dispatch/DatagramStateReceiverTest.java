@@ -0,0 +1,185 @@
+package com.emansapplication.emanvirtualjoystick.dispatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.emansapplication.emanvirtualjoystick.SocketDispatcher;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/// A {@link DatagramStateReceiver} on the loopback interface, fed by a dispatcher through simulated loss, or by hand.
+public class DatagramStateReceiverTest {
+
+    private static final long TIMEOUT_MILLIS = 5000;
+    private static final int TAPS = 500;
+    private static final long TAP_NANOS = TimeUnit.MILLISECONDS.toNanos(2);
+    private static final int START_MASK = StatePacket.buttonMask(ControllerState.BUTTON_START);
+
+    private DatagramStateReceiver receiver;
+    private Thread receiverThread;
+    private SocketDispatcher dispatcher;
+
+    /// Only used by the thread of the receiver.
+    private int lastButtons;
+    private volatile int presses;
+    private volatile int missedStates;
+
+    private void apply(int buttons) {
+        if ((buttons & START_MASK) != 0 && (lastButtons & START_MASK) == 0) {
+            presses++;
+        }
+        lastButtons = buttons;
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        receiver = new DatagramStateReceiver(0);
+        receiverThread = new Thread("DatagramStateReceiverTest-receiver") {
+            @Override
+            public void run() {
+                try {
+                    receiver.run(new DatagramStateReceiver.Listener() {
+                        @Override
+                        public void onState(SocketAddress sender, ByteBuffer packet) {
+                            apply(StatePacket.getButtons(packet));
+                        }
+
+                        @Override
+                        public void onMissedState(SocketAddress sender, ByteBuffer packet, int entry) {
+                            missedStates++;
+                            apply(StatePacket.getHistoryButtons(packet, entry));
+                        }
+                    });
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                }
+            }
+        };
+        receiverThread.start();
+    }
+
+    @After
+    public void tearDown() throws IOException, InterruptedException {
+        if (dispatcher != null) {
+            dispatcher.close();
+        }
+        receiver.close();
+        receiverThread.join(TIMEOUT_MILLIS);
+    }
+
+    private void awaitConnected() throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MILLIS);
+        while (!dispatcher.isConnected()) {
+            assertTrue("Not connected", System.nanoTime() - deadline < 0);
+            Thread.sleep(10);
+        }
+    }
+
+    private void awaitAccepted(long count) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MILLIS);
+        while (receiver.getAcceptedCount() < count) {
+            assertTrue("Accepted " + receiver.getAcceptedCount() + " datagrams", System.nanoTime() - deadline < 0);
+            Thread.sleep(10);
+        }
+    }
+
+    private void tap(int count) {
+        for (int i = 0; i < count; i++) {
+            dispatcher.dispatchStartButtonPressed();
+            LockSupport.parkNanos(TAP_NANOS);
+            dispatcher.dispatchStartButtonReleased();
+            LockSupport.parkNanos(TAP_NANOS);
+        }
+    }
+
+    /// Moves of the stick, so that the datagrams carrying the previous states are not the last ones.
+    private void moveStick() {
+        for (int i = 1; i <= 2 * StatePacket.MAX_REDUNDANCY; i++) {
+            dispatcher.dispatchLeftJoystickPosition(i / 100.0, 0);
+            LockSupport.parkNanos(TAP_NANOS);
+        }
+    }
+
+    @Test
+    public void everyPressArrivesThroughLossAndReconnection() throws Exception {
+        receiver.setSimulatedLoss(0.2);
+        final TransportOptions options = new TransportOptions()
+                .setTransport(TransportOptions.TRANSPORT_UDP)
+                .setDatagramRedundancy(StatePacket.MAX_REDUNDANCY);
+        final int port = receiver.getLocalPort();
+        dispatcher = new SocketDispatcher("127.0.0.1", port, options);
+        awaitConnected();
+        // The states sent before the first one that arrives are not missed, so none of them is a press
+        while (receiver.getAcceptedCount() == 0) {
+            moveStick();
+        }
+
+        tap(TAPS / 2);
+        // The next connection is from another port
+        dispatcher.setEndpoint(null, 0);
+        dispatcher.setEndpoint("127.0.0.1", port);
+        awaitConnected();
+        tap(TAPS - TAPS / 2);
+        moveStick();
+
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MILLIS);
+        while (presses < TAPS && System.nanoTime() - deadline < 0) {
+            Thread.sleep(10);
+        }
+        assertEquals("Lost states", 0, receiver.getLostStateCount());
+        assertEquals("Presses", TAPS, presses);
+    }
+
+    @Test
+    public void statesSentWhileReconnectingAreMissed() throws Exception {
+        final InetSocketAddress address = new InetSocketAddress("127.0.0.1", receiver.getLocalPort());
+        final int clientId = 42;
+        final ByteBuffer packet = ByteBuffer.allocate(StatePacket.MAX_SIZE);
+        try (DatagramChannel first = DatagramChannel.open();
+             DatagramChannel second = DatagramChannel.open()) {
+            first.connect(address);
+            second.connect(address);
+            sendState(first, packet, clientId, 0, 0, 0);
+            awaitAccepted(1);
+
+            // States 1 and 2 were sent to another server, and state 3 was lost: the next connection carries 2 of them
+            sendState(second, packet, clientId, 1, 4, 2);
+            awaitAccepted(2);
+            assertEquals("Recovered states", 2, receiver.getRecoveredStateCount());
+            assertEquals("Lost states", 1, receiver.getLostStateCount());
+            assertEquals("Missed states", 2, missedStates);
+            assertEquals("Presses", 1, presses);
+
+            // Another client starts its own count
+            sendState(second, packet, clientId + 1, 2, 7, 2);
+            awaitAccepted(3);
+            assertEquals("Recovered states", 2, receiver.getRecoveredStateCount());
+            assertEquals("Lost states", 1, receiver.getLostStateCount());
+        }
+    }
+
+    /// Send a state of pad 0 whose previous states have the start button pressed.
+    private static void sendState(DatagramChannel channel, ByteBuffer packet, int clientId, int sequence,
+                                  int stateCount, int historyCount) throws IOException {
+        final int[] axes = new int[ControllerState.AXIS_COUNT];
+        packet.clear();
+        StatePacket.encodeRedundantPad(packet, 0, sequence, axes, 0, StatePacket.NO_EVENT_TIME,
+                clientId, stateCount, historyCount);
+        for (int i = 0; i < historyCount; i++) {
+            StatePacket.encodeHistoryEntry(packet, axes, START_MASK);
+        }
+        packet.flip();
+        channel.write(packet);
+    }
+
+}
@@ -0,0 +1,77 @@
+package com.emansapplication.emanvirtualjoystick.dispatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+/**
+ * The hot path of the writer, from the input to the encoded bytes, must not allocate once warmed up:
+ * garbage collections on low-end phones show up as input hitches.
+ */
+public class EncodeAllocationTest {
+
+    private static final int WARMUP_ITERATIONS = 50_000;
+    private static final int ITERATIONS = 200_000;
+
+    private final ControllerState state = new ControllerState();
+    private final WireCodec textCodec = new TextCodec();
+    private final WireCodec binaryCodec = new BinaryCodec();
+    private final ByteBuffer out = ByteBuffer.allocateDirect(4096);
+    private final int[] controls = new int[ControllerState.MAX_PADS * ControllerState.AXIS_COUNT + 16];
+    private final int[] values = new int[controls.length];
+    private final int[] axes = new int[ControllerState.AXIS_COUNT];
+    private long sink;
+
+    /// One input event and one drain cycle, encoded in every wire format.
+    private void cycle(int i) {
+        final int value = (i * 4099) % ControllerState.AXIS_MAX - ControllerState.AXIS_MAX / 2;
+        state.setAxes(i & 1, ControllerState.AXIS_X, value, ControllerState.AXIS_Y, -value);
+        if ((i & 15) == 0) {
+            state.pushButton(0, ControllerState.BUTTON_START, (i & 16) != 0);
+        }
+        final int count = state.drain(controls, values);
+        out.clear();
+        textCodec.encodeTimestamp(out, i);
+        for (int j = 0; j < count; j++) {
+            textCodec.encode(out, controls[j], values[j]);
+        }
+        binaryCodec.encodeTimestamp(out, i);
+        for (int j = 0; j < count; j++) {
+            binaryCodec.encode(out, controls[j], values[j]);
+            if (ControllerState.isAxis(ControllerState.getControl(controls[j]))) {
+                axes[ControllerState.getControl(controls[j])] = values[j];
+            }
+        }
+        StatePacket.encodeTimedPad(out, i & 1, i, axes, i & 1, i);
+        sink += out.position();
+    }
+
+    @Test
+    public void encodingDoesNotAllocate() {
+        final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assertTrue("Allocation counting is not supported by this JVM", threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+        final long thread = Thread.currentThread().getId();
+
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            cycle(i);
+        }
+        // The measure itself may allocate: subtract what it takes around an empty loop
+        long start = threads.getThreadAllocatedBytes(thread);
+        final long overhead = threads.getThreadAllocatedBytes(thread) - start;
+
+        start = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < ITERATIONS; i++) {
+            cycle(i);
+        }
+        final long allocated = threads.getThreadAllocatedBytes(thread) - start - overhead;
+
+        assertTrue(sink > 0);
+        assertEquals("Bytes allocated by " + ITERATIONS + " cycles", 0, allocated);
+    }
+
+}
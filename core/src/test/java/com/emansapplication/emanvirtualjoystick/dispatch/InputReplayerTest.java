@@ -0,0 +1,127 @@
+package com.emansapplication.emanvirtualjoystick.dispatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.emansapplication.emanvirtualjoystick.SocketDispatcher;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/// A log written by an {@link InputRecorder}, replayed as fast as possible to a {@link ReferenceServer}.
+public class InputReplayerTest {
+
+    private static final long TIMEOUT_MILLIS = 5000;
+    private static final int PRESSES = 1000;
+
+    private File log;
+    private ReferenceServer server;
+    private SocketDispatcher dispatcher;
+
+    /// Edges received by the server, as "control id=value".
+    private final List<String> receivedEdges = new ArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        log = File.createTempFile("InputReplayerTest", ".log");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (dispatcher != null) {
+            dispatcher.close();
+        }
+        if (server != null) {
+            server.close();
+        }
+        if (!log.delete()) {
+            log.deleteOnExit();
+        }
+    }
+
+    /// Presses of both buttons of two pads, with moves of the stick in between.
+    private void record() throws IOException {
+        final int[] controls = new int[3];
+        final int[] values = new int[3];
+        try (InputRecorder recorder = new InputRecorder(log)) {
+            for (int i = 0; i < PRESSES; i++) {
+                final int button = i % 2 == 0 ? ControllerState.BUTTON_START : ControllerState.BUTTON_SELECT;
+                controls[0] = ControllerState.controlId(i % 3 == 0 ? 1 : 0, button);
+                values[0] = 1;
+                controls[1] = controls[0];
+                values[1] = 0;
+                controls[2] = ControllerState.AXIS_X;
+                values[2] = i;
+                recorder.record(System.nanoTime(), controls, values, 3);
+            }
+        }
+    }
+
+    /// The edges of the log, as "control id=value".
+    private List<String> readEdges() throws IOException {
+        final List<String> edges = new ArrayList<>();
+        try (InputReplayer replayer = new InputReplayer(log)) {
+            replayer.read((timeMicros, controlId, value) -> {
+                if (!ControllerState.isAxis(ControllerState.getControl(controlId))) {
+                    edges.add(controlId + "=" + value);
+                }
+            });
+        }
+        return edges;
+    }
+
+    private void connect() throws IOException, InterruptedException {
+        server = new ReferenceServer(0, true, new ReferenceServer.Listener() {
+            @Override
+            public void onUpdate(SocketAddress client, int controlId, int value) {
+                if (!ControllerState.isAxis(ControllerState.getControl(controlId))) {
+                    synchronized (receivedEdges) {
+                        receivedEdges.add(controlId + "=" + value);
+                        receivedEdges.notifyAll();
+                    }
+                }
+            }
+        });
+        dispatcher = new SocketDispatcher("127.0.0.1", server.getLocalPort(), new TransportOptions());
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MILLIS);
+        while (!dispatcher.isConnected()) {
+            assertTrue("Not connected", System.nanoTime() - deadline < 0);
+            Thread.sleep(10);
+        }
+        // Let the handshake and the keyframe of the new session go through before counting
+        Thread.sleep(200);
+        synchronized (receivedEdges) {
+            receivedEdges.clear();
+        }
+    }
+
+    @Test
+    public void fastReplayDeliversEveryEdge() throws Exception {
+        record();
+        final List<String> recordedEdges = readEdges();
+        assertEquals("Recorded edges", 2 * PRESSES, recordedEdges.size());
+        connect();
+
+        try (InputReplayer replayer = new InputReplayer(log)) {
+            assertEquals("Replayed events", 3 * PRESSES, replayer.replay(dispatcher, false));
+        }
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        synchronized (receivedEdges) {
+            long remaining;
+            while (receivedEdges.size() < recordedEdges.size() && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                receivedEdges.wait(remaining);
+            }
+            assertEquals("Edges received", recordedEdges.size(), receivedEdges.size());
+            assertEquals(recordedEdges, receivedEdges);
+        }
+    }
+
+}
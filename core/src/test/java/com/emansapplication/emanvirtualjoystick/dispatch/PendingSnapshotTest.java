@@ -0,0 +1,72 @@
+package com.emansapplication.emanvirtualjoystick.dispatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/// Merged frames keep every edge, in order, and only the latest value of each axis.
+public class PendingSnapshotTest {
+
+    private final PendingSnapshot snapshot = new PendingSnapshot();
+    private final int[] controls = new int[ControllerState.MAX_PADS * ControllerState.AXIS_COUNT + 4];
+    private final int[] values = new int[controls.length];
+
+    /// The drained updates, as "control=value".
+    private List<String> drainAll() {
+        final List<String> drained = new ArrayList<>();
+        while (!snapshot.isEmpty()) {
+            final int count = snapshot.drain(controls, values);
+            for (int i = 0; i < count; i++) {
+                drained.add(controls[i] + "=" + values[i]);
+            }
+        }
+        return drained;
+    }
+
+    private int merge(int controlId, int value) {
+        return snapshot.merge(new int[]{controlId}, new int[]{value}, 1);
+    }
+
+    @Test
+    public void keepsEveryEdgeAndTheLatestAxes() {
+        final int presses = 100;
+        int superseded = 0;
+        for (int i = 0; i < presses; i++) {
+            superseded += merge(ControllerState.AXIS_X, i);
+            superseded += merge(ControllerState.BUTTON_START, 1);
+            superseded += merge(ControllerState.controlId(1, ControllerState.AXIS_Y), -i);
+            superseded += merge(ControllerState.BUTTON_START, 0);
+        }
+        assertEquals("Superseded axis values", 2 * (presses - 1), superseded);
+
+        final List<String> drained = drainAll();
+        assertEquals(2 * presses + 2, drained.size());
+        final List<String> edges = new ArrayList<>();
+        for (String update : drained) {
+            if (update.startsWith(ControllerState.BUTTON_START + "=")) {
+                edges.add(update);
+            }
+        }
+        assertEquals(2 * presses, edges.size());
+        for (int i = 0; i < edges.size(); i++) {
+            assertEquals(ControllerState.BUTTON_START + "=" + (i % 2 == 0 ? 1 : 0), edges.get(i));
+        }
+        assertTrue(drained.contains(ControllerState.AXIS_X + "=" + (presses - 1)));
+        assertTrue(drained.contains(ControllerState.controlId(1, ControllerState.AXIS_Y) + "=" + -(presses - 1)));
+    }
+
+    @Test
+    public void clearCountsTheDroppedUpdates() {
+        merge(ControllerState.AXIS_X, 1);
+        merge(ControllerState.BUTTON_SELECT, 1);
+        merge(ControllerState.COMMAND_PING, 0);
+        assertEquals(3, snapshot.clear());
+        assertTrue(snapshot.isEmpty());
+        assertEquals(0, snapshot.drain(controls, values));
+    }
+
+}
@@ -0,0 +1,103 @@
+package com.emansapplication.emanvirtualjoystick.dispatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/// A {@link ServerDiscovery} against {@link DiscoveryResponder}s on the loopback interface.
+public class ServerDiscoveryTest {
+
+    private static final long DURATION_MILLIS = 1000;
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    private final List<DiscoveryResponder> responders = new ArrayList<>();
+    private ServerDiscovery discovery;
+
+    /// Servers found, by key.
+    private final Map<String, ServerDiscovery.Server> servers = new HashMap<>();
+    private final CountDownLatch finished = new CountDownLatch(1);
+
+    private final ServerDiscovery.Listener listener = new ServerDiscovery.Listener() {
+        @Override
+        public void onServerFound(ServerDiscovery.Server server) {
+            synchronized (servers) {
+                servers.put(server.getKey(), server);
+            }
+        }
+
+        @Override
+        public void onDiscoveryFinished() {
+            finished.countDown();
+        }
+    };
+
+    @After
+    public void tearDown() throws IOException {
+        if (discovery != null) {
+            discovery.close();
+        }
+        for (DiscoveryResponder responder : responders) {
+            responder.close();
+        }
+    }
+
+    private InetSocketAddress startResponder(String name, int serverPort, int transports) throws IOException {
+        final DiscoveryResponder responder = new DiscoveryResponder(0, name, serverPort, transports);
+        responders.add(responder);
+        return new InetSocketAddress("127.0.0.1", responder.getLocalPort());
+    }
+
+    @Test
+    public void findsEveryServer() throws Exception {
+        final List<InetSocketAddress> targets = new ArrayList<>();
+        targets.add(startResponder("Stream server", 5000, 1 << TransportOptions.TRANSPORT_TCP));
+        targets.add(startResponder("Datagram server", 5001, 1 << TransportOptions.TRANSPORT_UDP));
+        discovery = new ServerDiscovery(targets, DURATION_MILLIS, listener);
+
+        assertTrue("Search not finished", finished.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        synchronized (servers) {
+            assertEquals("Servers found", 2, servers.size());
+            final ServerDiscovery.Server stream = servers.get("127.0.0.1:5000");
+            assertNotNull("Stream server not found", stream);
+            assertEquals("Stream server", stream.getName());
+            assertEquals(5000, stream.getPort());
+            assertTrue(stream.supports(TransportOptions.TRANSPORT_TCP));
+            assertFalse(stream.supports(TransportOptions.TRANSPORT_UDP));
+            assertTrue("Round-trip time " + stream.getRttNanos(),
+                    stream.getRttNanos() >= 0 && stream.getRttNanos() < TimeUnit.MILLISECONDS.toNanos(DURATION_MILLIS));
+
+            final ServerDiscovery.Server datagram = servers.get("127.0.0.1:5001");
+            assertNotNull("Datagram server not found", datagram);
+            assertEquals("Datagram server", datagram.getName());
+            assertTrue(datagram.supports(TransportOptions.TRANSPORT_UDP));
+            assertFalse(datagram.supports(TransportOptions.TRANSPORT_TCP));
+        }
+        for (DiscoveryResponder responder : responders) {
+            assertEquals("Queries answered", ServerDiscovery.QUERY_COUNT, responder.getAnswerCount());
+        }
+    }
+
+    @Test
+    public void closedSearchDoesNotFinish() throws Exception {
+        final List<InetSocketAddress> targets = new ArrayList<>();
+        targets.add(startResponder("Server", 5000, 1 << TransportOptions.TRANSPORT_TCP));
+        discovery = new ServerDiscovery(targets, DURATION_MILLIS, listener);
+        discovery.close();
+
+        assertFalse("Closed search finished", finished.await(2 * DURATION_MILLIS, TimeUnit.MILLISECONDS));
+    }
+
+}
@@ -0,0 +1,16 @@
+package com.emansapplication.emanvirtualjoystick.loadgen;
+
+import com.emansapplication.emanvirtualjoystick.SocketDispatcher;
+
+/// Moves the controls of one simulated controller over time. Not thread-safe: each controller has its own.
+public interface InputScript {
+
+    /**
+     * Dispatch the input of the controller up to this time. Called at the rate of the run,
+     * as a touch screen would deliver its events.
+     *
+     * @param elapsedMicros Time since the start of the run.
+     */
+    void apply(SocketDispatcher dispatcher, long elapsedMicros);
+
+}
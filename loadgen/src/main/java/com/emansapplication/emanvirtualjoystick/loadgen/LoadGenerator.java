@@ -0,0 +1,281 @@
+package com.emansapplication.emanvirtualjoystick.loadgen;
+
+import com.emansapplication.emanvirtualjoystick.SocketDispatcher;
+import com.emansapplication.emanvirtualjoystick.dispatch.DatagramStateReceiver;
+import com.emansapplication.emanvirtualjoystick.dispatch.LatencyHistogram;
+import com.emansapplication.emanvirtualjoystick.dispatch.QueueCounters;
+import com.emansapplication.emanvirtualjoystick.dispatch.ReferenceServer;
+import com.emansapplication.emanvirtualjoystick.dispatch.TransportOptions;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Opens many simulated controllers against one server, to measure how many it can handle.
+ * Each controller is a {@link SocketDispatcher} with its own connection, driven by an
+ * {@link InputScript}; no device is needed.
+ * <p>
+ * Usage: {@code LoadGenerator clients [rate in Hz] [seconds] [text|binary|udp] [sweep|log file] [host:port]}.
+ * The scripts are applied at the given rate, as touch events would be. Without a server, a
+ * {@link ReferenceServer} (or a {@link DatagramStateReceiver} for UDP) is started in the process.
+ * <p>
+ * Each controller also sends {@link #PROBE_RATE_HZ} latency probes per second, which the server
+ * echoes. The report gives, for each controller, the updates and bytes sent per second, the
+ * updates dropped by conflation or because the connection was not ready, and the round-trip time.
+ */
+public class LoadGenerator {
+
+    private static final int PROBE_RATE_HZ = 10;
+    private static final long CONNECT_TIMEOUT_MILLIS = 10_000;
+
+    private final SocketDispatcher[] dispatchers;
+    private final InputScript[] scripts;
+    private final int rateHz;
+    private final long durationNanos;
+
+    private LoadGenerator(SocketDispatcher[] dispatchers, InputScript[] scripts, int rateHz, long durationNanos) {
+        this.dispatchers = dispatchers;
+        this.scripts = scripts;
+        this.rateHz = rateHz;
+        this.durationNanos = durationNanos;
+    }
+
+    /**
+     * Drive the controllers whose index is {@code first} modulo {@code stride}, until the end of the run.
+     * The ticks are scheduled at absolute times, so that a late tick does not delay the next ones.
+     */
+    private void tick_loop(int first, int stride, long startNanos) {
+        final long periodNanos = TimeUnit.SECONDS.toNanos(1) / rateHz;
+        final long ticksPerProbe = Math.max(1, rateHz / PROBE_RATE_HZ);
+        long deadline = startNanos;
+        for (long tick = 0; ; tick++) {
+            long delay;
+            while ((delay = deadline - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(delay);
+            }
+            final long elapsedNanos = System.nanoTime() - startNanos;
+            if (elapsedNanos >= durationNanos) {
+                return;
+            }
+            for (int client = first; client < dispatchers.length; client += stride) {
+                scripts[client].apply(dispatchers[client], TimeUnit.NANOSECONDS.toMicros(elapsedNanos));
+                // The probes of the controllers are spread over the ticks
+                if ((tick + client) % ticksPerProbe == 0) {
+                    dispatchers[client].probeLatency();
+                }
+            }
+            deadline += periodNanos;
+        }
+    }
+
+    /// Run the scripts on as many threads as processors, and print the total rates every second.
+    private void run(AtomicLong serverUpdates) throws InterruptedException {
+        for (SocketDispatcher dispatcher : dispatchers) {
+            dispatcher.getQueueCounters().reset();
+            dispatcher.getLatencyHistogram().reset();
+        }
+        final int driverCount = Math.min(dispatchers.length, Runtime.getRuntime().availableProcessors());
+        final Thread[] drivers = new Thread[driverCount];
+        final long startNanos = System.nanoTime();
+        for (int i = 0; i < driverCount; i++) {
+            final int first = i;
+            drivers[i] = new Thread("LoadGenerator-driver-" + i) {
+                @Override
+                public void run() {
+                    tick_loop(first, driverCount, startNanos);
+                }
+            };
+            drivers[i].start();
+        }
+
+        System.out.printf("%8s %12s %12s %12s %10s %10s%n", "time", "sent/s", "bytes/s", "received/s", "p50 ms", "p99 ms");
+        long lastSent = 0;
+        long lastBytes = totalWrittenBytes();
+        long lastReceived = serverUpdates.get();
+        long lastNanos = startNanos;
+        for (int second = 1; drivers[0].isAlive(); second++) {
+            drivers[0].join(1000);
+            final long now = System.nanoTime();
+            final double seconds = (now - lastNanos) / 1e9;
+            long sent = 0;
+            final LatencyHistogram latency = new LatencyHistogram();
+            for (SocketDispatcher dispatcher : dispatchers) {
+                sent += dispatcher.getQueueCounters().getSent();
+                latency.add(dispatcher.getLatencyHistogram());
+            }
+            final long bytes = totalWrittenBytes();
+            final long received = serverUpdates.get();
+            System.out.printf("%7ds %12.0f %12.0f %12s %10.2f %10.2f%n", second,
+                    (sent - lastSent) / seconds, (bytes - lastBytes) / seconds,
+                    received < 0 ? "-" : String.format("%.0f", (received - lastReceived) / seconds),
+                    latency.getPercentileNanos(50) / 1e6, latency.getPercentileNanos(99) / 1e6);
+            lastSent = sent;
+            lastBytes = bytes;
+            lastReceived = received;
+            lastNanos = now;
+        }
+        for (Thread driver : drivers) {
+            driver.join();
+        }
+    }
+
+    private long totalWrittenBytes() {
+        long bytes = 0;
+        for (SocketDispatcher dispatcher : dispatchers) {
+            bytes += dispatcher.getWrittenBytes();
+        }
+        return bytes;
+    }
+
+    private void report() {
+        final double seconds = durationNanos / 1e9;
+        System.out.printf("%n%6s %10s %10s %10s %10s %8s %8s %8s %8s%n",
+                "client", "state", "sent/s", "dropped", "bytes/s", "probes", "p50 ms", "p99 ms", "max ms");
+        final LatencyHistogram total = new LatencyHistogram();
+        long sent = 0;
+        long dropped = 0;
+        long bytes = 0;
+        int connected = 0;
+        for (int client = 0; client < dispatchers.length; client++) {
+            final SocketDispatcher dispatcher = dispatchers[client];
+            final QueueCounters counters = dispatcher.getQueueCounters();
+            final LatencyHistogram latency = dispatcher.getLatencyHistogram();
+            System.out.printf("%6d %10s %10.0f %10d %10.0f %8d %8.2f %8.2f %8.2f%n", client,
+                    dispatcher.isConnected() ? "connected" : "down",
+                    counters.getSent() / seconds, counters.getDropped(), dispatcher.getWrittenBytes() / seconds,
+                    latency.getCount(), latency.getPercentileNanos(50) / 1e6,
+                    latency.getPercentileNanos(99) / 1e6, latency.getMaxNanos() / 1e6);
+            total.add(latency);
+            sent += counters.getSent();
+            dropped += counters.getDropped();
+            bytes += dispatcher.getWrittenBytes();
+            if (dispatcher.isConnected()) {
+                connected++;
+            }
+        }
+        System.out.printf("%6s %10s %10.0f %10d %10.0f %8d %8.2f %8.2f %8.2f%n", "total", connected + "/" + dispatchers.length,
+                sent / seconds, dropped, bytes / seconds, total.getCount(), total.getPercentileNanos(50) / 1e6,
+                total.getPercentileNanos(99) / 1e6, total.getMaxNanos() / 1e6);
+    }
+
+    /// Start a server on the loopback interface, counting the updates it receives into the counter.
+    private static Closeable startLocalServer(String protocol, int[] port, AtomicLong updates) throws IOException {
+        if (!protocol.equals("udp")) {
+            final ReferenceServer server = new ReferenceServer(0, true, (client, controlId, value) -> updates.incrementAndGet());
+            port[0] = server.getLocalPort();
+            return server;
+        }
+        final DatagramStateReceiver receiver = new DatagramStateReceiver(0);
+        final Thread thread = new Thread("LoadGenerator-receiver") {
+            @Override
+            public void run() {
+                try {
+                    receiver.run((sender, packet) -> updates.incrementAndGet());
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+        port[0] = receiver.getLocalPort();
+        return receiver;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 1) {
+            System.err.println("Usage: LoadGenerator clients [rate in Hz] [seconds] [text|binary|udp] [sweep|log file] [host:port]");
+            System.exit(2);
+        }
+        final int clients = Integer.parseInt(args[0]);
+        final int rateHz = args.length > 1 ? Integer.parseInt(args[1]) : 120;
+        final long durationNanos = TimeUnit.SECONDS.toNanos(args.length > 2 ? Long.parseLong(args[2]) : 10);
+        final String protocol = args.length > 3 ? args[3] : "binary";
+        final String input = args.length > 4 ? args[4] : "sweep";
+        if (clients < 1 || rateHz < 1) {
+            throw new IllegalArgumentException("The number of clients and the rate must be positive");
+        }
+
+        final TransportOptions options = new TransportOptions();
+        switch (protocol) {
+            case "text":
+            case "binary":
+                options.setBinaryProtocolAllowed(protocol.equals("binary"));
+                break;
+            case "udp":
+                options.setTransport(TransportOptions.TRANSPORT_UDP);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown protocol: " + protocol);
+        }
+
+        final RecordedScript.Recording recording = input.equals("sweep") ? null : RecordedScript.Recording.load(new File(input));
+        if (recording != null) {
+            System.out.printf("Replaying %d events of %.1f s%n", recording.getEventCount(), recording.getDurationMicros() / 1e6);
+        }
+
+        // Negative while the updates received by the server are unknown
+        final AtomicLong serverUpdates = new AtomicLong(Long.MIN_VALUE);
+        final Closeable localServer;
+        final String host;
+        final int port;
+        if (args.length > 5) {
+            final int colon = args[5].lastIndexOf(':');
+            host = args[5].substring(0, colon);
+            port = Integer.parseInt(args[5].substring(colon + 1));
+            localServer = null;
+        } else {
+            final int[] localPort = new int[1];
+            serverUpdates.set(0);
+            localServer = startLocalServer(protocol, localPort, serverUpdates);
+            host = "127.0.0.1";
+            port = localPort[0];
+        }
+
+        final SocketDispatcher[] dispatchers = new SocketDispatcher[clients];
+        final InputScript[] scripts = new InputScript[clients];
+        try {
+            for (int client = 0; client < clients; client++) {
+                dispatchers[client] = new SocketDispatcher(host, port, options);
+                scripts[client] = recording == null ? new SweepScript(client)
+                        : new RecordedScript(recording, recording.getDurationMicros() * client / clients);
+            }
+            final long connectDeadline = System.currentTimeMillis() + CONNECT_TIMEOUT_MILLIS;
+            int connected;
+            do {
+                Thread.sleep(10);
+                connected = 0;
+                for (SocketDispatcher dispatcher : dispatchers) {
+                    if (dispatcher.isConnected()) {
+                        connected++;
+                    }
+                }
+            } while (connected < clients && System.currentTimeMillis() < connectDeadline);
+            System.out.printf("%d/%d controllers connected to %s:%d over %s, %d Hz for %d s%n", connected, clients,
+                    host, port, protocol, rateHz, TimeUnit.NANOSECONDS.toSeconds(durationNanos));
+            if (connected == 0) {
+                System.exit(1);
+            }
+
+            final LoadGenerator generator = new LoadGenerator(dispatchers, scripts, rateHz, durationNanos);
+            generator.run(serverUpdates);
+            // Let the last updates and probes arrive
+            Thread.sleep(200);
+            generator.report();
+        } finally {
+            for (SocketDispatcher dispatcher : dispatchers) {
+                if (dispatcher != null) {
+                    dispatcher.close();
+                }
+            }
+            if (localServer != null) {
+                localServer.close();
+            }
+        }
+    }
+
+}
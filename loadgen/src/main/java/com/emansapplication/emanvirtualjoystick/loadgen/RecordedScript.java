@@ -0,0 +1,89 @@
+package com.emansapplication.emanvirtualjoystick.loadgen;
+
+import com.emansapplication.emanvirtualjoystick.SocketDispatcher;
+import com.emansapplication.emanvirtualjoystick.dispatch.InputReplayer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Plays a log of {@link com.emansapplication.emanvirtualjoystick.dispatch.InputRecorder} in a loop.
+ * The log is loaded once and shared: each controller only keeps its position in it, and starts
+ * at another offset.
+ */
+public class RecordedScript implements InputScript {
+
+    /// The events of a log, in memory.
+    public static class Recording {
+        private long[] times = new long[1024];
+        private int[] controls = new int[1024];
+        private int[] values = new int[1024];
+        private int count;
+        private long durationMicros;
+
+        public static Recording load(File file) throws IOException {
+            final Recording recording = new Recording();
+            try (InputReplayer replayer = new InputReplayer(file)) {
+                replayer.read(recording::add);
+            }
+            if (recording.count == 0) {
+                throw new IOException("No event in " + file);
+            }
+            // Replays the first event just after the last one, rather than at the same time
+            recording.durationMicros = recording.times[recording.count - 1] + 1;
+            return recording;
+        }
+
+        private void add(long timeMicros, int controlId, int value) {
+            if (count == times.length) {
+                times = Arrays.copyOf(times, count * 2);
+                controls = Arrays.copyOf(controls, count * 2);
+                values = Arrays.copyOf(values, count * 2);
+            }
+            times[count] = timeMicros;
+            controls[count] = controlId;
+            values[count] = value;
+            count++;
+        }
+
+        public int getEventCount() {
+            return count;
+        }
+
+        public long getDurationMicros() {
+            return durationMicros;
+        }
+    }
+
+    private final Recording recording;
+    private final long offsetMicros;
+    /// Next event to dispatch, and start of the current loop in the time of the run.
+    private int next;
+    private long loopStartMicros;
+
+    /// @param offsetMicros Position in the log at which the controller starts.
+    public RecordedScript(Recording recording, long offsetMicros) {
+        this.recording = recording;
+        this.offsetMicros = offsetMicros % recording.durationMicros;
+        final int index = Arrays.binarySearch(recording.times, 0, recording.count, this.offsetMicros);
+        next = index >= 0 ? index : -index - 1;
+        if (next == recording.count) {
+            next = 0;
+            loopStartMicros = recording.durationMicros;
+        }
+    }
+
+    @Override
+    public void apply(SocketDispatcher dispatcher, long elapsedMicros) {
+        final long position = elapsedMicros + offsetMicros;
+        while (loopStartMicros + recording.times[next] <= position) {
+            dispatcher.dispatchUpdate(recording.controls[next], recording.values[next]);
+            if (++next == recording.count) {
+                next = 0;
+                loopStartMicros += recording.durationMicros;
+            }
+        }
+    }
+
+}
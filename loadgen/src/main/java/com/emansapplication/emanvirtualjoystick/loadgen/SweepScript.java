@@ -0,0 +1,43 @@
+package com.emansapplication.emanvirtualjoystick.loadgen;
+
+import com.emansapplication.emanvirtualjoystick.SocketDispatcher;
+
+/**
+ * Generated input: the left stick turns in circles, the right stick draws a figure eight, and
+ * the start button is pressed a quarter of the time. Each controller starts at another phase, so
+ * that the controllers do not send in lockstep.
+ */
+public class SweepScript implements InputScript {
+
+    private static final long TURN_MICROS = 1_000_000;
+    private static final long BUTTON_PERIOD_MICROS = 250_000;
+    private static final double GOLDEN_ANGLE = Math.PI * (3 - Math.sqrt(5));
+
+    private final double phase;
+    private final int buttonPhase;
+    private boolean startPressed;
+
+    /// @param client Index of the controller, which sets its phase.
+    public SweepScript(int client) {
+        phase = client * GOLDEN_ANGLE;
+        buttonPhase = client % 4;
+    }
+
+    @Override
+    public void apply(SocketDispatcher dispatcher, long elapsedMicros) {
+        final double angle = 2 * Math.PI * elapsedMicros / TURN_MICROS + phase;
+        dispatcher.dispatchLeftJoystickPosition(0.9 * Math.cos(angle), 0.9 * Math.sin(angle));
+        dispatcher.dispatchRightJoystickPosition(0.5 * Math.sin(2 * angle), 0.5 * Math.cos(angle));
+
+        final boolean pressed = (elapsedMicros / BUTTON_PERIOD_MICROS + buttonPhase) % 4 == 0;
+        if (pressed != startPressed) {
+            startPressed = pressed;
+            if (pressed) {
+                dispatcher.dispatchStartButtonPressed();
+            } else {
+                dispatcher.dispatchStartButtonReleased();
+            }
+        }
+    }
+
+}